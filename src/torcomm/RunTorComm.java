@@ -1,8 +1,17 @@
 package torcomm;
 
+import torcomm.protocol.AdmissionControl;
+import torcomm.protocol.LogSampler;
+import torcomm.protocol.TorCommCapabilities;
+import torcomm.protocol.TorCommTransport;
+import torcomm.protocol.WarmUp;
+import torcomm.protocol.WriteBatcher;
+import torcomm.stats.CostMeter;
 import java.io.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class which holds some functions in common among the TorComm interface
@@ -10,6 +19,12 @@ import java.time.format.DateTimeFormatter;
  * classes so that setup code in the classes is minimized and repetition is
  * avoided.
  *
+ * <p> Messages are written to the output file by the calling thread, but
+ * they are printed out at the console by a background thread, so that a slow
+ * terminal never delays the caller. If the console falls too far behind,
+ * messages are left out of the console, though never out of the file, and the
+ * number of messages left out is printed out when the output is closed.
+ *
  * @author Daniel G. Maia Filho
  */
 public abstract class RunTorComm extends Closeable
@@ -19,6 +34,16 @@ public abstract class RunTorComm extends Closeable
 	private static String[] argsDescr;
 	private static PrintWriter out;
 	
+	private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.
+		ofPattern("MM/dd/yyyy HH:mm:ss");
+	private static final int CONSOLE_QUEUE_SIZE = 8192;
+	private static final BlockingQueue<String> console = new
+		ArrayBlockingQueue<String>(CONSOLE_QUEUE_SIZE);
+	private static final AtomicLong consoleQueued = new AtomicLong();
+	private static final AtomicLong consolePrinted = new AtomicLong();
+	private static final AtomicLong consoleDropped = new AtomicLong();
+	private static volatile Thread consoleThread;
+	
 	/**
 	 * Stores the arguments into a class field so that other methods can access
 	 * it.
@@ -35,6 +60,10 @@ public abstract class RunTorComm extends Closeable
 	 */
 	protected static void close()
 	{
+		flushConsole();
+		if (consoleDropped.get() > 0)
+			System.out.println(consoleDropped.get() + " messages were left out of " +
+				"the console.");
 		if (out != null)
 			out.close();
 	}
@@ -49,7 +78,7 @@ public abstract class RunTorComm extends Closeable
 	{
 		out = output;
 	}
-
+	
 	/**
 	 * Retrieves the arguments that were given.
 	 *
@@ -102,13 +131,11 @@ public abstract class RunTorComm extends Closeable
 	 */
 	protected static void printMessage(String message)
 	{
-		DateTimeFormatter dtf = DateTimeFormatter.
-			ofPattern("MM/dd/yyyy HH:mm:ss");
-		LocalDateTime now = LocalDateTime.now();
-		String outputMessage = "" + dtf.format(now) + "> " + message;
-	if (out != null)
-		out.println(outputMessage);
-	System.out.println(outputMessage);
+		String outputMessage = DATE_TIME.format(LocalDateTime.now()) + "> " +
+			message;
+		if (out != null)
+			out.println(outputMessage);
+		printConsole(outputMessage);
 	}
 	
 	/**
@@ -119,13 +146,260 @@ public abstract class RunTorComm extends Closeable
 	 */
 	protected static void printError(String message)
 	{
-		DateTimeFormatter dtf = DateTimeFormatter.
-			ofPattern("MM/dd/yyyy HH:mm:ss");
-		LocalDateTime now = LocalDateTime.now();
-		String outputMessage = "" + dtf.format(now) + "> " + message;
-	if (out != null)
-		out.println(outputMessage);
-	System.out.println(outputMessage);
+		String outputMessage = DATE_TIME.format(LocalDateTime.now()) + "> " +
+			message;
+		if (out != null)
+			out.println(outputMessage);
+		printConsole(outputMessage);
+	}
+	
+	/**
+	 * Hands a message to the console thread, starting it if needed. The
+	 * message is left out if the console thread is too far behind.
+	 *
+	 * @param message	the message.
+	 */
+	private static void printConsole(String message)
+	{
+		if (consoleThread == null)
+			startConsole();
+		if (console.offer(message))
+			consoleQueued.incrementAndGet();
+		else
+			consoleDropped.incrementAndGet();
+	}
+	
+	/**
+	 * Starts the thread that prints out the console messages, unless it was
+	 * already started.
+	 */
+	private static void startConsole()
+	{
+		synchronized (console)
+		{
+			if (consoleThread == null)
+			{
+				consoleThread = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							while (true)
+							{
+								String message = console.take();
+								System.out.println(message);
+								consolePrinted.incrementAndGet();
+								if (console.isEmpty())
+									synchronized (console)
+									{
+										console.notifyAll();
+									}
+							}
+						} catch (InterruptedException e) {}
+					}
+				}, "Console");
+				consoleThread.setDaemon(true);
+				consoleThread.start();
+			}
+		}
+	}
+	
+	/**
+	 * Waits until the console thread has printed out every message given to
+	 * it.
+	 */
+	protected static void flushConsole()
+	{
+		synchronized (console)
+		{
+			try
+			{
+				while (consolePrinted.get() < consoleQueued.get())
+					console.wait(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Creates the {@link torcomm.protocol.LogSampler LogSampler} set up by the
+	 * system properties <i>torcomm.log.every</i>, the number of cells out of
+	 * which one is logged, <i>torcomm.log.rate</i>, the largest number of
+	 * cells logged per second, and <i>torcomm.log.summary</i>, the number of
+	 * seconds between two summary lines.
+	 *
+	 * @return	the sampler, or <i>null</i> if none of the properties is set, in
+	 * which case every cell is logged.
+	 */
+	protected static LogSampler getLogSampler()
+	{
+		String every = System.getProperty("torcomm.log.every");
+		String rate = System.getProperty("torcomm.log.rate");
+		String summary = System.getProperty("torcomm.log.summary");
+		if (every == null && rate == null && summary == null)
+			return null;
+		try
+		{
+			return new LogSampler(every == null ? 1 : Integer.parseInt(every),
+				rate == null ? 0 : Double.parseDouble(rate), summary == null ? 0 :
+				Math.round(Double.parseDouble(summary) * 1000));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid log sampling property: " +
+				e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Creates the {@link torcomm.protocol.WarmUp WarmUp} set up by the system
+	 * properties <i>torcomm.warmup</i>, the shortest warm-up in seconds,
+	 * <i>torcomm.warmup.cells</i>, its smallest number of cells, and
+	 * <i>torcomm.warmup.steady</i>, the number of cells whose round trip times
+	 * must be steady, which enables steady-state detection. Round trip times
+	 * are steady when their coefficient of variation is at most
+	 * <i>torcomm.warmup.variation</i>, 0.25 by default, and the warm-up ends
+	 * after <i>torcomm.warmup.max</i> seconds, 60 by default, even if they are
+	 * not.
+	 *
+	 * @return	the warm-up, or <i>null</i> if none of the properties is set, in
+	 * which case every cell is recorded.
+	 */
+	protected static WarmUp getWarmUp()
+	{
+		String time = System.getProperty("torcomm.warmup");
+		String cells = System.getProperty("torcomm.warmup.cells");
+		String steady = System.getProperty("torcomm.warmup.steady");
+		if (time == null && cells == null && steady == null)
+			return null;
+		try
+		{
+			return new WarmUp(time == null ? 0 : Math.round(Double.parseDouble(
+				time) * 1000), cells == null ? 0 : Long.parseLong(cells), steady ==
+				null ? 0 : Integer.parseInt(steady), Double.parseDouble(System.
+				getProperty("torcomm.warmup.variation", "0.25")), Math.round(Double.
+				parseDouble(System.getProperty("torcomm.warmup.max", "60")) * 1000));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid warm-up property: " + e.
+				getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Creates the {@link torcomm.protocol.AdmissionControl AdmissionControl}
+	 * set up by the system properties <i>torcomm.admit.sessions</i>, the
+	 * largest number of sessions, <i>torcomm.admit.pending</i>, the largest
+	 * number of handshakes in progress, <i>torcomm.admit.rate</i>, the largest
+	 * number of connections admitted per second, and
+	 * <i>torcomm.admit.burst</i>, the largest number of them admitted at once,
+	 * which is the rate's by default.
+	 *
+	 * @return	the admission control, or <i>null</i> if none of the properties
+	 * is set, in which case every connection is served.
+	 */
+	protected static AdmissionControl getAdmissionControl()
+	{
+		String sessions = System.getProperty("torcomm.admit.sessions");
+		String pending = System.getProperty("torcomm.admit.pending");
+		String rate = System.getProperty("torcomm.admit.rate");
+		String burst = System.getProperty("torcomm.admit.burst");
+		if (sessions == null && pending == null && rate == null && burst == null)
+			return null;
+		try
+		{
+			double perSecond = rate == null ? 0 : Double.parseDouble(rate);
+			return new AdmissionControl(sessions == null ? 0 : Integer.parseInt(
+				sessions), pending == null ? 0 : Integer.parseInt(pending),
+				perSecond, burst == null ? (int)Math.ceil(perSecond) : Integer.
+				parseInt(burst));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid admission control property: " +
+				e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Creates the {@link torcomm.stats.CostMeter CostMeter} set up by the
+	 * system property <i>torcomm.cost</i>, the number of times out of which
+	 * one is measured for each phase of a session, such as 100.
+	 *
+	 * @return	the meter, or <i>null</i> if the property is not set, in which
+	 * case no cost is accounted for.
+	 */
+	protected static CostMeter getCostMeter()
+	{
+		String every = System.getProperty("torcomm.cost");
+		if (every == null)
+			return null;
+		try
+		{
+			return new CostMeter(Integer.parseInt(every));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid cost accounting property: " +
+				e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Creates the {@link torcomm.protocol.WriteBatcher WriteBatcher} set up
+	 * by the system properties <i>torcomm.batch.bytes</i>, the largest number
+	 * of bytes held, and <i>torcomm.batch.micros</i>, the longest time a frame
+	 * is held, in microseconds. Either one enables batching, and the other
+	 * one takes its default value.
+	 *
+	 * @return	the batcher, or <i>null</i> if neither property is set, in
+	 * which case every frame is sent through a write of its own.
+	 */
+	protected static WriteBatcher getWriteBatcher()
+	{
+		String bytes = System.getProperty("torcomm.batch.bytes");
+		String micros = System.getProperty("torcomm.batch.micros");
+		if (bytes == null && micros == null)
+			return null;
+		try
+		{
+			return new WriteBatcher(bytes == null ? WriteBatcher.
+				DEFAULT_MAX_BYTES : Integer.parseInt(bytes), micros == null ?
+				WriteBatcher.DEFAULT_MAX_MICROS : Long.parseLong(micros));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid write batching property: " +
+				e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Retrieves the {@link torcomm.protocol.TorCommTransport.Type
+	 * TorCommTransport.Type} set up by the system property
+	 * <i>torcomm.transport</i>, which may be <i>blocking</i>, <i>tls</i>,
+	 * <i>nio</i>, <i>async</i> or <i>shm</i>, the last of which only connects
+	 * clients and servers of the same host. The keys and certificates of
+	 * <i>tls</i> are those of the <i>javax.net.ssl</i> system properties.
+	 *
+	 * @return	the transport type, which is <i>blocking</i> unless the property
+	 * is set.
+	 */
+	protected static TorCommTransport.Type getTransportType()
+	{
+		String type = System.getProperty("torcomm.transport");
+		return type == null ? TorCommTransport.Type.BLOCKING :
+			TorCommTransport.Type.parse(type);
+	}
+	
+	/**
+	 * Retrieves the capabilities a client offers in its handshake, which
+	 * pipeline up to the number of cells given by the system property
+	 * <i>torcomm.pipeline</i>, if it is set, and are the {@link
+	 * torcomm.protocol.TorCommCapabilities#LEGACY LEGACY} ones if the system
+	 * property <i>torcomm.legacy</i> is <i>true</i>.
+	 *
+	 * @return	the capabilities.
+	 */
+	protected static TorCommCapabilities getClientCapabilities()
+	{
+		if (Boolean.getBoolean("torcomm.legacy"))
+			return TorCommCapabilities.LEGACY;
+		return TorCommCapabilities.CLIENT_DEFAULT.withWindow(Integer.getInteger(
+			"torcomm.pipeline", 1));
 	}
 	
 	/**
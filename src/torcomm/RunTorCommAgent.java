@@ -0,0 +1,240 @@
+package torcomm;
+
+import torcomm.protocol.*;
+import torcomm.stats.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+
+/**
+ * This class is an agent of a {@link RunTorCommCoordinator
+ * RunTorCommCoordinator}. It connects to the coordinator, estimates the offset
+ * between the local clock and the coordinator's clock and waits for the start
+ * instant. At that instant, it runs a client {@link
+ * torcomm.protocol.TorCommSession TorCommSession} in the same way as {@link
+ * RunTorCommClient RunTorCommClient} and sends its results back to the
+ * coordinator instead of logging every cell.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunTorCommAgent extends RunTorComm
+{
+	
+	private static Socket coordinator;
+	private static DataInputStream coordIn;
+	private static DataOutputStream coordOut;
+	private static ClockOffsetEstimator clock;
+	private static TorCommWorkload workload;
+	
+	private static String coordHostname;
+	private static int coordPort;
+	private static String hostname;
+	private static int port;
+	private static int orPort;
+	private static int duration;
+	private static String fileName;
+	
+	/**
+	 * Runs the agent.
+	 *
+	 * @param args	an array of string that holds the following parameters at
+	 * the given order in which they are being listed:
+	 * <ol>
+	 * 	<li> coordinator hostname	the coordinator's IP address.
+	 * 	<li> coordinator port		the coordinator's port.
+	 * 	<li> hostname	the server's IP address.
+	 * 	<li> port		the server's port.
+	 *	<li> ORPort		if the client should connect to Tor's default proxy
+	 * port 9050, as in {@link RunTorCommClient#main(String[] args)
+	 * RunTorCommClient}.
+	 *  <li> duration	the duration of the communication.
+	 *  <li> file name	the file name of the log.
+	 *  <li> workload	(optional) a {@link torcomm.protocol.TorCommWorkload
+	 * TorCommWorkload} file. The agent replays the session of the workload whose
+	 * index is the agent's index given by the coordinator.
+	 * </ol>
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			setup(args);
+			printMessage("Initializing agent.");
+			printArgs();
+			printMessage("Connecting to coordinator.");
+			synchronize();
+			long startAt = coordIn.readLong();
+			int index = coordIn.readInt();
+			long localStart = startAt - Math.round(clock.getOffset());
+			printMessage("Agent " + index + " waiting for the start instant.");
+			waitUntil(localStart);
+			long actualStart = System.currentTimeMillis();
+			RunResult result = runSession(index);
+			printMessage(result.toString());
+			coordOut.writeLong(actualStart + Math.round(clock.getOffset()));
+			result.writeTo(coordOut);
+			coordOut.flush();
+			printMessage("Results sent to coordinator.");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			try
+			{
+				close();
+				if (coordinator != null)
+					coordinator.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Prepares the class for execution and creates the log file with the name
+	 * given in the parameters.
+	 *
+	 * @param args			the <i>args</i> array given in the {@link #main
+	 * main(String[] args)} method.
+	 * @throws IOException	if there was any error while creating the log file.
+	 */
+	private static void setup(String[] args) throws IOException
+	{
+		setArgs(args);
+		try
+		{
+			checkArgs();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid argument: " + e.getMessage(),
+				e);
+		}
+		setClassVars();
+		if (args.length > 7)
+			workload = TorCommWorkload.load(new File(args[7]));
+		File outFile = new File(fileName);
+		outFile.createNewFile();
+		setOutput(new PrintWriter(new FileWriter(outFile)));
+		if (args.length > 7)
+			setArgsDescr(new String[]{"coordinator hostname",
+				"coordinator port", "hostname", "port", "ORPort", "duration",
+				"file name", "workload"});
+		else
+			setArgsDescr(new String[]{"coordinator hostname",
+				"coordinator port", "hostname", "port", "ORPort", "duration",
+				"file name"});
+	}
+	
+	/**
+	 * Checks the validity of the given arguments as specified in the
+	 * documentation of the {@link #main main} method.
+	 */
+	private static void checkArgs()
+	{
+		if (getArgs().length < 7)
+			throw new IndexOutOfBoundsException("Expected 7 arguments.");
+		try
+		{
+			for (int i : new int[]{1, 3})
+			{
+				int port = Integer.parseInt(getArgs()[i]);
+				if (port > 65535 || port < 0)
+					throw new IndexOutOfBoundsException("Port value not " +
+						"contained in [1, 65535].");
+			}
+			int duration = Integer.parseInt(getArgs()[5]);
+			if (duration > 86400 || duration <= 0)
+				throw new IndexOutOfBoundsException("Time out of bounds.");
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid number: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Sets up the class fields according to the given <i>args</i> in the {@link
+	 * #main main(String[] args)} method.
+	 */
+	private static void setClassVars()
+	{
+		coordHostname = getArgs()[0];
+		coordPort = Integer.parseInt(getArgs()[1]);
+		hostname = getArgs()[2];
+		port = Integer.parseInt(getArgs()[3]);
+		orPort = Integer.parseInt(getArgs()[4]);
+		duration = Integer.parseInt(getArgs()[5]);
+		fileName = getArgs()[6];
+	}
+	
+	/**
+	 * Connects to the coordinator and estimates the offset of its clock from
+	 * the samples with the smallest round trip times.
+	 *
+	 * @throws IOException	if there was an error while talking to the
+	 * coordinator.
+	 */
+	private static void synchronize() throws IOException
+	{
+		coordinator = new Socket(coordHostname, coordPort);
+		coordinator.setTcpNoDelay(true);
+		coordIn = new DataInputStream(coordinator.getInputStream());
+		coordOut = new DataOutputStream(new BufferedOutputStream(
+			coordinator.getOutputStream()));
+		coordOut.writeUTF(ManagementFactory.getRuntimeMXBean().getName());
+		clock = new ClockOffsetEstimator();
+		for (int i = 0; i < RunTorCommCoordinator.SYNC_ROUNDS; i++)
+		{
+			long sent = System.currentTimeMillis();
+			coordOut.writeLong(sent);
+			coordOut.flush();
+			long remote = coordIn.readLong();
+			clock.sample(sent, remote, System.currentTimeMillis());
+		}
+		coordOut.writeLong(Math.round(clock.getOffset()));
+		coordOut.flush();
+		printMessage("Coordinator clock offset: " + Math.round(clock.getOffset())
+			+ " ms.");
+	}
+	
+	/**
+	 * Waits until the local clock reaches the given time.
+	 *
+	 * @param time					the time, in milliseconds.
+	 * @throws InterruptedException	if the thread is interrupted.
+	 */
+	private static void waitUntil(long time) throws InterruptedException
+	{
+		long remaining = time - System.currentTimeMillis();
+		while (remaining > 0)
+		{
+			if (remaining > 2)
+				Thread.sleep(remaining - 1);
+			else
+				Thread.yield();
+			remaining = time - System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Runs a client session in the current thread and gathers its results.
+	 *
+	 * @param index	the agent's index.
+	 * @return		the results of the session.
+	 */
+	private static RunResult runSession(int index)
+	{
+		TorCommClient.Builder builder = TorCommClient.builder(hostname, port).
+			name(ManagementFactory.getRuntimeMXBean().getName()).
+			duration(duration).warmUp(getWarmUp()).costMeter(getCostMeter()).
+			writeBatching(getWriteBatcher());
+		if (orPort > 0)
+			builder.torProxy();
+		if (workload != null)
+			builder.workload(workload, index);
+		TorCommClient client = builder.build();
+		client.run();
+		if (client.getLastFailure() != null)
+			printError("Session failed: " + client.getLastFailure().
+				getMessage());
+		return client.getResult();
+	}
+}
\ No newline at end of file
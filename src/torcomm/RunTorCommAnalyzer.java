@@ -0,0 +1,433 @@
+package torcomm;
+
+import torcomm.stats.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class is an offline analyzer of the logs written by the {@link
+ * torcomm.protocol.TorCommSession TorCommSession} protocol, both the server
+ * session logs stored as <i>output/yyyy-MM-dd_&lt;id&gt;.txt</i> and the client
+ * logs whose lines are prefixed by {@link RunTorComm#printMessage(String
+ * message) printMessage(String message)}. Each log is read line by line and
+ * no cell is kept in memory after its timestamp has been paired, so the
+ * memory in use does not depend on the size of the logs. Many logs are
+ * analyzed in parallel by a {@link java.util.concurrent.ForkJoinPool
+ * ForkJoinPool}.
+ *
+ * <p> For each cell number <i>i</i> the client cell timestamp is paired with
+ * the server cell timestamp. The difference between the two is reported as the
+ * latency, and the difference between two consecutive client cells is
+ * reported as the cycle time of the exchange.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunTorCommAnalyzer extends RunTorComm
+{
+	
+	private static final double[] PERCENTILES = {50, 75, 90, 95, 99, 99.9,
+		100};
+	
+	private static File source;
+	private static String fileName;
+	private static int parallelism;
+	
+	/**
+	 * Analyzes the logs and writes a report with a summary of each session
+	 * followed by the latency and cycle time distributions of all sessions.
+	 *
+	 * @param args	an array of string that holds the following parameters at
+	 * the given order in which they are being listed:
+	 * <ol>
+	 * 	<li> source		a log file or a folder whose .txt files are logs.
+	 * 	<li> file name	the file name of the report.
+	 * 	<li> threads	(optional) the number of threads analyzing logs. By
+	 * default, every available processor is used.
+	 * </ol>
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			setup(args);
+			printMessage("Initializing analyzer.");
+			printArgs();
+			File[] logs = listLogs();
+			printMessage("Analyzing " + logs.length + " log files.");
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			LogSummary total = pool.invoke(new AnalyzeTask(logs, 0,
+				logs.length));
+			pool.shutdown();
+			printDistribution("Latency (ms)", total.latency);
+			printDistribution("Cycle time (ms)", total.cycle);
+			printMessage("Sessions: " + total.sessions + ", cells: " +
+				total.latency.getCount() + ", unpaired cells: " +
+				total.unpaired);
+			printMessage("End of analysis.");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * Prepares the class for execution and creates the report file with the
+	 * name given in the parameters.
+	 *
+	 * @param args			the <i>args</i> array given in the {@link #main
+	 * main(String[] args)} method.
+	 * @throws IOException	if there was any error while creating the report.
+	 */
+	private static void setup(String[] args) throws IOException
+	{
+		setArgs(args);
+		try
+		{
+			checkArgs();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid argument: " + e.getMessage(),
+				e);
+		}
+		setClassVars();
+		File outFile = new File(fileName);
+		outFile.createNewFile();
+		setOutput(new PrintWriter(new FileWriter(outFile)));
+		if (args.length > 2)
+			setArgsDescr(new String[]{"source", "file name", "threads"});
+		else
+			setArgsDescr(new String[]{"source", "file name"});
+	}
+	
+	/**
+	 * Checks the validity of the given arguments as specified in the
+	 * documentation of the {@link #main main} method.
+	 */
+	private static void checkArgs()
+	{
+		if (getArgs().length < 2)
+			throw new IndexOutOfBoundsException("Expected a source and a " +
+				"file name.");
+		// Checking args[0]
+		if (!new File(getArgs()[0]).exists())
+			throw new RuntimeException("File " + getArgs()[0] + " not found.");
+		// Checking args[2]
+		if (getArgs().length > 2)
+		{
+			try
+			{
+				if (Integer.parseInt(getArgs()[2]) <= 0)
+					throw new IndexOutOfBoundsException("Thread count must " +
+						"be positive.");
+			} catch (NumberFormatException e) {
+				throw new RuntimeException("Invalid thread count: " +
+					e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Sets up the class fields according to the given <i>args</i> in the {@link
+	 * #main main(String[] args)} method.
+	 */
+	private static void setClassVars()
+	{
+		source = new File(getArgs()[0]);
+		fileName = getArgs()[1];
+		if (getArgs().length > 2)
+			parallelism = Integer.parseInt(getArgs()[2]);
+		else
+			parallelism = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Lists the logs that shall be analyzed.
+	 *
+	 * @return	the log files, sorted by name.
+	 */
+	private static File[] listLogs()
+	{
+		if (source.isFile())
+			return new File[]{source};
+		File[] logs = source.listFiles(new FileFilter()
+		{
+			public boolean accept(File file)
+			{
+				return file.isFile() && file.getName().endsWith(".txt") &&
+					!file.getName().equals("mainLog.txt");
+			}
+		});
+		if (logs == null)
+			return new File[0];
+		Arrays.sort(logs);
+		return logs;
+	}
+	
+	/**
+	 * Prints out the percentiles of a distribution.
+	 *
+	 * @param name		the distribution's name.
+	 * @param histogram	the distribution.
+	 */
+	private static void printDistribution(String name,
+		LatencyHistogram histogram)
+	{
+		printMessage(name + ": " + histogram);
+		for (double percentile : PERCENTILES)
+			printMessage("  p" + percentile + "\t" +
+				histogram.getValueAtPercentile(percentile));
+	}
+	
+	/**
+	 * The aggregated results of one or many logs.
+	 */
+	private static class LogSummary
+	{
+		private LatencyHistogram latency = new LatencyHistogram();
+		private LatencyHistogram cycle = new LatencyHistogram();
+		private long unpaired;
+		private int sessions;
+		
+		/**
+		 * Adds the results of another summary to this one.
+		 *
+		 * @param other	the summary to be added.
+		 * @return		this summary.
+		 */
+		private LogSummary add(LogSummary other)
+		{
+			latency.add(other.latency);
+			cycle.add(other.cycle);
+			unpaired += other.unpaired;
+			sessions += other.sessions;
+			return this;
+		}
+	}
+	
+	/**
+	 * A task that analyzes a range of logs, splitting the range in half
+	 * between two subtasks while it holds more than one log.
+	 */
+	private static class AnalyzeTask extends RecursiveTask<LogSummary>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private File[] logs;
+		private int from;
+		private int to;
+		
+		/**
+		 * Sets up the fields of this object.
+		 *
+		 * @param logs	all the logs.
+		 * @param from	the index of the first log of the range, inclusive.
+		 * @param to	the index of the last log of the range, exclusive.
+		 */
+		public AnalyzeTask(File[] logs, int from, int to)
+		{
+			this.logs = logs;
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		protected LogSummary compute()
+		{
+			if (to - from == 0)
+				return new LogSummary();
+			if (to - from == 1)
+				return new LogParser(logs[from]).parse();
+			int middle = (from + to) >>> 1;
+			AnalyzeTask left = new AnalyzeTask(logs, from, middle);
+			left.fork();
+			LogSummary right = new AnalyzeTask(logs, middle, to).compute();
+			return left.join().add(right);
+		}
+	}
+	
+	/**
+	 * A state machine that reads a single log line by line and pairs the
+	 * timestamps of the client and server cells as they are found.
+	 */
+	private static class LogParser
+	{
+		private File log;
+		private LogSummary summary;
+		private String sessionID;
+		
+		// Fields of the cell being read
+		private boolean clientCell;
+		private long cellNumber;
+		private int year;
+		private int month;
+		private int day;
+		private int hour;
+		private int minute;
+		private int second;
+		
+		// Timestamps waiting to be paired
+		private long pendingNumber;
+		private long pendingClient;
+		private long lastClient;
+		
+		/**
+		 * Sets up the fields of this object.
+		 *
+		 * @param log	the log to be parsed.
+		 */
+		public LogParser(File log)
+		{
+			this.log = log;
+			this.summary = new LogSummary();
+			this.summary.sessions = 1;
+			this.sessionID = "?";
+			this.cellNumber = -1;
+			this.pendingNumber = -1;
+			this.lastClient = -1;
+		}
+		
+		/**
+		 * Parses the whole log and prints out its session summary.
+		 *
+		 * @return	the results of this log.
+		 */
+		public LogSummary parse()
+		{
+			try (BufferedReader reader = new BufferedReader(new
+				InputStreamReader(new FileInputStream(log),
+				StandardCharsets.UTF_8), 1 << 16))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+					parseLine(stripPrefix(line));
+			} catch (IOException e) {
+				printError("Failed to read " + log + ": " + e.getMessage());
+			}
+			if (pendingNumber >= 0)
+				summary.unpaired++;
+			printMessage("Session " + sessionID + " (" + log.getName() +
+				"): latency " + summary.latency + " | cycle " + summary.cycle);
+			return summary;
+		}
+		
+		/**
+		 * Removes the date and time that {@link RunTorComm#printMessage(String
+		 * message) printMessage(String message)} prepends to every line.
+		 *
+		 * @param line	a log line.
+		 * @return		the line without the prefix.
+		 */
+		private static String stripPrefix(String line)
+		{
+			if (line.length() >= 21 && line.charAt(19) == '>' &&
+				line.charAt(2) == '/' && line.charAt(5) == '/')
+				return line.substring(21);
+			return line;
+		}
+		
+		/**
+		 * Updates the state of the parser with a single line.
+		 *
+		 * @param line	a log line without prefix.
+		 */
+		private void parseLine(String line)
+		{
+			if (line.startsWith("Client Cell ") ||
+				line.startsWith("Server Cell "))
+			{
+				clientCell = line.charAt(0) == 'C';
+				int end = line.indexOf(' ', 12);
+				int sessionStart = line.lastIndexOf(' ');
+				try
+				{
+					cellNumber = Long.parseLong(line.substring(12, end));
+				} catch (RuntimeException e) {
+					cellNumber = -1;
+				}
+				sessionID = line.substring(sessionStart + 1);
+				return;
+			}
+			if (cellNumber < 0)
+				return;
+			int colon = line.indexOf(": ");
+			if (colon < 0)
+				return;
+			String field = line.substring(0, colon);
+			int value;
+			try
+			{
+				value = Integer.parseInt(line.substring(colon + 2).trim());
+			} catch (NumberFormatException e) {
+				return;
+			}
+			switch (field)
+			{
+				case "year": year = value; break;
+				case "month": month = value; break;
+				case "day": day = value; break;
+				case "hour": hour = value; break;
+				case "minute": minute = value; break;
+				case "second": second = value; break;
+				case "millisecond":
+					endCell(timestamp(value));
+					break;
+				default: break;
+			}
+		}
+		
+		/**
+		 * Pairs the timestamp of the cell that was just read.
+		 *
+		 * @param time	the cell's timestamp, in milliseconds.
+		 */
+		private void endCell(long time)
+		{
+			if (clientCell)
+			{
+				if (pendingNumber >= 0)
+					summary.unpaired++;
+				if (lastClient >= 0)
+					summary.cycle.record(time - lastClient);
+				lastClient = time;
+				pendingNumber = cellNumber;
+				pendingClient = time;
+			}
+			else if (pendingNumber == cellNumber)
+			{
+				summary.latency.record(time - pendingClient);
+				pendingNumber = -1;
+			}
+			else
+				summary.unpaired++;
+			cellNumber = -1;
+		}
+		
+		/**
+		 * Converts the fields of the cell being read into milliseconds since
+		 * the epoch, ignoring time zones as both ends use the same format.
+		 *
+		 * @param millisecond	the cell's millisecond field.
+		 * @return				the timestamp.
+		 */
+		private long timestamp(int millisecond)
+		{
+			long days;
+			try
+			{
+				days = LocalDate.of(year, month, day).toEpochDay();
+			} catch (RuntimeException e) {
+				days = 0;
+			}
+			return ((days * 24 + hour) * 60 + minute) * 60000L + second *
+				1000L + millisecond;
+		}
+	}
+}
\ No newline at end of file
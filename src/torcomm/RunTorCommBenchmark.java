@@ -0,0 +1,419 @@
+package torcomm;
+
+import torcomm.protocol.*;
+import torcomm.stats.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * This class is an application interface that benchmarks the whole stack end
+ * to end, so that a change that makes sessions slower is caught before it is
+ * merged. Every scenario starts a {@link TorCommServer TorCommServer} in this
+ * JVM at a free port and runs {@link TorCommClient TorCommClient}s against it
+ * over the loopback interface, without going through the Tor proxy, so that
+ * the benchmark runs offline on a single host. The scenarios are:
+ * <ul>
+ * 	<li> <i>pingpong</i>: clients waiting for every reply before sending the
+ * next cell;
+ * 	<li> <i>pipelined</i>: clients keeping a window of cells in flight;
+ * 	<li> <i>idle</i>: many sessions sending a cell every few hundred
+ * milliseconds;
+ * 	<li> <i>bulk</i>: clients sending large frames to a server that echoes
+ * them.
+ * </ul>
+ * Each scenario is run once to warm the JVM up, and its results are
+ * discarded, before being run again to be measured. The throughput, the
+ * round trip time percentiles, the CPU time and the bytes allocated per cell,
+ * by the clients and the server together, the allocation rate and the peak
+ * number of threads of every scenario are gathered in a {@link
+ * torcomm.stats.Baseline Baseline}.
+ *
+ * <p> In <i>record</i> mode, the measurements are written to the baseline
+ * file. In <i>check</i> mode, they are compared with those of the baseline
+ * file and the run fails if any metric regressed beyond its threshold, after
+ * writing the measurements next to the report, to <i>&lt;file
+ * name&gt;.baseline</i>, so that they can replace the baseline if the
+ * regression is accepted. Differences between the environment of the baseline
+ * and the current one, which may make them not comparable, are reported but
+ * do not fail the run.
+ *
+ * <p> The benchmark is set up by the following system properties:
+ * <ul>
+ * 	<li> <i>torcomm.bench.clients</i>: the clients of the <i>pingpong</i>,
+ * <i>pipelined</i> and <i>bulk</i> scenarios, 4 by default;
+ * 	<li> <i>torcomm.bench.window</i>: the cells in flight of the
+ * <i>pipelined</i> scenario, 16 by default;
+ * 	<li> <i>torcomm.bench.idle</i>: the sessions of the <i>idle</i> scenario,
+ * 200 by default;
+ * 	<li> <i>torcomm.bench.bulk</i>: the size in bytes of the frames of the
+ * <i>bulk</i> scenario, 16384 by default;
+ * 	<li> <i>torcomm.bench.duration</i>: the seconds each scenario is
+ * measured, 10 by default;
+ * 	<li> <i>torcomm.bench.warmup</i>: the seconds each scenario is run
+ * before, 3 by default;
+ * 	<li> <i>torcomm.bench.label</i>: the label of the measurements, such as
+ * the revision of the code;
+ * 	<li> <i>torcomm.bench.threshold.&lt;metric&gt;</i>: the threshold of a
+ * metric, as a fraction of the baseline's value, or <i>off</i> so that it is
+ * not compared. By default, the throughput may fall by 15%, the median round
+ * trip time grow by 25%, the 99th percentile by 50%, the CPU time per cell by
+ * 20%, the bytes per cell by 10% and the peak number of threads by 10%, while
+ * the 90th percentile and the allocation rate are not compared.
+ * </ul>
+ * The transport and the write batching are those of {@link
+ * RunTorCommClient RunTorCommClient}, that is, set up by the system properties
+ * <i>torcomm.transport</i>, <i>torcomm.batch.bytes</i> and
+ * <i>torcomm.batch.micros</i>, and are recorded in the baseline's
+ * environment together with the settings above.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunTorCommBenchmark extends RunTorComm
+{
+	
+	private static final String[] SCENARIOS = {"pingpong", "pipelined",
+		"idle", "bulk"};
+	private static final String[][] THRESHOLDS = {{Baseline.THROUGHPUT,
+		"0.15"}, {Baseline.P50, "0.25"}, {Baseline.P99, "0.50"}, {Baseline.CPU,
+		"0.20"}, {Baseline.ALLOCATION, "0.10"}, {Baseline.THREADS, "0.10"}};
+	private static final ThreadMXBean THREADS = ManagementFactory.
+		getThreadMXBean();
+	
+	private static TorCommTransport.Type transportType;
+	private static WriteBatcher batcher;
+	private static int clients;
+	private static int window;
+	private static int idle;
+	private static int bulk;
+	private static int duration;
+	private static int warmUp;
+	private static Baseline current;
+	
+	private static boolean check;
+	private static String baselineName;
+	private static String fileName;
+	private static List<String> scenarios;
+	
+	/**
+	 * Runs every scenario and records or checks their measurements.
+	 *
+	 * @param args	an array of string that holds the following parameters at
+	 * the given order in which they are being listed:
+	 * <ol>
+	 * 	<li> mode		<i>record</i>, to write the measurements to the baseline
+	 * file, or <i>check</i>, to compare them with those of the baseline file.
+	 * 	<li> baseline	the baseline file.
+	 * 	<li> file name	the file name of the report.
+	 * 	<li> scenarios	optional, the scenarios to be run, separated by commas,
+	 * which are all of them by default.
+	 * </ol>
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			setup(args);
+			printMessage("Initializing benchmark.");
+			printArgs();
+			Baseline baseline = check ? Baseline.load(new File(baselineName)) :
+				null;
+			for (String scenario : scenarios)
+				run(scenario);
+			if (check)
+				check(baseline);
+			else
+			{
+				current.store(new File(baselineName));
+				printMessage("Baseline written to " + baselineName + ".");
+			}
+			printMessage("End of benchmark.");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * Prepares the class for execution and creates the report file with the
+	 * name given in the parameters.
+	 *
+	 * @param args			the <i>args</i> array given in the {@link #main
+	 * main(String[] args)} method.
+	 * @throws IOException	if there was any error while creating the report
+	 * file.
+	 */
+	private static void setup(String[] args) throws IOException
+	{
+		setArgs(args);
+		try
+		{
+			checkArgs();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid argument: " + e.getMessage(),
+				e);
+		}
+		setClassVars();
+		File outFile = new File(fileName);
+		outFile.createNewFile();
+		setOutput(new PrintWriter(new FileWriter(outFile)));
+		setArgsDescr(new String[]{"mode", "baseline", "file name",
+			"scenarios"});
+		try
+		{
+			clients = Integer.parseInt(System.getProperty(
+				"torcomm.bench.clients", "4"));
+			window = Integer.parseInt(System.getProperty("torcomm.bench.window",
+				"16"));
+			idle = Integer.parseInt(System.getProperty("torcomm.bench.idle",
+				"200"));
+			bulk = Integer.parseInt(System.getProperty("torcomm.bench.bulk",
+				"16384"));
+			duration = Integer.parseInt(System.getProperty(
+				"torcomm.bench.duration", "10"));
+			warmUp = Integer.parseInt(System.getProperty("torcomm.bench.warmup",
+				"3"));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid benchmark property: " + e.
+				getMessage(), e);
+		}
+		transportType = getTransportType();
+		batcher = getWriteBatcher();
+		current = new Baseline();
+		current.setLabel(System.getProperty("torcomm.bench.label"));
+		current.setEnvironment("transport", transportType.toString());
+		current.setEnvironment("batching", batcher == null ? "off" : System.
+			getProperty("torcomm.batch.bytes", String.valueOf(WriteBatcher.
+			DEFAULT_MAX_BYTES)) + " bytes, " + System.getProperty(
+			"torcomm.batch.micros", String.valueOf(WriteBatcher.
+			DEFAULT_MAX_MICROS)) + " us");
+		current.setEnvironment("clients", String.valueOf(clients));
+		current.setEnvironment("window", String.valueOf(window));
+		current.setEnvironment("idle", String.valueOf(idle));
+		current.setEnvironment("bulk", String.valueOf(bulk));
+		current.setEnvironment("duration", String.valueOf(duration));
+	}
+	
+	/**
+	 * Checks the validity of the given arguments as specified in the
+	 * documentation of the {@link #main main} method.
+	 */
+	private static void checkArgs()
+	{
+		if (getArgs().length < 3)
+			throw new IndexOutOfBoundsException("Expected at least 3 " +
+				"arguments.");
+		if (!getArgs()[0].equals("record") && !getArgs()[0].equals("check"))
+			throw new IllegalArgumentException("Unknown mode " + getArgs()[0]);
+		if (getArgs().length > 3)
+			for (String scenario : getArgs()[3].split(","))
+				if (!Arrays.asList(SCENARIOS).contains(scenario))
+					throw new IllegalArgumentException("Unknown scenario " +
+						scenario);
+	}
+	
+	/**
+	 * Sets up the class fields according to the given <i>args</i> in the {@link
+	 * #main main(String[] args)} method.
+	 */
+	private static void setClassVars()
+	{
+		check = getArgs()[0].equals("check");
+		baselineName = getArgs()[1];
+		fileName = getArgs()[2];
+		scenarios = Arrays.asList(getArgs().length > 3 ? getArgs()[3].split(
+			",") : SCENARIOS);
+	}
+	
+	/**
+	 * Warms a scenario up and measures it, recording its measurements.
+	 *
+	 * @param scenario		the scenario.
+	 * @throws Exception	if the server could not be started, or if any
+	 * session failed.
+	 */
+	private static void run(String scenario) throws Exception
+	{
+		TorCommServer.Builder builder = TorCommServer.builder(0).transport(
+			transportType).costMeter(new CostMeter(CostMeter.DEFAULT_EVERY)).
+			writeBatching(batcher);
+		if (scenario.equals("bulk"))
+			builder.echo(false);
+		try (TorCommServer server = builder.build())
+		{
+			server.start();
+			printMessage("Warming " + scenario + " up for " + warmUp +
+				" seconds.");
+			if (warmUp > 0)
+				exchange(scenario, server.getPort(), warmUp);
+			while (server.getSessionCount() > 0)
+				Thread.sleep(10);
+			long serverCpu = server.getCosts().getCpuTime();
+			long serverAllocated = server.getCosts().getAllocatedBytes();
+			printMessage("Measuring " + scenario + " for " + duration +
+				" seconds.");
+			THREADS.resetPeakThreadCount();
+			long begin = System.nanoTime();
+			RunResult result = exchange(scenario, server.getPort(), duration);
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			int threads = THREADS.getPeakThreadCount();
+			while (server.getSessionCount() > 0)
+				Thread.sleep(10);
+			if (result.getFailures() > 0 || result.getCells() == 0)
+				throw new IOException(result.getFailures() + " sessions of " +
+					scenario + " failed.");
+			long cpu = result.getCpuTime() + server.getCosts().getCpuTime() -
+				serverCpu;
+			long allocated = result.getAllocatedBytes() + server.getCosts().
+				getAllocatedBytes() - serverAllocated;
+			LatencyHistogram roundTrip = result.getRoundTrip();
+			current.record(scenario, Baseline.THROUGHPUT, result.getCells() /
+				seconds);
+			current.record(scenario, Baseline.P50, roundTrip.
+				getValueAtPercentile(50));
+			current.record(scenario, Baseline.P90, roundTrip.
+				getValueAtPercentile(90));
+			current.record(scenario, Baseline.P99, roundTrip.
+				getValueAtPercentile(99));
+			current.record(scenario, Baseline.CPU, (double)cpu / result.
+				getCells());
+			current.record(scenario, Baseline.ALLOCATION, (double)allocated /
+				result.getCells());
+			current.record(scenario, Baseline.ALLOCATION_RATE, allocated /
+				1048576.0 / seconds);
+			current.record(scenario, Baseline.THREADS, threads);
+			printMessage(result.toString());
+			printMessage("Server costs: " + server.getCosts());
+			printMessage(scenario + ": " + current.describe(scenario));
+		}
+	}
+	
+	/**
+	 * Runs the clients of a scenario against the given port and waits until
+	 * they are over.
+	 *
+	 * @param scenario		the scenario.
+	 * @param port			the server's port.
+	 * @param seconds		the duration of every session, in seconds.
+	 * @return				the results of every client, added up.
+	 * @throws IOException	if a client could not be started.
+	 * @throws InterruptedException	if the calling thread is interrupted.
+	 */
+	private static RunResult exchange(String scenario, int port, int seconds)
+		throws IOException, InterruptedException
+	{
+		TorCommWorkload workload = null;
+		int count = clients;
+		if (scenario.equals("idle"))
+		{
+			workload = new TorCommWorkload(1);
+			workload.setSessions(idle);
+			workload.addPhase(new TorCommWorkload.Phase("idle", Integer.
+				MAX_VALUE, TorCommWorkload.Distribution.constant(1),
+				TorCommWorkload.Distribution.parse("uniform:200:300"),
+				TorCommWorkload.Distribution.constant(0)));
+			count = idle;
+		}
+		else if (scenario.equals("bulk"))
+		{
+			workload = new TorCommWorkload(1);
+			workload.setSessions(clients);
+			workload.addPhase(new TorCommWorkload.Phase("bulk", Integer.
+				MAX_VALUE, TorCommWorkload.Distribution.constant(1),
+				TorCommWorkload.Distribution.constant(0), TorCommWorkload.
+				Distribution.constant(bulk)));
+		}
+		List<TorCommClient> started = new ArrayList<TorCommClient>();
+		RunResult result = new RunResult(scenario);
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				TorCommClient.Builder builder = TorCommClient.builder(
+					"127.0.0.1", port).name(scenario + " " + i).transport(
+					transportType).duration(seconds).costMeter(new CostMeter(
+					CostMeter.DEFAULT_EVERY)).writeBatching(batcher);
+				if (scenario.equals("pipelined"))
+					builder.pipelining(window);
+				if (workload != null)
+					builder.workload(workload, i);
+				TorCommClient client = builder.build();
+				client.start();
+				started.add(client);
+			}
+			for (TorCommClient client : started)
+				result.add(client.join());
+		} finally {
+			for (TorCommClient client : started)
+				client.close();
+		}
+		return result;
+	}
+	
+	/**
+	 * Compares the measurements with those of the baseline, and writes them
+	 * next to the report.
+	 *
+	 * @param baseline		the baseline.
+	 * @throws IOException	if the measurements could not be written, or if any
+	 * metric regressed beyond its threshold.
+	 */
+	private static void check(Baseline baseline) throws IOException
+	{
+		for (String difference : current.compareEnvironment(baseline))
+			printMessage("Environment differs from the baseline's, " +
+				difference);
+		for (String scenario : scenarios)
+			if (!baseline.getScenarios().contains(scenario))
+				printMessage("Baseline holds no measurement of " + scenario +
+					".");
+		current.store(new File(fileName + ".baseline"));
+		printMessage("Measurements written to " + fileName + ".baseline.");
+		List<String> regressions = current.compare(baseline, getThresholds());
+		for (String regression : regressions)
+			printMessage("Regression of " + regression);
+		if (!regressions.isEmpty())
+			throw new IOException(regressions.size() + " metrics regressed " +
+				"against the baseline of " + baselineName + (baseline.
+				getLabel() == null ? "." : ", " + baseline.getLabel() + "."));
+		printMessage("No metric regressed against the baseline" + (baseline.
+			getLabel() == null ? "." : " of " + baseline.getLabel() + "."));
+	}
+	
+	/**
+	 * Retrieves the threshold of every metric compared, as set up by the
+	 * system properties <i>torcomm.bench.threshold.&lt;metric&gt;</i> or by
+	 * default.
+	 *
+	 * @return	the thresholds, by metric.
+	 */
+	private static Map<String, Double> getThresholds()
+	{
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		for (String[] threshold : THRESHOLDS)
+			settings.put(threshold[0], threshold[1]);
+		for (String metric : Baseline.METRICS)
+		{
+			String value = System.getProperty("torcomm.bench.threshold." +
+				metric);
+			if (value != null)
+				settings.put(metric, value);
+		}
+		Map<String, Double> thresholds = new LinkedHashMap<String, Double>();
+		try
+		{
+			for (Map.Entry<String, String> setting : settings.entrySet())
+				if (!setting.getValue().equals("off"))
+					thresholds.put(setting.getKey(), Double.parseDouble(setting.
+						getValue()));
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid threshold property: " + e.
+				getMessage(), e);
+		}
+		return thresholds;
+	}
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package torcomm;
 
 import torcomm.protocol.*;
+import torcomm.stats.*;
 import java.net.*;
 import java.io.*;
 import java.nio.channels.ClosedByInterruptException;
@@ -18,17 +19,20 @@ import java.nio.channels.ClosedByInterruptException;
 public class RunTorCommClient extends RunTorComm
 {
 	
+	private static final int PIPE_SIZE = 64 * 1024;
+	
 	private static Proxy orProxy;
-	private static Socket connection;
 	private static TorCommSession commSession;
 	private static Thread comm;
 	private static BufferedReader in;
+	private static IntervalRecorder intervals;
 	
 	private static String hostname;
 	private static int port;
 	private static int orPort;
 	private static int duration;
 	private static String fileName;
+	private static TorCommWorkload workload;
 	
 	/**
 	 * Initializes the client interface application, thus taking the arguments
@@ -49,8 +53,35 @@ public class RunTorCommClient extends RunTorComm
 	 * and cannot be more than one day).
 	 *  <li> file name	the file name of the log. Please, input a file name that
 	 * is valid to the OS in which this program is being run or else unexpected
-	 * errors might occur.
+	 * errors might occur. A summary of every second of the communication is
+	 * also written, as CSV, to a file whose name is the given one followed by
+	 * <i>.intervals.csv</i>.
+	 *  <li> workload	(optional) a {@link torcomm.protocol.TorCommWorkload
+	 * TorCommWorkload} file that shall be replayed, one session after another,
+	 * instead of exchanging cells continuously. The duration still bounds each
+	 * session.
 	 * </ol>
+	 * At high cell rates, the cells that are logged can be sampled through the
+	 * system properties described in {@link RunTorComm#getLogSampler()
+	 * getLogSampler()}, and the first cells can be left out of the statistics
+	 * through those described in {@link RunTorComm#getWarmUp() getWarmUp()}.
+	 * The CPU time and the bytes allocated by the session are written to the
+	 * log if set up as described in {@link RunTorComm#getCostMeter()
+	 * getCostMeter()}, and the cells sent while replies are still to be
+	 * received are coalesced if set up as described in {@link
+	 * RunTorComm#getWriteBatcher() getWriteBatcher()}. The transport is chosen
+	 * through the system property described in {@link
+	 * RunTorComm#getTransportType() getTransportType()}; only the blocking and
+	 * TLS transports can connect through the proxy. The capabilities offered to
+	 * the server are described in {@link RunTorComm#getClientCapabilities()
+	 * getClientCapabilities()}. Through a server running as a switchboard, the
+	 * session may take the ID given by the system property <i>torcomm.id</i>,
+	 * address its cells to the session given by <i>torcomm.peer</i>, or, if
+	 * <i>torcomm.respond</i> is <i>true</i>, answer the cells addressed to it
+	 * instead of sending its own. If the system property <i>torcomm.resume</i>
+	 * is set, the session is resumed over a new connection when its connection
+	 * fails, such as when its Tor circuit is torn down, trying up to that
+	 * number of times.
 	 */
 	public static void main(String[] args)
 	{
@@ -59,20 +90,32 @@ public class RunTorCommClient extends RunTorComm
 			setup(args);
 			printMessage("Initializing client.");
 			printArgs();
-			printMessage("Connecting SOCKET to OR proxy.");
-			connectToProxy();
-			printMessage("Setting up communication session.");
-			setUpCommSession();
-			printMessage("Performing handshake.");
-			commSession.clientHandshake();
-			printMessage("Initializing communications.");
-			comm = new Thread(commSession.CLIENT_COMMUNICATE);
-			comm.setUncaughtExceptionHandler(discHandler);
-			comm.start();
-			while (comm.isAlive())
+			int sessions = workload == null ? 1 : workload.getSessions();
+			for (int session = 0; session < sessions; session++)
 			{
-				String inMsg = in.readLine();
-				printMessage(inMsg);
+				printMessage("Connecting SOCKET to OR proxy.");
+				connectToProxy();
+				printMessage("Setting up communication session.");
+				setUpCommSession();
+				if (workload != null)
+				{
+					printMessage("Replaying workload session " + session + " of " +
+						sessions + ".");
+					commSession.setWorkload(workload, session);
+				}
+				printMessage("Performing handshake.");
+				commSession.clientHandshake();
+				printMessage("Initializing communications.");
+				comm = new Thread(Boolean.getBoolean("torcomm.respond") ?
+					commSession.PEER_RESPOND : commSession.CLIENT_COMMUNICATE);
+				comm.setUncaughtExceptionHandler(discHandler);
+				comm.start();
+				String inMsg;
+				while ((inMsg = in.readLine()) != null)
+					printMessage(inMsg);
+				comm.join();
+				commSession.close();
+				in.close();
 			}
 			printMessage("End of connection.");
 		} catch (Exception e) {
@@ -81,6 +124,8 @@ public class RunTorCommClient extends RunTorComm
 			try
 			{
 				close();
+				if (intervals != null)
+					intervals.close();
 				if (commSession != null)
 					commSession.close();
 				if (in != null)
@@ -112,11 +157,18 @@ public class RunTorCommClient extends RunTorComm
 				e);
 		}
 		setClassVars();
+		loadWorkload();
 		File outFile = new File(fileName);
 		outFile.createNewFile();
 		setOutput(new PrintWriter(new FileWriter(outFile)));
-		setArgsDescr(new String[]{"hostname", "port", "ORPort", "duration", 
-			"file name"});
+		intervals = new IntervalRecorder(new File(fileName + ".intervals.csv"),
+			1000);
+		if (args.length > 5)
+			setArgsDescr(new String[]{"hostname", "port", "ORPort", "duration", 
+				"file name", "workload"});
+		else
+			setArgsDescr(new String[]{"hostname", "port", "ORPort", "duration", 
+				"file name"});
 	}
 	
 	/**
@@ -168,16 +220,27 @@ public class RunTorCommClient extends RunTorComm
 	}
 	
 	/**
-	 * Connects to the Tor proxy if requested.
+	 * Loads the workload file given in the <i>args</i>, if any.
+	 *
+	 * @throws IOException	if the workload file could not be read or is
+	 * invalid.
+	 */
+	private static void loadWorkload() throws IOException
+	{
+		if (getArgs().length > 5)
+			workload = TorCommWorkload.load(new File(getArgs()[5]));
+	}
+	
+	/**
+	 * Sets up the Tor proxy if requested.
 	 */
 	private static void connectToProxy()
 	{
 		SocketAddress orSocket = new InetSocketAddress("127.0.0.1", 9050);
-		orProxy = new Proxy(Proxy.Type.SOCKS, orSocket);
 		if (orPort > 0)
-			connection = new Socket(orProxy);
+			orProxy = new Proxy(Proxy.Type.SOCKS, orSocket);
 		else
-			connection = new Socket();
+			orProxy = null;
 	}
 	
 	/**
@@ -188,23 +251,43 @@ public class RunTorCommClient extends RunTorComm
 	 */
 	private static void setUpCommSession() throws IOException
 	{
+		TorCommTransport transport;
 		try
 		{
-			connection.connect(new InetSocketAddress(hostname, port));
+			transport = getTransportType().connect(new InetSocketAddress(
+				hostname, port), orProxy);
 		} catch (IOException e) {
 			throw new IOException("Error when attempting to connect to " +
 				"port " + port, e);
 		}
+		commSession = new TorCommSession(transport, duration);
+		commSession.setTraceStore(new CellTraceStore());
+		commSession.setIntervalRecorder(intervals);
+		commSession.setLogSampler(getLogSampler());
+		commSession.setWarmUp(getWarmUp());
+		commSession.setCostMeter(getCostMeter());
+		commSession.setWriteBatcher(getWriteBatcher());
+		commSession.setOfferedCapabilities(getClientCapabilities());
+		int attempts = Integer.getInteger("torcomm.resume", 0);
+		if (attempts > 0)
+			commSession.setReconnector(new TorCommSession.Reconnector()
+			{
+				public TorCommTransport reconnect() throws IOException
+				{
+					return getTransportType().connect(new InetSocketAddress(
+						hostname, port), orProxy);
+				}
+			}, attempts);
+		if (System.getProperty("torcomm.id") != null)
+			commSession.setSessionID(Short.parseShort(System.getProperty(
+				"torcomm.id")));
+		if (System.getProperty("torcomm.peer") != null)
+			commSession.setPeer(Short.parseShort(System.getProperty(
+				"torcomm.peer")));
 		try
 		{
-			commSession = new TorCommSession(connection, duration);
-		} catch (IOException e) {
-			throw new IOException("Error when acquiring I/O stream from socket",
-				e);
-		}
-		try
-		{
-			PipedInputStream commSessionInput = new PipedInputStream();
+			PipedInputStream commSessionInput = new PipedInputStream(
+				PIPE_SIZE);
 			commSession.setPipedOutputStream(new PipedOutputStream(
 				commSessionInput));
 			in = new BufferedReader(new InputStreamReader(commSessionInput));
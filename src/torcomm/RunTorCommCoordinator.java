@@ -0,0 +1,207 @@
+package torcomm;
+
+import torcomm.stats.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * This class is the coordinator of an experiment that runs clients on many
+ * hosts at once. Each host runs a {@link RunTorCommAgent RunTorCommAgent},
+ * which connects to the coordinator and estimates the offset between its clock
+ * and the coordinator's clock. Once every agent is connected, the coordinator
+ * gives all of them the same start instant, in its own clock, so that every
+ * client starts at the same moment no matter how the host clocks disagree.
+ * When the agents are done, they send back their counters and latency
+ * histograms, which are merged into a single report.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunTorCommCoordinator extends RunTorComm
+{
+	
+	/** The number of clock samples each agent takes before the start. */
+	static final int SYNC_ROUNDS = 8;
+	
+	private static ServerSocket servSocket;
+	private static List<Socket> agents;
+	
+	private static int port;
+	private static int agentCount;
+	private static int startDelay;
+	private static String fileName;
+	
+	/**
+	 * Waits for the agents, starts them and writes the combined report.
+	 *
+	 * @param args	an array of string that holds the following parameters at
+	 * the given order in which they are being listed:
+	 * <ol>
+	 * 	<li> port		the port at which agents connect.
+	 * 	<li> agents		the number of agents that take part in the experiment.
+	 * 	<li> start delay	the number of seconds between the moment every agent
+	 * is connected and the start of the clients. It shall be long enough for the
+	 * start instant to reach every agent.
+	 * 	<li> file name	the file name of the report.
+	 * </ol>
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			setup(args);
+			printMessage("Initializing coordinator.");
+			printArgs();
+			acceptAgents();
+			long startAt = System.currentTimeMillis() + startDelay * 1000L;
+			printMessage("Starting every agent at " + startAt + ".");
+			for (int i = 0; i < agents.size(); i++)
+			{
+				DataOutputStream out = new DataOutputStream(agents.get(i).
+					getOutputStream());
+				out.writeLong(startAt);
+				out.writeInt(i);
+				out.flush();
+			}
+			collectResults(startAt);
+			printMessage("End of experiment.");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			try
+			{
+				close();
+				if (agents != null)
+					for (Socket agent : agents)
+						agent.close();
+				if (servSocket != null)
+					servSocket.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Prepares the class for execution and creates the report file with the
+	 * name given in the parameters.
+	 *
+	 * @param args			the <i>args</i> array given in the {@link #main
+	 * main(String[] args)} method.
+	 * @throws IOException	if there was any error while creating the report.
+	 */
+	private static void setup(String[] args) throws IOException
+	{
+		setArgs(args);
+		try
+		{
+			checkArgs();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid argument: " + e.getMessage(),
+				e);
+		}
+		setClassVars();
+		File outFile = new File(fileName);
+		outFile.createNewFile();
+		setOutput(new PrintWriter(new FileWriter(outFile)));
+		setArgsDescr(new String[]{"port", "agents", "start delay",
+			"file name"});
+	}
+	
+	/**
+	 * Checks the validity of the given arguments as specified in the
+	 * documentation of the {@link #main main} method.
+	 */
+	private static void checkArgs()
+	{
+		if (getArgs().length < 4)
+			throw new IndexOutOfBoundsException("Expected 4 arguments.");
+		try
+		{
+			int port = Integer.parseInt(getArgs()[0]);
+			if (port > 65535 || port < 0)
+				throw new IndexOutOfBoundsException("Port value out of range");
+			if (Integer.parseInt(getArgs()[1]) <= 0)
+				throw new IndexOutOfBoundsException("Agent count must be " +
+					"positive.");
+			if (Integer.parseInt(getArgs()[2]) < 0)
+				throw new IndexOutOfBoundsException("Start delay must not be " +
+					"negative.");
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid number: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Sets up the class fields according to the given <i>args</i> in the {@link
+	 * #main main(String[] args)} method.
+	 */
+	private static void setClassVars()
+	{
+		port = Integer.parseInt(getArgs()[0]);
+		agentCount = Integer.parseInt(getArgs()[1]);
+		startDelay = Integer.parseInt(getArgs()[2]);
+		fileName = getArgs()[3];
+	}
+	
+	/**
+	 * Accepts every agent and answers its clock samples with the coordinator's
+	 * time.
+	 *
+	 * @throws IOException	if there was an error while accepting an agent.
+	 */
+	private static void acceptAgents() throws IOException
+	{
+		servSocket = new ServerSocket(port);
+		agents = new ArrayList<Socket>();
+		while (agents.size() < agentCount)
+		{
+			printMessage("Waiting for agent " + (agents.size() + 1) + " of " +
+				agentCount + ".");
+			Socket agent = servSocket.accept();
+			agent.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(agent.getInputStream());
+			DataOutputStream out = new DataOutputStream(agent.
+				getOutputStream());
+			String name = in.readUTF();
+			for (int i = 0; i < SYNC_ROUNDS; i++)
+			{
+				in.readLong();
+				out.writeLong(System.currentTimeMillis());
+				out.flush();
+			}
+			printMessage("Agent " + name + " connected from " +
+				agent.getInetAddress() + ". Clock offset: " + in.readLong() +
+				" ms.");
+			agents.add(agent);
+		}
+	}
+	
+	/**
+	 * Waits for the results of every agent and prints out each of them
+	 * followed by their combination.
+	 *
+	 * @param startAt		the start instant given to the agents.
+	 * @throws IOException	if the results of an agent could not be read.
+	 */
+	private static void collectResults(long startAt) throws IOException
+	{
+		RunResult total = new RunResult("All agents");
+		long maxSkew = 0;
+		for (Socket agent : agents)
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				agent.getInputStream()));
+			long skew = in.readLong() - startAt;
+			maxSkew = Math.max(maxSkew, Math.abs(skew));
+			RunResult result = RunResult.readFrom(in);
+			printMessage("Started " + skew + " ms after the start instant. " +
+				result);
+			total.add(result);
+		}
+		printMessage("Largest start skew: " + maxSkew + " ms.");
+		printMessage(total.toString());
+	}
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package torcomm;
 
 import torcomm.protocol.*;
+import torcomm.stats.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
@@ -21,15 +22,54 @@ public class RunTorCommServer extends RunTorComm
 	
 	private static Thread serverThread;
 	private static Server server;
+	private static KeepAliveReactor reactor;
+	private static TorCommSwitchboard switchboard;
+	private static AdmissionControl admission;
+	private static ResumptionRegistry resumption;
+	private static CostMeter costSettings;
+	private static CostMeter costTotals;
+	private static WriteBatcher batcherSettings;
+	private static WriteBatcher batchingTotals;
+	private static IntervalRecorder intervals;
 	private static int port;
+	private static int idleTimeout;
+	private static boolean echo;
+	private static boolean echoTimestamps;
 	private static boolean listen;
 	
 	/**
 	 * Initializes the application, thus connecting to the specified server at
 	 * the specified port through the 
 	 * 
-	 * @param args	An array of one string that shall provide the port through
-	 * which the server will accept client TCP connections.
+	 * @param args	An array of strings whose first element shall provide the
+	 * port through which the server will accept client TCP connections. It may
+	 * be followed by <i>keepalive</i> and an idle timeout in seconds, in which
+	 * case every session is held by a single {@link 
+	 * torcomm.protocol.KeepAliveReactor KeepAliveReactor} thread and answers
+	 * cells as heartbeats without logging them, in turns of the number of
+	 * cells given by the system property <i>torcomm.fair.quantum</i>, times
+	 * the session's weight, as given by <i>torcomm.fair.weights</i> and
+	 * described in {@link #getWeigher() getWeigher()}. It may instead be followed by
+	 * <i>echo</i>, in which case every session reflects the frames it receives
+	 * as they are, and optionally by <i>timestamps</i>, in which case the times
+	 * at which each frame was received and sent are appended to it, as in
+	 * {@link torcomm.protocol.TorCommSession#setEchoMode(boolean timestamps)
+	 * TorCommSession.setEchoMode(boolean timestamps)}. It may also be followed
+	 * by <i>switchboard</i>, in which case every cell is forwarded to the
+	 * session it is addressed to by a {@link
+	 * torcomm.protocol.TorCommSwitchboard TorCommSwitchboard}. Except in
+	 * keep-alive mode, the connections served can be limited through the
+	 * system properties described in {@link RunTorComm#getAdmissionControl()
+	 * getAdmissionControl()}, in which case the others are rejected in the
+	 * handshake. Except in keep-alive and switchboard modes, clients may
+	 * resume their sessions over a new connection when theirs fails, within
+	 * the grace period given in seconds by the system property
+	 * <i>torcomm.resume.grace</i>, which is 30 seconds by default. The CPU
+	 * time and the bytes allocated by every session are written to its log,
+	 * and added up, if set up as described in {@link RunTorComm#getCostMeter()
+	 * getCostMeter()}. Except in keep-alive and switchboard modes, the replies
+	 * of every session are coalesced under load if set up as described in
+	 * {@link RunTorComm#getWriteBatcher() getWriteBatcher()}.
 	 */
 	public static void main(String[] args)
 	{
@@ -43,10 +83,37 @@ public class RunTorCommServer extends RunTorComm
 			BufferedReader reader = new BufferedReader(new 
 				InputStreamReader(System.in));
 			printMessage("Enter q to close server.");
+			if (reactor != null)
+				printMessage("Enter s to measure idle sessions.");
+			else if (switchboard != null)
+				printMessage("Enter s to count forwarded cells.");
+			else
+				printMessage("Enter s to count admitted and resumed sessions.");
 			String in = reader.readLine();
 			while (!in.contentEquals("q"))
 			{
-				printMessage("Invalid input.");
+				if (reactor != null && in.contentEquals("s"))
+				{
+					printMessage(reactor.getStatus());
+					printServiceShares();
+				}
+				else if (in.contentEquals("s"))
+				{
+					if (switchboard != null)
+						printSwitchboardStatus();
+					if (admission != null)
+						printMessage("Admission: " + admission.getStatus() + ".");
+					if (resumption != null)
+						printMessage("Resumption: " + resumption.getStatus() + ".");
+					if (costTotals != null)
+						printMessage("Cost of the sessions over: " +
+							costTotals);
+					if (batchingTotals != null)
+						printMessage("Write batching of the sessions over: " +
+							batchingTotals);
+				}
+				else
+					printMessage("Invalid input.");
 				printMessage("Enter q to close server.");
 				in = reader.readLine();
 			}
@@ -56,9 +123,36 @@ public class RunTorCommServer extends RunTorComm
 			} finally {
 				try
 				{
-					server.servSocket.close();
+					if (reactor != null)
+					{
+						printMessage(reactor.getStatus());
+						printServiceShares();
+						reactor.close();
+					}
+					else
+					{
+						listen = false;
+						server.listener.close();
+					}
+					if (switchboard != null)
+					{
+						printSwitchboardStatus();
+						switchboard.close();
+					}
+					if (admission != null)
+						printMessage("Admission: " + admission.getStatus() + ".");
+					if (resumption != null)
+						printMessage("Resumption: " + resumption.getStatus() + ".");
+					if (costTotals != null)
+						printMessage("Cost of the sessions over: " +
+							costTotals);
+					if (batchingTotals != null)
+						printMessage("Write batching of the sessions over: " +
+							batchingTotals);
 					serverThread.interrupt();
 					serverThread.join();
+					if (intervals != null)
+						intervals.close();
 					printMessage("Server successfully closed.");
 					close();
 				} catch (Exception e) {
@@ -103,7 +197,14 @@ public class RunTorCommServer extends RunTorComm
 				fileName + ".", e);
 		}
 		setOutput(new PrintWriter(new FileWriter(mainOut)));
-		setArgsDescr(new String[]{"server port"});
+		if (args.length > 1 && args[1].equals("echo"))
+			setArgsDescr(new String[]{"server port", "mode", "timestamps"});
+		else if (args.length > 1 && args[1].equals("switchboard"))
+			setArgsDescr(new String[]{"server port", "mode"});
+		else if (args.length > 1)
+			setArgsDescr(new String[]{"server port", "mode", "idle timeout"});
+		else
+			setArgsDescr(new String[]{"server port"});
 	}
 	
 	/**
@@ -124,6 +225,33 @@ public class RunTorCommServer extends RunTorComm
 			throw new NumberFormatException("Port value not contained in [1, " +
 				"65535].");
 		}
+		// Check args[1] and args[2] - Mode and idle timeout or timestamps
+		if (getArgs().length > 1 && getArgs()[1].equals("echo"))
+		{
+			if (getArgs().length > 2 && !getArgs()[2].equals("timestamps"))
+				throw new IllegalArgumentException("Expected echo optionally " +
+					"followed by timestamps.");
+		}
+		else if (getArgs().length > 1 && getArgs()[1].equals("switchboard"))
+		{
+			if (getArgs().length > 2)
+				throw new IllegalArgumentException("Expected nothing after " +
+					"switchboard.");
+		}
+		else if (getArgs().length > 1)
+		{
+			if (!getArgs()[1].equals("keepalive") || getArgs().length < 3)
+				throw new IllegalArgumentException("Expected keepalive followed " +
+					"by the idle timeout.");
+			try
+			{
+				if (Integer.parseInt(getArgs()[2]) <= 0)
+					throw new IndexOutOfBoundsException("Idle timeout must be " +
+						"positive.");
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Invalid idle timeout.");
+			}
+		}
 	}
 	
 	/**
@@ -133,11 +261,94 @@ public class RunTorCommServer extends RunTorComm
 	private static void setClassVars()
 	{
 		port = Integer.parseInt(getArgs()[0]);
+		echo = getArgs().length > 1 && getArgs()[1].equals("echo");
+		echoTimestamps = echo && getArgs().length > 2;
+		if (getArgs().length > 1 && getArgs()[1].equals("switchboard"))
+			switchboard = new TorCommSwitchboard();
+		else if (getArgs().length > 1 && !echo)
+			idleTimeout = Integer.parseInt(getArgs()[2]);
+		if (idleTimeout == 0)
+			admission = getAdmissionControl();
+		costSettings = getCostMeter();
+		if (costSettings != null)
+			costTotals = new CostMeter(costSettings);
+		batcherSettings = getWriteBatcher();
+		if (batcherSettings != null)
+			batchingTotals = new WriteBatcher(batcherSettings);
+		if (idleTimeout == 0 && switchboard == null)
+			resumption = new ResumptionRegistry(Math.round(Double.parseDouble(
+				System.getProperty("torcomm.resume.grace", "30")) * 1000));
 	}
 	
 	/**
-	 * Creates a {@link Server Server} thread that listens for client
-	 * connections.
+	 * Creates the weigher of the sessions of the keep-alive mode set up by
+	 * the system property <i>torcomm.fair.weights</i>, a comma-separated list
+	 * of client session IDs, or ranges of them, each followed by a colon and
+	 * the weight of their sessions, as in <i>7:4,1000-1999:2</i>. Sessions
+	 * that are not listed weigh 1.
+	 *
+	 * @return	the weigher, or <i>null</i> if the property is not set.
+	 */
+	private static KeepAliveReactor.Weigher getWeigher()
+	{
+		String weights = System.getProperty("torcomm.fair.weights");
+		if (weights == null)
+			return null;
+		final List<int[]> classes = new ArrayList<int[]>();
+		try
+		{
+			for (String entry : weights.split(","))
+			{
+				String[] parts = entry.trim().split(":");
+				String[] range = parts[0].split("-");
+				classes.add(new int[]{Integer.parseInt(range[0]), Integer.
+					parseInt(range[range.length - 1]), Integer.parseInt(parts[1])});
+			}
+		} catch (RuntimeException e) {
+			throw new RuntimeException("Invalid session weights: " + weights,
+				e);
+		}
+		return new KeepAliveReactor.Weigher()
+		{
+			public int weigh(short clientID, InetAddress address)
+			{
+				for (int[] weightClass : classes)
+					if (clientID >= weightClass[0] && clientID <= weightClass[1])
+						return weightClass[2];
+				return 1;
+			}
+		};
+	}
+	
+	/**
+	 * Prints out the share of the cells answered by the keep-alive reactor
+	 * that went to each of the sessions it served the most.
+	 */
+	private static void printServiceShares()
+	{
+		String shares = reactor.getServiceShares(10);
+		if (!shares.isEmpty())
+			printMessage("Service shares:\n" + shares);
+	}
+	
+	/**
+	 * Prints out the number of sessions connected to the switchboard and the
+	 * number of cells it forwarded, sent back, of which those whose receivers'
+	 * queues were full, and wrote.
+	 */
+	private static void printSwitchboardStatus()
+	{
+		printMessage("Switchboard: " + switchboard.getRouteCount() + " sessions, "
+			+ switchboard.getForwardedCount() + " cells forwarded, " +
+			switchboard.getBouncedCount() + " sent back (" + switchboard.
+			getOverflowCount() + " over full queues), " + switchboard.
+			getWriteCount() + " writes.");
+	}
+	
+	/**
+	 * Creates a {@link Server Server} thread, or a {@link 
+	 * torcomm.protocol.KeepAliveReactor KeepAliveReactor} thread in keep-alive
+	 * mode, that listens for client connections.
 	 *
 	 * @throws IOException	if there is an error when opening a socket at the
 	 * given argument port.
@@ -147,8 +358,21 @@ public class RunTorCommServer extends RunTorComm
 		try
 		{
 			listen = true;
-			server = new RunTorCommServer().new Server(port);
-			serverThread = new Thread(server);
+			if (idleTimeout > 0)
+			{
+				reactor = new KeepAliveReactor(port, idleTimeout);
+				reactor.setQuantum(Integer.getInteger("torcomm.fair.quantum",
+					KeepAliveReactor.DEFAULT_QUANTUM));
+				reactor.setWeigher(getWeigher());
+				serverThread = new Thread(reactor);
+			}
+			else
+			{
+				intervals = new IntervalRecorder(new File("output" + 
+					File.separator + "intervals.csv"), 1000);
+				server = new RunTorCommServer().new Server(port);
+				serverThread = new Thread(server);
+			}
 			serverThread.start();
 		} catch (IOException e) {
 			throw new IOException("Error when opening SOCKET at port " + port, 
@@ -159,23 +383,23 @@ public class RunTorCommServer extends RunTorComm
 	/**
 	 * A class capable of holding a thread that can listen for client
 	 * connections and start a communication with them through the {@link 
-	 * torcomm.protocol.TorCommSession TorCommSession} protocol.
+	 * torcomm.protocol.TorCommSession TorCommSession} protocol. Every admitted
+	 * connection performs its handshake and runs its session in a thread of
+	 * its own, so that a slow client does not delay the others.
 	 */
 	private class Server implements Runnable
 	{
-		private ServerSocket servSocket;
-		private TorCommSession session;
+		private TorCommTransport.Listener listener;
 		private List<TorCommSession> sessionList;
 		private List<Thread> threads;
-		private Socket clSocket;
-		private Thread comm;
-		private Thread pipe;
+		private TorCommTransport clTransport;
 		private short destID;
-		private String logFileName;
 		
 		/**
 		 * Sets up an instance of this class that is capable of listening for
-		 * connections through the socket that was set up at the given port.
+		 * connections through the socket that was set up at the given port,
+		 * with the transport given by {@link RunTorComm#getTransportType()
+		 * getTransportType()}.
 		 *
 		 * @param port			the port at which the server socket shall be set
 		 * up at.
@@ -185,7 +409,7 @@ public class RunTorCommServer extends RunTorComm
 		public Server(int port) throws IOException
 		{
 			destID = -1;
-			servSocket = new ServerSocket(port);
+			listener = getTransportType().listen(port);
 		}
 		
 		/**
@@ -197,31 +421,45 @@ public class RunTorCommServer extends RunTorComm
 		{
 			try
 			{
-				sessionList = new ArrayList<TorCommSession>();
-				threads = new ArrayList<Thread>();
+				sessionList = Collections.synchronizedList(new
+					ArrayList<TorCommSession>());
+				threads = Collections.synchronizedList(new ArrayList<Thread>());
 				while (listen)
 				{
 					printMessage("Listening for new connections.");
-					clSocket = servSocket.accept();
+					try
+					{
+						clTransport = listener.accept();
+					} catch (IOException e) {
+						if (!listen)
+							break;
+						// Such as running out of file descriptors
+						printError("Error when accepting a connection. " +
+							e.getMessage());
+						Thread.sleep(TorCommServer.ACCEPT_BACKOFF);
+						continue;
+					}
 					printMessage("Connection established from " +
-						clSocket.getInetAddress());
-					session = new TorCommSession(clSocket);
-					sessionList.add(session);
-					printMessage("Performing handshake.");
-					session.serverHandshake();
-					printMessage("New session set up. Client ID: " +
-						session.getDestID());
-					printMessage("Setting up new log file.");
-					setUpLogFile();
-					printMessage("Log file " + logFileName + " created.");
-					printMessage("Starting communication.");
-					comm = new Thread(session.SERVER_COMMUNICATE);
-					comm.setUncaughtExceptionHandler(discHandler);
-					pipe.start();
-					comm.start();
+						clTransport.getRemoteAddress());
+					int reason = admission == null ? AdmissionControl.ADMITTED :
+						admission.admit();
+					if (reason != AdmissionControl.ADMITTED)
+					{
+						printMessage("Connection from " + clTransport.
+							getRemoteAddress() + " rejected: " + AdmissionControl.
+							describe(reason) + ".");
+						admission.dismiss(clTransport, reason);
+						continue;
+					}
+					if (switchboard != null)
+					{
+						route(clTransport);
+						continue;
+					}
+					communicate(clTransport);
 				}
 				printMessage("Closing down server.");
-			} catch (SocketException e) {
+			} catch (InterruptedException e) {
 				printMessage("Listening has stopped.");
 			} catch(Exception e) {
 				throw new RuntimeException("Server error. " + 
@@ -229,11 +467,17 @@ public class RunTorCommServer extends RunTorComm
 			} finally {
 				try
 				{
-					servSocket.close();
-					for (Thread thread : threads)
-						thread.interrupt();
-					for (TorCommSession session : sessionList)
-						session.close();
+					listener.close();
+					synchronized (threads)
+					{
+						for (Thread thread : threads)
+							thread.interrupt();
+					}
+					synchronized (sessionList)
+					{
+						for (TorCommSession session : sessionList)
+							session.close();
+					}
 				} catch (Exception e) {
 					throw new RuntimeException("An error occurred while " +
 						"closing down server thread. " + e.getMessage(), e);
@@ -241,6 +485,124 @@ public class RunTorCommServer extends RunTorComm
 			}
 		}
 		
+		/**
+		 * Starts a thread that performs the handshake with the given
+		 * connection, sets up its log file and communicates with it until the
+		 * connection is over.
+		 *
+		 * @param transport	the connection's transport.
+		 */
+		private void communicate(final TorCommTransport transport)
+		{
+			Thread comm = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					TorCommSession session = new TorCommSession(transport);
+					session.setIntervalRecorder(intervals);
+					session.setLogSampler(getLogSampler());
+					if (echo)
+						session.setEchoMode(echoTimestamps);
+					session.setResumption(resumption);
+					session.setCostMeter(costSettings);
+					session.setWriteBatcher(batcherSettings);
+					sessionList.add(session);
+					try
+					{
+						try
+						{
+							printMessage("Performing handshake.");
+							session.serverHandshake();
+						} catch (IOException e) {
+							if (admission != null)
+								admission.abandoned();
+							if (listen)
+								printMessage("Handshake with " + transport.
+									getRemoteAddress() + " failed. " + e.
+									getMessage());
+							return;
+						}
+						if (session.isHandedOver())
+						{
+							// The resumed session was already admitted
+							if (admission != null)
+								admission.abandoned();
+							printMessage("Session of client " + session.
+								getDestID() + " resumed from " + transport.
+								getRemoteAddress());
+							return;
+						}
+						if (admission != null)
+							admission.established();
+						try
+						{
+							printMessage("New session set up. Client ID: " +
+								session.getDestID());
+							printMessage("Setting up new log file.");
+							setUpLogFile(session).start();
+							printMessage("Starting communication.");
+							session.SERVER_COMMUNICATE.run();
+							if (costTotals != null)
+								costTotals.add(session.getCostMeter());
+							if (batchingTotals != null)
+								batchingTotals.add(session.getWriteBatcher());
+						} catch (IOException e) {
+							printMessage(e.getMessage());
+						} finally {
+							if (admission != null)
+								admission.ended();
+						}
+					} finally {
+						// A resumed session keeps the transport it was handed
+						sessionList.remove(session);
+						try
+						{
+							session.close();
+						} catch (IOException e) {}
+						threads.remove(Thread.currentThread());
+					}
+				}
+			});
+			comm.setUncaughtExceptionHandler(discHandler);
+			threads.add(comm);
+			comm.start();
+		}
+		
+		/**
+		 * Starts a thread that routes the cells of the given connection
+		 * through the switchboard until the connection is over.
+		 *
+		 * @param transport	the connection's transport.
+		 */
+		private void route(final TorCommTransport transport)
+		{
+			Thread routing = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					// The switchboard performs the handshake itself
+					if (admission != null)
+						admission.established();
+					try
+					{
+						switchboard.serve(transport);
+						printMessage("Connection from " + transport.
+							getRemoteAddress() + " is over.");
+					} catch (IOException e) {
+						if (listen)
+							printMessage("Connection from " + transport.
+								getRemoteAddress() + " failed. " + e.
+								getMessage());
+					} finally {
+						if (admission != null)
+							admission.ended();
+					}
+				}
+			});
+			threads.add(routing);
+			routing.start();
+		}
+		
 		/**
 		 * Creates a log file that will be stored in a folder named "output"
 		 * such that the log file will contain the client's temporary ID. The
@@ -248,13 +610,19 @@ public class RunTorCommServer extends RunTorComm
 		 * communication that is being carried out between the server and the
 		 * client.
 		 *
+		 * @param session					the session whose communication is
+		 * logged.
+		 * @return							the thread that pipes the session's
+		 * output to the log file, which is yet to be started.
 		 * @throws IOException				if there was an error on piping the
 		 * output.
 		 * @throws FileNotFoundException	if it was not able to create the log
 		 * file.
 		 */
-		private void setUpLogFile() throws IOException, FileNotFoundException
+		private Thread setUpLogFile(TorCommSession session) throws IOException,
+			FileNotFoundException
 		{
+			String logFileName = null;
 			try
 			{
 				DateTimeFormatter dtf = DateTimeFormatter.
@@ -268,8 +636,10 @@ public class RunTorCommServer extends RunTorComm
 				session.setPipedOutputStream(outSession);
 				DataOutputStream outFile = new DataOutputStream(new 
 					FileOutputStream(sessionOutLog));
-				pipe = new Thread(new Pipe(inSession, outFile));
+				Thread pipe = new Thread(new Pipe(inSession, outFile));
 				threads.add(pipe);
+				printMessage("Log file " + logFileName + " created.");
+				return pipe;
 			} catch (FileNotFoundException e) {
 				throw new FileNotFoundException("Failed to open file " +
 					logFileName);
@@ -0,0 +1,361 @@
+package torcomm;
+
+import torcomm.protocol.*;
+import torcomm.stats.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * This class is a client application interface that holds a large number of
+ * idle sessions open against a server running in keep-alive mode, as in
+ * {@link RunTorCommServer#main(String[] args) RunTorCommServer &lt;port&gt;
+ * keepalive &lt;idle timeout&gt;}, so that the server's cost of each idle
+ * session can be measured. Every session is a non-blocking channel served by
+ * a single thread which sends one heartbeat cell per session at every
+ * heartbeat period and measures the time the server takes to answer it.
+ *
+ * <p> Sessions are opened directly, without going through the Tor proxy, as
+ * the proxy cannot be used by non-blocking channels.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunTorCommSoakClient extends RunTorComm
+{
+	
+	private static final int CONNECTS_PER_ROUND = 500;
+	
+	private static Selector selector;
+	private static ByteBuffer readBuffer;
+	private static ByteBuffer writeBuffer;
+	private static TorCommCell cell;
+	private static LatencyHistogram heartbeatRTT;
+	private static int open;
+	private static long failures;
+	private static short sessionID;
+	
+	private static String hostname;
+	private static int port;
+	private static int sessions;
+	private static int heartbeat;
+	private static int duration;
+	private static String fileName;
+	
+	/**
+	 * Opens the sessions, keeps them alive for the given duration and closes
+	 * them, printing out a status line every ten seconds.
+	 *
+	 * @param args	an array of string that holds the following parameters at
+	 * the given order in which they are being listed:
+	 * <ol>
+	 * 	<li> hostname	the server's IP address.
+	 * 	<li> port		the server's port.
+	 * 	<li> sessions	the number of sessions to be held open.
+	 * 	<li> heartbeat	the number of seconds between two heartbeats of a
+	 * session.
+	 *  <li> duration	the duration of the test, in seconds.
+	 *  <li> file name	the file name of the log.
+	 * </ol>
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			setup(args);
+			printMessage("Initializing soak client.");
+			printArgs();
+			soak();
+			printMessage("End of soak test.");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			try
+			{
+				close();
+				if (selector != null)
+				{
+					for (SelectionKey key : selector.keys())
+						key.channel().close();
+					selector.close();
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Prepares the class for execution and creates the log file with the name
+	 * given in the parameters.
+	 *
+	 * @param args			the <i>args</i> array given in the {@link #main
+	 * main(String[] args)} method.
+	 * @throws IOException	if there was any error while creating the log file.
+	 */
+	private static void setup(String[] args) throws IOException
+	{
+		setArgs(args);
+		try
+		{
+			checkArgs();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid argument: " + e.getMessage(),
+				e);
+		}
+		setClassVars();
+		File outFile = new File(fileName);
+		outFile.createNewFile();
+		setOutput(new PrintWriter(new FileWriter(outFile)));
+		setArgsDescr(new String[]{"hostname", "port", "sessions", "heartbeat",
+			"duration", "file name"});
+		selector = Selector.open();
+		readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		writeBuffer = ByteBuffer.allocateDirect(64);
+		cell = new TorCommCell();
+		heartbeatRTT = new LatencyHistogram();
+		sessionID = (short)new Random().nextInt(Short.MAX_VALUE);
+	}
+	
+	/**
+	 * Checks the validity of the given arguments as specified in the
+	 * documentation of the {@link #main main} method.
+	 */
+	private static void checkArgs()
+	{
+		if (getArgs().length < 6)
+			throw new IndexOutOfBoundsException("Expected 6 arguments.");
+		try
+		{
+			for (int i = 1; i < 5; i++)
+				if (Integer.parseInt(getArgs()[i]) <= 0)
+					throw new IndexOutOfBoundsException("Argument " + i +
+						" must be positive.");
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid number: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Sets up the class fields according to the given <i>args</i> in the {@link
+	 * #main main(String[] args)} method.
+	 */
+	private static void setClassVars()
+	{
+		hostname = getArgs()[0];
+		port = Integer.parseInt(getArgs()[1]);
+		sessions = Integer.parseInt(getArgs()[2]);
+		heartbeat = Integer.parseInt(getArgs()[3]);
+		duration = Integer.parseInt(getArgs()[4]);
+		fileName = getArgs()[5];
+	}
+	
+	/**
+	 * The state of a single session.
+	 */
+	private static final class Circuit
+	{
+		private boolean connected;
+		private boolean handshaken;
+		private long sentAt;
+		private long nextHeartbeat;
+		private byte[] partial;
+	}
+	
+	/**
+	 * Runs the whole test: opens sessions a few hundred at a time, sends the
+	 * heartbeats that are due and reads the replies until the duration is
+	 * over, and then requests the end of every session.
+	 *
+	 * @throws IOException	if the selector fails.
+	 */
+	private static void soak() throws IOException
+	{
+		InetSocketAddress address = new InetSocketAddress(hostname, port);
+		long end = System.currentTimeMillis() + duration * 1000L;
+		long nextStatus = System.currentTimeMillis() + 10000;
+		int started = 0;
+		while (System.currentTimeMillis() < end)
+		{
+			for (int i = 0; i < CONNECTS_PER_ROUND && started < sessions; i++)
+			{
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.connect(address);
+				channel.register(selector, SelectionKey.OP_CONNECT, new Circuit());
+				started++;
+			}
+			selector.select(100);
+			long now = System.currentTimeMillis();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() && key.isConnectable())
+					connect(key, now);
+				else if (key.isValid() && key.isReadable())
+					read(key, now);
+			}
+			for (SelectionKey key : selector.keys())
+			{
+				Circuit circuit = (Circuit)key.attachment();
+				if (key.isValid() && circuit.handshaken && circuit.sentAt == 0 &&
+					now >= circuit.nextHeartbeat)
+					sendCell(key, circuit, false, now);
+			}
+			if (now >= nextStatus)
+			{
+				printStatus();
+				nextStatus = now + 10000;
+			}
+		}
+		printMessage("Requesting the end of every session.");
+		for (SelectionKey key : selector.keys())
+			if (key.isValid() && ((Circuit)key.attachment()).handshaken)
+				sendCell(key, (Circuit)key.attachment(), true,
+					System.currentTimeMillis());
+		printStatus();
+	}
+	
+	/**
+	 * Finishes connecting a session and sends its handshake.
+	 *
+	 * @param key	the session channel's key.
+	 * @param now	the current time, in milliseconds.
+	 */
+	private static void connect(SelectionKey key, long now)
+	{
+		SocketChannel channel = (SocketChannel)key.channel();
+		try
+		{
+			channel.finishConnect();
+			writeBuffer.clear();
+			writeBuffer.putInt(8).putShort(sessionID).putShort((short)0).putInt(0);
+			write(channel);
+			key.interestOps(SelectionKey.OP_READ);
+			((Circuit)key.attachment()).connected = true;
+			open++;
+		} catch (IOException e) {
+			fail(key);
+		}
+	}
+	
+	/**
+	 * Reads the replies available at a session's channel.
+	 *
+	 * @param key	the session channel's key.
+	 * @param now	the current time, in milliseconds.
+	 */
+	private static void read(SelectionKey key, long now)
+	{
+		SocketChannel channel = (SocketChannel)key.channel();
+		Circuit circuit = (Circuit)key.attachment();
+		try
+		{
+			readBuffer.clear();
+			if (circuit.partial != null)
+			{
+				readBuffer.put(circuit.partial);
+				circuit.partial = null;
+			}
+			if (channel.read(readBuffer) < 0)
+				throw new EOFException();
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 4 && readBuffer.remaining() >= 4 +
+				readBuffer.getInt(readBuffer.position()))
+			{
+				int length = readBuffer.getInt();
+				readBuffer.position(readBuffer.position() + length);
+				if (!circuit.handshaken)
+					circuit.handshaken = true;
+				else if (circuit.sentAt > 0)
+				{
+					heartbeatRTT.record(now - circuit.sentAt);
+					circuit.sentAt = 0;
+				}
+				circuit.nextHeartbeat = now + heartbeat * 1000L;
+			}
+			if (readBuffer.hasRemaining())
+			{
+				circuit.partial = new byte[readBuffer.remaining()];
+				readBuffer.get(circuit.partial);
+			}
+		} catch (IOException e) {
+			fail(key);
+		}
+	}
+	
+	/**
+	 * Sends a heartbeat cell, or a cell requesting the end of the connection.
+	 *
+	 * @param key			the session channel's key.
+	 * @param circuit		the session.
+	 * @param endConnection	<i>true</i> if the end of the connection shall be
+	 * requested, and <i>false</i> otherwise.
+	 * @param now			the current time, in milliseconds.
+	 */
+	private static void sendCell(SelectionKey key, Circuit circuit,
+		boolean endConnection, long now)
+	{
+		cell.senderID = sessionID;
+		TorCommDataTranslator.stamp(cell, LocalDateTime.now());
+		cell.endConnection = (byte)(endConnection ? 1 : 0);
+		writeBuffer.clear();
+		writeBuffer.putInt(TorCommDataTranslator.CELL_SIZE);
+		TorCommDataTranslator.translate(cell, writeBuffer);
+		try
+		{
+			write((SocketChannel)key.channel());
+			circuit.sentAt = now;
+		} catch (IOException e) {
+			fail(key);
+		}
+	}
+	
+	/**
+	 * Writes the frame held by the write buffer.
+	 *
+	 * @param channel		the session's channel.
+	 * @throws IOException	if the frame could not be written at once.
+	 */
+	private static void write(SocketChannel channel) throws IOException
+	{
+		writeBuffer.flip();
+		channel.write(writeBuffer);
+		if (writeBuffer.hasRemaining())
+			throw new IOException("Server is not reading.");
+	}
+	
+	/**
+	 * Closes a session that failed.
+	 *
+	 * @param key	the session channel's key.
+	 */
+	private static void fail(SelectionKey key)
+	{
+		if (((Circuit)key.attachment()).connected)
+			open--;
+		failures++;
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * Prints out the number of open sessions and the heartbeat round trip
+	 * times.
+	 */
+	private static void printStatus()
+	{
+		printMessage("Open sessions: " + open + ", failures: " + failures +
+			", heartbeat round trip time (ms): " + heartbeatRTT);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,639 @@
+package torcomm;
+
+import torcomm.protocol.*;
+import torcomm.stats.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * A client that can be embedded in any application, as opposed to {@link
+ * RunTorCommClient RunTorCommClient}, which keeps its state in static fields
+ * and therefore runs a single client per JVM. Every instance holds its own
+ * configuration, sessions and results, so that many clients can run inside
+ * the same JVM, each against its own server.
+ *
+ * <p> A client is configured through a {@link Builder Builder}, run either in
+ * the calling thread with {@link #run() run()} or in a thread of its own with
+ * {@link #start() start()} and {@link #join() join()}, and stopped at any
+ * time with {@link #close() close()}. It runs one {@link
+ * torcomm.protocol.TorCommSession TorCommSession} after another, one per
+ * session of its workload or a single one if there is no workload, and
+ * gathers their results in a {@link torcomm.stats.RunResult RunResult}.
+ *
+ * <pre>
+ * TorCommClient client = TorCommClient.builder("127.0.0.1", 4000).
+ * 	duration(10).build();
+ * client.run();
+ * RunResult result = client.getResult();
+ * </pre>
+ *
+ * <p> Against a server set up as a {@link torcomm.protocol.TorCommSwitchboard
+ * TorCommSwitchboard}, a client may address its cells to another client,
+ * which answers them when set up to {@link Builder#respond() respond}.
+ *
+ * <p> A client may also {@link Builder#resumption(int attempts) resume} its
+ * sessions over a new connection when theirs fails, such as when a Tor
+ * circuit is torn down, in which case the time taken to resume them is
+ * gathered apart from the round trip times.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommClient implements Runnable, Closeable
+{
+	
+	private final String name;
+	private final String hostname;
+	private final int port;
+	private final Proxy proxy;
+	private final TorCommTransport.Type transportType;
+	private final TorCommCapabilities capabilities;
+	private final Short sessionID;
+	private final Short peerID;
+	private final boolean respond;
+	private final int duration;
+	private final TorCommWorkload workload;
+	private final int firstSession;
+	private final int sessions;
+	private final IntervalRecorder intervals;
+	private final LogSampler sampler;
+	private final WarmUp warmUp;
+	private final int attempts;
+	private final CostMeter costSettings;
+	private final WriteBatcher batcherSettings;
+	private final WriteBatcher batchingTotals;
+	private final PrintWriter log;
+	
+	private final RunResult result;
+	private volatile TorCommSession session;
+	private volatile boolean closed;
+	private Exception lastFailure;
+	private Thread thread;
+	
+	/**
+	 * Creates a client from the configuration held by the given builder.
+	 *
+	 * @param builder	the builder.
+	 */
+	private TorCommClient(Builder builder)
+	{
+		this.name = builder.name;
+		this.hostname = builder.hostname;
+		this.port = builder.port;
+		this.proxy = builder.proxy;
+		this.transportType = builder.transportType;
+		this.capabilities = builder.capabilities;
+		this.sessionID = builder.sessionID;
+		this.peerID = builder.peerID;
+		this.respond = builder.respond;
+		this.duration = builder.duration;
+		this.workload = builder.workload;
+		this.intervals = builder.intervals;
+		this.sampler = builder.sampler;
+		this.warmUp = builder.warmUp;
+		this.attempts = builder.attempts;
+		this.costSettings = builder.cost;
+		this.batcherSettings = builder.batcher;
+		this.batchingTotals = builder.batcher == null ? null : new WriteBatcher(
+			builder.batcher);
+		this.log = builder.log;
+		if (workload == null)
+		{
+			this.firstSession = 0;
+			this.sessions = 1;
+		}
+		else if (builder.session >= 0)
+		{
+			this.firstSession = builder.session;
+			this.sessions = 1;
+		}
+		else
+		{
+			this.firstSession = 0;
+			this.sessions = workload.getSessions();
+		}
+		this.result = new RunResult(name);
+	}
+	
+	/**
+	 * Creates a builder of a client that connects to the given server.
+	 *
+	 * @param hostname	the server's IP address or host name.
+	 * @param port		the server's port.
+	 * @return			the builder.
+	 */
+	public static Builder builder(String hostname, int port)
+	{
+		return new Builder(hostname, port);
+	}
+	
+	/**
+	 * Runs every session in the calling thread, one after another, until all
+	 * of them are over or the client is closed. A session that fails is
+	 * counted as a failure of the result and the next session is run.
+	 */
+	public void run()
+	{
+		for (int i = firstSession; i < firstSession + sessions && !closed; i++)
+		{
+			long begin = System.currentTimeMillis();
+			session = null;
+			try
+			{
+				runSession(i);
+				ClockOffsetEstimator clock = session.getClockOffsetEstimator();
+				CellTraceStore trace = session.getTraceStore();
+				synchronized (result)
+				{
+					result.addSession(trace.size(), System.currentTimeMillis() -
+						begin, trace.roundTripHistogram(1000), clock.
+						getOutboundDelay(), clock.getInboundDelay());
+					result.addRecoveries(session.getRecovery());
+					if (costSettings != null)
+						result.addCost(session.getCostMeter());
+				}
+				if (batchingTotals != null)
+					batchingTotals.add(session.getWriteBatcher());
+			} catch (Exception e) {
+				if (closed)
+					break;
+				synchronized (result)
+				{
+					result.addFailure();
+					lastFailure = e;
+				}
+			} finally {
+				try
+				{
+					if (session != null)
+						session.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Connects to the server and runs a single session in the calling thread.
+	 *
+	 * @param index			the index of the session among the workload's
+	 * sessions.
+	 * @throws IOException	if the connection or the handshake failed.
+	 */
+	private void runSession(int index) throws IOException
+	{
+		try
+		{
+			session = new TorCommSession(transportType.connect(new
+				InetSocketAddress(hostname, port), proxy), duration);
+		} catch (IOException e) {
+			throw new IOException("Error when attempting to connect to " +
+				hostname + ":" + port, e);
+		}
+		session.setOfferedCapabilities(capabilities);
+		if (attempts > 0)
+			session.setReconnector(new TorCommSession.Reconnector()
+			{
+				public TorCommTransport reconnect() throws IOException
+				{
+					return transportType.connect(new InetSocketAddress(hostname,
+						port), proxy);
+				}
+			}, attempts);
+		if (sessionID != null)
+			session.setSessionID(sessionID);
+		if (peerID != null)
+			session.setPeer(peerID);
+		session.setTraceStore(new CellTraceStore());
+		session.setIntervalRecorder(intervals);
+		session.setLogSampler(sampler);
+		session.setWarmUp(warmUp);
+		session.setCostMeter(costSettings);
+		session.setWriteBatcher(batcherSettings);
+		if (log != null)
+			session.setLogWriter(new PrintWriter(new FilterWriter(log)
+			{
+				// The log outlives the session, which closes its writer
+				public void close() throws IOException
+				{
+					flush();
+				}
+			}, true));
+		if (workload != null)
+			session.setWorkload(workload, index);
+		if (closed)
+			throw new IOException("Client closed.");
+		session.clientHandshake();
+		if (respond)
+			session.PEER_RESPOND.run();
+		else
+			session.CLIENT_COMMUNICATE.run();
+	}
+	
+	/**
+	 * Runs every session in a thread of its own.
+	 *
+	 * @throws IllegalStateException	if the client was already started.
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+			throw new IllegalStateException("Client already started.");
+		thread = new Thread(this, "TorCommClient " + name);
+		thread.start();
+	}
+	
+	/**
+	 * Waits until the sessions run by {@link #start() start()} are over.
+	 *
+	 * @return						the results of the sessions.
+	 * @throws InterruptedException	if the calling thread is interrupted.
+	 */
+	public RunResult join() throws InterruptedException
+	{
+		Thread started;
+		synchronized (this)
+		{
+			started = thread;
+		}
+		if (started != null)
+			started.join();
+		return getResult();
+	}
+	
+	/**
+	 * Retrieves the results of the sessions that are over.
+	 *
+	 * @return	the results.
+	 */
+	public RunResult getResult()
+	{
+		synchronized (result)
+		{
+			RunResult copy = new RunResult(name);
+			copy.add(result);
+			return copy;
+		}
+	}
+	
+	/**
+	 * Retrieves how the frames sent by the sessions that are over were
+	 * coalesced, added up.
+	 *
+	 * @return	the accounting, or <i>null</i> if frames are not coalesced.
+	 */
+	public WriteBatcher getWriteBatching()
+	{
+		return batchingTotals;
+	}
+	
+	/**
+	 * Retrieves the cause of the last session that failed.
+	 *
+	 * @return	the cause, or <i>null</i> if no session failed.
+	 */
+	public Exception getLastFailure()
+	{
+		synchronized (result)
+		{
+			return lastFailure;
+		}
+	}
+	
+	/**
+	 * Stops the client, closing the connection of the running session. The
+	 * sessions that were not run yet are not run.
+	 *
+	 * @throws IOException	if the connection could not be closed.
+	 */
+	public void close() throws IOException
+	{
+		closed = true;
+		TorCommSession running = session;
+		if (running != null)
+			running.close();
+	}
+	
+	/**
+	 * The configuration of a {@link TorCommClient TorCommClient}. Every
+	 * setting but the server's address is optional.
+	 */
+	public static class Builder
+	{
+		private String name;
+		private String hostname;
+		private int port;
+		private Proxy proxy;
+		private TorCommTransport.Type transportType;
+		private TorCommCapabilities capabilities;
+		private Short sessionID;
+		private Short peerID;
+		private boolean respond;
+		private int duration;
+		private TorCommWorkload workload;
+		private int session;
+		private IntervalRecorder intervals;
+		private LogSampler sampler;
+		private WarmUp warmUp;
+		private int attempts;
+		private CostMeter cost;
+		private WriteBatcher batcher;
+		private PrintWriter log;
+		
+		/**
+		 * Creates a builder with the default settings: a session of ten
+		 * seconds over a blocking transport, without proxy, workload, interval
+		 * recorder or log.
+		 *
+		 * @param hostname	the server's IP address or host name.
+		 * @param port		the server's port.
+		 */
+		private Builder(String hostname, int port)
+		{
+			if (port > 65535 || port < 0)
+				throw new IllegalArgumentException("Port value not " +
+					"contained in [1, 65535].");
+			this.name = hostname + ":" + port;
+			this.hostname = hostname;
+			this.port = port;
+			this.duration = 10;
+			this.transportType = TorCommTransport.Type.BLOCKING;
+			this.capabilities = TorCommCapabilities.CLIENT_DEFAULT;
+			this.session = -1;
+		}
+		
+		/**
+		 * Sets the name given to the client's results.
+		 *
+		 * @param name	the name.
+		 * @return		this builder.
+		 */
+		public Builder name(String name)
+		{
+			this.name = name;
+			return this;
+		}
+		
+		/**
+		 * Connects through Tor's default proxy port, 9050, at the local host.
+		 *
+		 * @return	this builder.
+		 */
+		public Builder torProxy()
+		{
+			return proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(
+				"127.0.0.1", 9050)));
+		}
+		
+		/**
+		 * Connects through the given proxy.
+		 *
+		 * @param proxy	the proxy, or <i>null</i> to connect directly.
+		 * @return		this builder.
+		 */
+		public Builder proxy(Proxy proxy)
+		{
+			this.proxy = proxy;
+			return this;
+		}
+		
+		/**
+		 * Sets the kind of transport over which sessions are run. Only
+		 * blocking and TLS transports can connect through a proxy.
+		 *
+		 * @param transportType	the kind of transport.
+		 * @return				this builder.
+		 */
+		public Builder transport(TorCommTransport.Type transportType)
+		{
+			this.transportType = transportType;
+			return this;
+		}
+		
+		/**
+		 * Sets the capabilities offered to the server in every handshake.
+		 *
+		 * @param capabilities	the capabilities, such as {@link
+		 * TorCommCapabilities#LEGACY LEGACY} to handshake as older clients.
+		 * @return				this builder.
+		 */
+		public Builder capabilities(TorCommCapabilities capabilities)
+		{
+			this.capabilities = capabilities;
+			return this;
+		}
+		
+		/**
+		 * Offers to keep up to the given number of cells in flight, without
+		 * waiting for the reply to each one before sending the next. The
+		 * server may agree on a smaller window. Workloads are always replayed
+		 * one cell at a time.
+		 *
+		 * @param window	the largest number of cells in flight, or 1 to wait
+		 * for every reply.
+		 * @return			this builder.
+		 */
+		public Builder pipelining(int window)
+		{
+			if (window < 1 || window > 65535)
+				throw new IllegalArgumentException("Window out of bounds.");
+			this.capabilities = capabilities.withWindow(window);
+			return this;
+		}
+		
+		/**
+		 * Sets the duration of every session.
+		 *
+		 * @param duration	the duration, in seconds. It cannot be more than one
+		 * day.
+		 * @return			this builder.
+		 */
+		public Builder duration(int duration)
+		{
+			if (duration > 86400 || duration <= 0)
+				throw new IllegalArgumentException("Time out of bounds.");
+			this.duration = duration;
+			return this;
+		}
+		
+		/**
+		 * Replays every session of the given workload, one after another.
+		 *
+		 * @param workload	the workload.
+		 * @return			this builder.
+		 */
+		public Builder workload(TorCommWorkload workload)
+		{
+			this.workload = workload;
+			this.session = -1;
+			return this;
+		}
+		
+		/**
+		 * Replays a single session of the given workload.
+		 *
+		 * @param workload	the workload.
+		 * @param session	the index of the session among the workload's
+		 * sessions.
+		 * @return			this builder.
+		 */
+		public Builder workload(TorCommWorkload workload, int session)
+		{
+			if (session < 0)
+				throw new IllegalArgumentException("Session index must not " +
+					"be negative.");
+			this.workload = workload;
+			this.session = session;
+			return this;
+		}
+		
+		/**
+		 * Aggregates every cell exchanged into the given recorder, which may
+		 * be shared with other clients and servers.
+		 *
+		 * @param intervals	the recorder.
+		 * @return			this builder.
+		 */
+		public Builder intervalRecorder(IntervalRecorder intervals)
+		{
+			this.intervals = intervals;
+			return this;
+		}
+		
+		/**
+		 * Writes the communication data of every session to the given writer.
+		 * The writer is not closed by the client.
+		 *
+		 * @param log	the writer.
+		 * @return		this builder.
+		 */
+		public Builder log(PrintWriter log)
+		{
+			this.log = log;
+			return this;
+		}
+		
+		/**
+		 * Samples the cells written to the log of every session.
+		 *
+		 * @param sampler	the sampler, which is copied by every session.
+		 * @return			this builder.
+		 */
+		public Builder logSampler(LogSampler sampler)
+		{
+			this.sampler = sampler;
+			return this;
+		}
+		
+		/**
+		 * Exchanges the first cells of every session without recording them,
+		 * so that they are left out of the results.
+		 *
+		 * @param warmUp	the warm-up, which is copied by every session, or
+		 * <i>null</i> to record every cell.
+		 * @return			this builder.
+		 */
+		public Builder warmUp(WarmUp warmUp)
+		{
+			this.warmUp = warmUp;
+			return this;
+		}
+		
+		/**
+		 * Accounts for the CPU time and the bytes allocated by every session,
+		 * which are written to its log and added up in the results.
+		 *
+		 * @param cost	the meter, which is copied by every session, or
+		 * <i>null</i> to account for no cost.
+		 * @return		this builder.
+		 */
+		public Builder costMeter(CostMeter cost)
+		{
+			this.cost = cost;
+			return this;
+		}
+		
+		/**
+		 * Coalesces the cells every session sends while replies are still to
+		 * be received into batches, which mostly helps pipelined sessions.
+		 *
+		 * @param batcher	the batcher, which is copied by every session, or
+		 * <i>null</i> to send every cell through a write of its own.
+		 * @return			this builder.
+		 */
+		public Builder writeBatching(WriteBatcher batcher)
+		{
+			this.batcher = batcher;
+			return this;
+		}
+		
+		/**
+		 * Resumes every session over a new connection when its connection
+		 * fails, if the server agrees, instead of counting it as a failure.
+		 * Through Tor, the new connection is usually made over a new circuit.
+		 *
+		 * @param attempts	the largest number of connections attempted each
+		 * time a session is resumed, or 0 to let sessions fail.
+		 * @return			this builder.
+		 */
+		public Builder resumption(int attempts)
+		{
+			if (attempts < 0)
+				throw new IllegalArgumentException("Attempts must not be " +
+					"negative.");
+			this.attempts = attempts;
+			return this;
+		}
+		
+		/**
+		 * Sets the ID of every session, which is otherwise chosen at random,
+		 * so that other clients can address their cells to it through a
+		 * switchboard.
+		 *
+		 * @param sessionID	the session ID.
+		 * @return			this builder.
+		 */
+		public Builder sessionID(short sessionID)
+		{
+			this.sessionID = sessionID;
+			return this;
+		}
+		
+		/**
+		 * Addresses every cell to the session with the given ID, which must be
+		 * connected to the same switchboard and {@link #respond() respond} to
+		 * them.
+		 *
+		 * @param peerID	the peer's session ID.
+		 * @return			this builder.
+		 */
+		public Builder peer(short peerID)
+		{
+			this.peerID = peerID;
+			return this;
+		}
+		
+		/**
+		 * Answers the cells that other clients address to this one through a
+		 * switchboard, as in {@link
+		 * torcomm.protocol.TorCommSession#PEER_RESPOND PEER_RESPOND}, instead
+		 * of sending cells of its own. The round trip times of the result are
+		 * then the times taken to answer each cell.
+		 *
+		 * @return	this builder.
+		 */
+		public Builder respond()
+		{
+			this.respond = true;
+			return this;
+		}
+		
+		/**
+		 * Creates the client.
+		 *
+		 * @return	the client.
+		 */
+		public TorCommClient build()
+		{
+			return new TorCommClient(this);
+		}
+	}
+}
\ No newline at end of file
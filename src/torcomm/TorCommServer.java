@@ -0,0 +1,649 @@
+package torcomm;
+
+import torcomm.protocol.*;
+import torcomm.stats.*;
+import java.io.*;
+import java.net.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server that can be embedded in any application, as opposed to {@link
+ * RunTorCommServer RunTorCommServer}, which keeps its state in static fields
+ * and therefore runs a single server per JVM. Every instance holds its own
+ * socket, sessions and threads, so that many servers can run inside the same
+ * JVM, each at its own port.
+ *
+ * <p> A server is configured through a {@link Builder Builder}, starts
+ * accepting connections with {@link #start() start()} and is stopped with
+ * {@link #close() close()}, which also ends every session. Every connection is
+ * served by a {@link torcomm.protocol.TorCommSession TorCommSession} running in
+ * a thread of its own, which also performs the handshake, so that a slow
+ * client does not delay the others. Sessions that are over are forgotten.
+ *
+ * <p> The port may be 0, in which case a free port is chosen and can be
+ * retrieved through {@link #getPort() getPort()}. For large numbers of idle
+ * sessions, a {@link torcomm.protocol.KeepAliveReactor KeepAliveReactor} can
+ * be embedded in the same way.
+ *
+ * <p> A server may also be set up as a {@link
+ * torcomm.protocol.TorCommSwitchboard TorCommSwitchboard}, which forwards
+ * every cell to the session it is addressed to instead of replying to it.
+ *
+ * <p> Under overload, such as many clients reconnecting at once, the
+ * connections served can be limited by an {@link
+ * torcomm.protocol.AdmissionControl AdmissionControl}, which rejects the
+ * others in the background, without a session thread being created for them.
+ *
+ * <p> Clients whose connections fail, such as when their Tor circuits are
+ * torn down, may resume their sessions over new connections if the server is
+ * set up to hold them for a {@link Builder#resumption(long grace) grace
+ * period}.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommServer implements Closeable
+{
+	/**
+	 * The time, in milliseconds, the server waits before accepting again after
+	 * an error.
+	 */
+	public static final int ACCEPT_BACKOFF = 100;
+	
+	private final int port;
+	private final TorCommTransport.Type transportType;
+	private final IntervalRecorder intervals;
+	private final LogSampler sampler;
+	private final boolean echo;
+	private final boolean echoTimestamps;
+	private final File logDirectory;
+	private final TorCommSwitchboard switchboard;
+	private final AdmissionControl admission;
+	private final ResumptionRegistry resumption;
+	private final CostMeter costSettings;
+	private final CostMeter costTotals;
+	private final WriteBatcher batcherSettings;
+	private final WriteBatcher batchingTotals;
+	
+	private final Set<TorCommSession> sessions;
+	private final Set<Thread> threads;
+	private TorCommTransport.Listener listener;
+	private Thread acceptor;
+	private volatile boolean listen;
+	private volatile long accepted;
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong acceptFailures = new AtomicLong();
+	private volatile Exception lastFailure;
+	private volatile long rejected;
+	
+	/**
+	 * Creates a server from the configuration held by the given builder.
+	 *
+	 * @param builder	the builder.
+	 */
+	private TorCommServer(Builder builder)
+	{
+		this.port = builder.port;
+		this.transportType = builder.transportType;
+		this.intervals = builder.intervals;
+		this.sampler = builder.sampler;
+		this.echo = builder.echo;
+		this.echoTimestamps = builder.echoTimestamps;
+		this.logDirectory = builder.logDirectory;
+		this.switchboard = builder.switchboard ? new TorCommSwitchboard() :
+			null;
+		this.admission = builder.admission;
+		this.costSettings = builder.cost;
+		this.costTotals = builder.cost == null ? null : new CostMeter(builder.
+			cost);
+		this.batcherSettings = builder.batcher;
+		this.batchingTotals = builder.batcher == null ? null : new WriteBatcher(
+			builder.batcher);
+		this.resumption = builder.grace > 0 ? new ResumptionRegistry(builder.
+			grace) : null;
+		this.sessions = ConcurrentHashMap.newKeySet();
+		this.threads = ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * Creates a builder of a server that listens at the given port.
+	 *
+	 * @param port	the port, or 0 for any free port.
+	 * @return		the builder.
+	 */
+	public static Builder builder(int port)
+	{
+		return new Builder(port);
+	}
+	
+	/**
+	 * Opens the server socket and starts accepting connections in a thread of
+	 * its own.
+	 *
+	 * @throws IOException				if the socket could not be opened at the
+	 * given port.
+	 * @throws IllegalStateException	if the server was already started.
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (listener != null)
+			throw new IllegalStateException("Server already started.");
+		try
+		{
+			listener = transportType.listen(port);
+		} catch (IOException e) {
+			throw new IOException("Error when opening SOCKET at port " + port,
+				e);
+		}
+		listen = true;
+		acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				accept();
+			}
+		}, "TorCommServer " + listener.getPort());
+		acceptor.start();
+	}
+	
+	/**
+	 * Accepts connections until the server is closed. An error when accepting
+	 * a connection, such as running out of file descriptors, is counted and
+	 * the server tries again after {@link #ACCEPT_BACKOFF ACCEPT_BACKOFF}, so
+	 * that it keeps listening.
+	 */
+	private void accept()
+	{
+		while (listen)
+		{
+			final TorCommTransport clTransport;
+			try
+			{
+				clTransport = listener.accept();
+			} catch (IOException e) {
+				if (!listen)
+					break; // The socket is closed by close()
+				acceptFailures.incrementAndGet();
+				lastFailure = e;
+				try
+				{
+					Thread.sleep(ACCEPT_BACKOFF);
+				} catch (InterruptedException e1) {
+					break;
+				}
+				continue;
+			}
+			accepted++;
+			int reason = admission == null ? AdmissionControl.ADMITTED :
+				admission.admit();
+			if (reason != AdmissionControl.ADMITTED)
+			{
+				rejected++;
+				admission.dismiss(clTransport, reason);
+				continue;
+			}
+			Thread comm = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					serve(clTransport);
+				}
+			}, "TorCommServer session " + accepted);
+			threads.add(comm);
+			comm.start();
+		}
+	}
+	
+	/**
+	 * Performs the handshake with a client and runs its session in the
+	 * calling thread.
+	 *
+	 * @param clTransport	the client's transport.
+	 */
+	private void serve(TorCommTransport clTransport)
+	{
+		TorCommSession session = null;
+		PrintWriter log = null;
+		// Admitted connections are pending until they are established
+		boolean established = false;
+		try
+		{
+			if (switchboard != null)
+			{
+				// The switchboard performs the handshake itself
+				established = admitted();
+				switchboard.serve(clTransport);
+				return;
+			}
+			session = new TorCommSession(clTransport);
+			sessions.add(session);
+			if (!listen)
+				throw new IOException("Server closed.");
+			session.setIntervalRecorder(intervals);
+			session.setLogSampler(sampler);
+			if (echo)
+				session.setEchoMode(echoTimestamps);
+			session.setResumption(resumption);
+			session.setCostMeter(costSettings);
+			session.setWriteBatcher(batcherSettings);
+			session.serverHandshake();
+			// The resumed session was already admitted
+			if (session.isHandedOver())
+				return;
+			established = admitted();
+			if (logDirectory != null)
+			{
+				DateTimeFormatter dtf = DateTimeFormatter.
+					ofPattern("yyyy-MM-dd");
+				log = new PrintWriter(new BufferedWriter(new FileWriter(new
+					File(logDirectory, dtf.format(LocalDateTime.now()) + "_" +
+					session.getDestID() + ".txt"))));
+				session.setLogWriter(log);
+			}
+			session.SERVER_COMMUNICATE.run();
+			if (costTotals != null)
+				costTotals.add(session.getCostMeter());
+			if (batchingTotals != null)
+				batchingTotals.add(session.getWriteBatcher());
+		} catch (Exception e) {
+			if (listen)
+			{
+				failures.incrementAndGet();
+				lastFailure = e;
+			}
+		} finally {
+			try
+			{
+				// A resumed session may have replaced the transport
+				if (session != null)
+				{
+					sessions.remove(session);
+					session.close();
+				}
+				else
+					clTransport.close();
+			} catch (IOException e) {}
+			if (log != null)
+				log.close();
+			if (established)
+				admission.ended();
+			else if (admission != null)
+				admission.abandoned();
+			threads.remove(Thread.currentThread());
+		}
+	}
+	
+	/**
+	 * Counts an admitted connection whose handshake is done as a running
+	 * session.
+	 *
+	 * @return	<i>true</i> if the session must be counted as ended when it is
+	 * over, and <i>false</i> if there is no admission control.
+	 */
+	private boolean admitted()
+	{
+		if (admission == null)
+			return false;
+		admission.established();
+		return true;
+	}
+	
+	/**
+	 * Retrieves the port at which the server listens.
+	 *
+	 * @return							the port.
+	 * @throws IllegalStateException	if the server was not started.
+	 */
+	public synchronized int getPort()
+	{
+		if (listener == null)
+			throw new IllegalStateException("Server not started.");
+		return listener.getPort();
+	}
+	
+	/**
+	 * Retrieves the number of sessions that are running.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public int getSessionCount()
+	{
+		return sessions.size();
+	}
+	
+	/**
+	 * Retrieves the number of connections accepted since the server started.
+	 *
+	 * @return	the number of connections.
+	 */
+	public long getAcceptedCount()
+	{
+		return accepted;
+	}
+	
+	/**
+	 * Retrieves the number of sessions that failed before the client requested
+	 * the end of the connection.
+	 *
+	 * @return	the number of failures.
+	 */
+	public long getFailureCount()
+	{
+		return failures.get();
+	}
+	
+	/**
+	 * Retrieves the number of times accepting a connection failed while the
+	 * server was listening.
+	 *
+	 * @return	the number of failures.
+	 */
+	public long getAcceptFailureCount()
+	{
+		return acceptFailures.get();
+	}
+	
+	/**
+	 * Retrieves the cause of the last session, or the last attempt to accept
+	 * a connection, that failed.
+	 *
+	 * @return	the cause, or <i>null</i> if nothing failed.
+	 */
+	public Exception getLastFailure()
+	{
+		return lastFailure;
+	}
+	
+	/**
+	 * Retrieves the number of connections rejected by the admission control.
+	 *
+	 * @return	the number of connections.
+	 */
+	public long getRejectedCount()
+	{
+		return rejected;
+	}
+	
+	/**
+	 * Retrieves the admission control that decides which connections are
+	 * served.
+	 *
+	 * @return	the admission control, or <i>null</i> if every connection is
+	 * served.
+	 */
+	public AdmissionControl getAdmissionControl()
+	{
+		return admission;
+	}
+	
+	/**
+	 * Retrieves the costs of the sessions that are over, added up.
+	 *
+	 * @return	the costs, or <i>null</i> if no cost is accounted for.
+	 */
+	public CostMeter getCosts()
+	{
+		return costTotals;
+	}
+	
+	/**
+	 * Retrieves how the replies of the sessions that are over were
+	 * coalesced, added up.
+	 *
+	 * @return	the accounting, or <i>null</i> if replies are not coalesced.
+	 */
+	public WriteBatcher getWriteBatching()
+	{
+		return batchingTotals;
+	}
+	
+	/**
+	 * Retrieves the registry of the sessions that clients may resume.
+	 *
+	 * @return	the registry, or <i>null</i> if sessions cannot be resumed.
+	 */
+	public ResumptionRegistry getResumptionRegistry()
+	{
+		return resumption;
+	}
+	
+	/**
+	 * Retrieves the switchboard through which cells are forwarded.
+	 *
+	 * @return	the switchboard, or <i>null</i> if the server replies to the
+	 * cells itself.
+	 */
+	public TorCommSwitchboard getSwitchboard()
+	{
+		return switchboard;
+	}
+	
+	/**
+	 * Stops accepting connections, closes every session and waits for their
+	 * threads to end.
+	 *
+	 * @throws IOException	if the server socket could not be closed.
+	 */
+	public void close() throws IOException
+	{
+		Thread stopped;
+		synchronized (this)
+		{
+			listen = false;
+			if (listener != null)
+				listener.close();
+			stopped = acceptor;
+		}
+		try
+		{
+			if (stopped != null)
+			{
+				// Ends a back-off after an error
+				stopped.interrupt();
+				stopped.join();
+			}
+			for (TorCommSession session : sessions)
+				session.close();
+			if (switchboard != null)
+				switchboard.close();
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * The configuration of a {@link TorCommServer TorCommServer}. Every
+	 * setting but the port is optional.
+	 */
+	public static class Builder
+	{
+		private int port;
+		private TorCommTransport.Type transportType;
+		private IntervalRecorder intervals;
+		private LogSampler sampler;
+		private boolean echo;
+		private boolean echoTimestamps;
+		private File logDirectory;
+		private boolean switchboard;
+		private AdmissionControl admission;
+		private long grace;
+		private CostMeter cost;
+		private WriteBatcher batcher;
+		
+		/**
+		 * Creates a builder with the default settings: a blocking transport,
+		 * no interval recorder and no session logs.
+		 *
+		 * @param port	the port, or 0 for any free port.
+		 */
+		private Builder(int port)
+		{
+			if (port > 65535 || port < 0)
+				throw new IllegalArgumentException("Port value out of range");
+			this.port = port;
+			this.transportType = TorCommTransport.Type.BLOCKING;
+		}
+		
+		/**
+		 * Sets the kind of transport over which sessions are run.
+		 *
+		 * @param transportType	the kind of transport.
+		 * @return				this builder.
+		 */
+		public Builder transport(TorCommTransport.Type transportType)
+		{
+			this.transportType = transportType;
+			return this;
+		}
+		
+		/**
+		 * Aggregates every cell exchanged into the given recorder, which may
+		 * be shared with other clients and servers.
+		 *
+		 * @param intervals	the recorder.
+		 * @return			this builder.
+		 */
+		public Builder intervalRecorder(IntervalRecorder intervals)
+		{
+			this.intervals = intervals;
+			return this;
+		}
+		
+		/**
+		 * Writes the communication data of every session to a file of its own
+		 * in the given directory, named after the date and the client's ID as
+		 * the logs of {@link RunTorCommServer RunTorCommServer}.
+		 *
+		 * @param logDirectory	the directory, which must exist.
+		 * @return				this builder.
+		 */
+		public Builder logDirectory(File logDirectory)
+		{
+			this.logDirectory = logDirectory;
+			return this;
+		}
+		
+		/**
+		 * Samples the cells written to the log of every session.
+		 *
+		 * @param sampler	the sampler, which is copied by every session.
+		 * @return			this builder.
+		 */
+		public Builder logSampler(LogSampler sampler)
+		{
+			this.sampler = sampler;
+			return this;
+		}
+		
+		/**
+		 * Reflects every frame received instead of replying with a cell of the
+		 * server, as in {@link torcomm.protocol.TorCommSession#setEchoMode(
+		 * boolean timestamps) TorCommSession.setEchoMode(boolean timestamps)}.
+		 *
+		 * @param timestamps	<i>true</i> if the times at which each frame was
+		 * received and sent shall be appended to it, and <i>false</i> otherwise.
+		 * @return				this builder.
+		 */
+		public Builder echo(boolean timestamps)
+		{
+			this.echo = true;
+			this.echoTimestamps = timestamps;
+			return this;
+		}
+		
+		/**
+		 * Forwards every cell to the session whose ID is the cell's receiver
+		 * ID, through a {@link torcomm.protocol.TorCommSwitchboard
+		 * TorCommSwitchboard}, instead of replying to it. Echo, session logs
+		 * and interval recorders do not apply to forwarded cells.
+		 *
+		 * @return	this builder.
+		 */
+		public Builder switchboard()
+		{
+			this.switchboard = true;
+			return this;
+		}
+		
+		/**
+		 * Limits the connections that are served through the given admission
+		 * control, which rejects the others in the handshake. The switchboard
+		 * performs the handshakes of its sessions itself, which are therefore
+		 * counted as sessions as soon as they are admitted.
+		 *
+		 * @param admission	the admission control, which must not be shared
+		 * with other servers.
+		 * @return			this builder.
+		 */
+		public Builder admission(AdmissionControl admission)
+		{
+			this.admission = admission;
+			return this;
+		}
+		
+		/**
+		 * Accounts for the CPU time and the bytes allocated by every session,
+		 * which are written to its log, if any, and added up in {@link
+		 * TorCommServer#getCosts() getCosts()} when it is over.
+		 *
+		 * @param cost	the meter, which is copied by every session.
+		 * @return		this builder.
+		 */
+		public Builder costMeter(CostMeter cost)
+		{
+			this.cost = cost;
+			return this;
+		}
+		
+		/**
+		 * Coalesces the replies every session sends while more frames of its
+		 * client are still to be answered into batches, so that a session
+		 * answering a pipelined client under load does not take a write per
+		 * reply. The accounting is written to the session's log, if any, and
+		 * added up in {@link TorCommServer#getWriteBatching()
+		 * getWriteBatching()} when it is over. Sessions of the switchboard
+		 * are not batched.
+		 *
+		 * @param batcher	the batcher, which is copied by every session, or
+		 * <i>null</i> to send every reply through a write of its own.
+		 * @return			this builder.
+		 */
+		public Builder writeBatching(WriteBatcher batcher)
+		{
+			this.batcher = batcher;
+			return this;
+		}
+		
+		/**
+		 * Lets clients resume their sessions over a new connection when
+		 * theirs fails, holding every session up to the given grace period
+		 * after its connection failed. Sessions of the switchboard cannot be
+		 * resumed.
+		 *
+		 * @param grace	the grace period, in milliseconds, such as {@link
+		 * ResumptionRegistry#DEFAULT_GRACE DEFAULT_GRACE}, or 0 if sessions
+		 * cannot be resumed.
+		 * @return		this builder.
+		 */
+		public Builder resumption(long grace)
+		{
+			this.grace = grace;
+			return this;
+		}
+		
+		/**
+		 * Creates the server. The server does not listen until it is started.
+		 *
+		 * @return	the server.
+		 */
+		public TorCommServer build()
+		{
+			return new TorCommServer(this);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,335 @@
+package torcomm.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Decides which of the connections a server accepts are served, so that the sessions already admitted
+ * keep their latency when many clients connect at once, such as after a relay restarts. A connection
+ * is admitted only if:
+ * <ul>
+ * 	<li> fewer sessions than the session limit are running or performing their handshakes;
+ * 	<li> fewer handshakes than the pending limit are in progress, so that slow clients cannot hold
+ * 	every thread of the server;
+ * 	<li> a token is left in a bucket that is refilled at the accept rate, up to the burst.
+ * </ul>
+ * The other connections are rejected through a handshake that tells the client why and when to try
+ * again, as described in {@link torcomm.protocol.TorCommCapabilities TorCommCapabilities}, without a
+ * session thread being created for them. Older clients, which do not read the reason, see the
+ * connection closed after the handshake.
+ *
+ * <p> A server calls {@link #admit() admit()} for every connection it accepts, then either {@link
+ * #dismiss(TorCommTransport transport, int reason) dismiss(TorCommTransport transport, int reason)},
+ * which sends the rejection from a few shared background threads so that a client that does not read
+ * it cannot stall the accepting thread, or, once the handshake is done, {@link #established()
+ * established()}, or {@link #abandoned() abandoned()} if it failed, and {@link #ended() ended()} when
+ * the session is over. A limit of 0 or less sets no limit.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class AdmissionControl
+{
+	/** The connection was admitted. */
+	public static final int ADMITTED = 0;
+	
+	/** The session was rejected as the server runs as many sessions as it may. */
+	public static final int SESSION_LIMIT = 1;
+	
+	/** The session was rejected as the server performs as many handshakes as it may. */
+	public static final int PENDING_LIMIT = 2;
+	
+	/** The session was rejected as clients connect faster than the accept rate. */
+	public static final int RATE_LIMIT = 3;
+	
+	/** The session could not be resumed, as the server no longer holds it. Not decided by admission. */
+	public static final int UNKNOWN_SESSION = 4;
+	
+	/** The time, in milliseconds, after which clients rejected for a limit of sessions may try again. */
+	public static final int RETRY_AFTER = 1000;
+	
+	/** The time, in milliseconds, after which a rejection not yet sent is given up on. */
+	public static final int REJECT_TIMEOUT = 2000;
+	
+	private static final int REJECT_THREADS = 2;
+	private static final int REJECT_QUEUE = 256;
+	
+	private static final ThreadPoolExecutor REJECTERS;
+	private static final ScheduledExecutorService DEADLINES;
+	
+	static
+	{
+		ThreadFactory daemons = new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "AdmissionControl");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		REJECTERS = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 10, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(REJECT_QUEUE), daemons);
+		REJECTERS.allowCoreThreadTimeOut(true);
+		DEADLINES = Executors.newSingleThreadScheduledExecutor(daemons);
+	}
+	
+	private int maxSessions;
+	private int maxPending;
+	private double acceptRate;
+	private double burst;
+	
+	// State fields
+	private int sessions;
+	private int pending;
+	private double tokens;
+	private long refilled;
+	
+	// Accounting fields
+	private long admitted;
+	private long[] rejected = new long[RATE_LIMIT + 1];
+	
+	/**
+	 * Creates an admission control.
+	 *
+	 * @param maxSessions	the largest number of sessions, including those performing their
+	 * handshakes.
+	 * @param maxPending	the largest number of handshakes in progress.
+	 * @param acceptRate	the largest number of connections admitted per second, on average.
+	 * @param burst			the largest number of connections admitted at once when none was for a while,
+	 * which is at least 1.
+	 */
+	public AdmissionControl(int maxSessions, int maxPending, double acceptRate, int burst)
+	{
+		this.maxSessions = maxSessions;
+		this.maxPending = maxPending;
+		this.acceptRate = acceptRate;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.refilled = System.nanoTime();
+	}
+	
+	/**
+	 * Decides whether a connection that was just accepted is admitted, in which case it counts as a
+	 * handshake in progress.
+	 *
+	 * @return	{@link #ADMITTED ADMITTED}, or the reason for which it must be rejected.
+	 */
+	public synchronized int admit()
+	{
+		int reason = ADMITTED;
+		if (maxSessions > 0 && sessions + pending >= maxSessions)
+			reason = SESSION_LIMIT;
+		else if (maxPending > 0 && pending >= maxPending)
+			reason = PENDING_LIMIT;
+		else if (acceptRate > 0)
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilled) * acceptRate / 1e9);
+			refilled = now;
+			if (tokens < 1)
+				reason = RATE_LIMIT;
+			else
+				tokens--;
+		}
+		if (reason == ADMITTED)
+		{
+			pending++;
+			admitted++;
+		}
+		else
+			rejected[reason]++;
+		return reason;
+	}
+	
+	/**
+	 * Computes the time after which a client rejected for the given reason may try again.
+	 *
+	 * @param reason	the reason.
+	 * @return			the time, in milliseconds.
+	 */
+	private synchronized int getRetryAfter(int reason)
+	{
+		if (reason != RATE_LIMIT)
+			return RETRY_AFTER;
+		return (int)Math.ceil((1 - tokens) * 1000 / acceptRate);
+	}
+	
+	/**
+	 * Rejects a connection that was not admitted, through a handshake that tells the client why, and
+	 * closes it. The client's own handshake is not read, so that a client that does not send it cannot
+	 * delay the server, and the rejection carries the session ID 0. Over TLS, the rejection still
+	 * takes a TLS handshake.
+	 *
+	 * @param transport		the connection's transport.
+	 * @param reason		the reason returned by {@link #admit() admit()}.
+	 * @throws IOException	if an I/O error occurs when sending the handshake or closing the connection.
+	 */
+	public void reject(TorCommTransport transport, int reason) throws IOException
+	{
+		try
+		{
+			byte[] rejection = TorCommCapabilities.toRejection((short)0, reason, getRetryAfter(reason));
+			transport.send(rejection, 0, rejection.length);
+		} finally {
+			transport.close();
+		}
+	}
+	
+	/**
+	 * Rejects a connection that was not admitted as {@link #reject(TorCommTransport transport, int
+	 * reason) reject(TorCommTransport transport, int reason)} does, but in a background thread, so that
+	 * the calling thread returns at once. The connection is closed if the rejection is not sent within
+	 * {@link #REJECT_TIMEOUT REJECT_TIMEOUT} of this call, and closed without a rejection if too many
+	 * are waiting to be sent.
+	 *
+	 * @param transport	the connection's transport.
+	 * @param reason	the reason returned by {@link #admit() admit()}.
+	 */
+	public void dismiss(final TorCommTransport transport, final int reason)
+	{
+		// The deadline also covers the time spent waiting for a thread
+		final ScheduledFuture<?> deadline = DEADLINES.schedule(new Runnable()
+		{
+			public void run()
+			{
+				closeQuietly(transport);
+			}
+		}, REJECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		try
+		{
+			REJECTERS.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						reject(transport, reason);
+					} catch (IOException e) {
+						// The client went away or missed the deadline
+					} finally {
+						deadline.cancel(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			deadline.cancel(false);
+			closeQuietly(transport);
+		}
+	}
+	
+	/**
+	 * Closes a connection, ignoring any error.
+	 *
+	 * @param transport	the connection's transport.
+	 */
+	private static void closeQuietly(TorCommTransport transport)
+	{
+		try
+		{
+			transport.close();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * Counts an admitted connection whose handshake is done as a running session.
+	 */
+	public synchronized void established()
+	{
+		pending--;
+		sessions++;
+	}
+	
+	/**
+	 * Forgets an admitted connection whose handshake failed.
+	 */
+	public synchronized void abandoned()
+	{
+		pending--;
+	}
+	
+	/**
+	 * Forgets a session that is over.
+	 */
+	public synchronized void ended()
+	{
+		sessions--;
+	}
+	
+	/**
+	 * Retrieves the number of sessions running, not counting those performing their handshakes.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public synchronized int getSessionCount()
+	{
+		return sessions;
+	}
+	
+	/**
+	 * Retrieves the number of handshakes in progress.
+	 *
+	 * @return	the number of handshakes.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return pending;
+	}
+	
+	/**
+	 * Retrieves the number of connections admitted so far.
+	 *
+	 * @return	the number of connections.
+	 */
+	public synchronized long getAdmittedCount()
+	{
+		return admitted;
+	}
+	
+	/**
+	 * Retrieves the number of connections rejected so far for the given reason.
+	 *
+	 * @param reason	the reason, such as {@link #RATE_LIMIT RATE_LIMIT}.
+	 * @return			the number of connections.
+	 */
+	public synchronized long getRejectedCount(int reason)
+	{
+		return reason > ADMITTED && reason < rejected.length ? rejected[reason] : 0;
+	}
+	
+	/**
+	 * Describes the current state, as in <i>3 sessions, 1 pending, 40 admitted, 7 rejected (2 session
+	 * limit, 0 pending limit, 5 rate limit)</i>.
+	 *
+	 * @return	the description.
+	 */
+	public synchronized String getStatus()
+	{
+		return sessions + " sessions, " + pending + " pending, " + admitted + " admitted, " +
+			(rejected[SESSION_LIMIT] + rejected[PENDING_LIMIT] + rejected[RATE_LIMIT]) + " rejected (" +
+			rejected[SESSION_LIMIT] + " session limit, " + rejected[PENDING_LIMIT] + " pending limit, " +
+			rejected[RATE_LIMIT] + " rate limit)";
+	}
+	
+	/**
+	 * Describes a reason for which a session is rejected.
+	 *
+	 * @param reason	the reason.
+	 * @return			the description, as in <i>session limit</i>.
+	 */
+	public static String describe(int reason)
+	{
+		switch (reason)
+		{
+			case SESSION_LIMIT:
+				return "session limit";
+			case PENDING_LIMIT:
+				return "pending limit";
+			case RATE_LIMIT:
+				return "rate limit";
+			case UNKNOWN_SESSION:
+				return "unknown session";
+			default:
+				return "reason " + reason;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,236 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+
+/**
+ * A {@link torcomm.protocol.TorCommTransport TorCommTransport} over an {@link
+ * java.nio.channels.AsynchronousSocketChannel AsynchronousSocketChannel}. Every read and write is
+ * started with a completion handler, which is run by the channel's group and wakes up the calling
+ * thread once the operation is over. Reads and writes have handlers of their own, so that a frame may
+ * be sent while another is being received. The length and the data of a frame, or of a batch of
+ * frames, are sent through a single write, from a buffer that is reused for every frame.
+ *
+ * <p> As with the channels that can be interrupted, a thread interrupted while it waits for a read or a
+ * write closes the channel, since the operation cannot be cancelled and would leave the channel unable
+ * to start another.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class AsyncChannelTransport implements TorCommTransport
+{
+	private AsynchronousSocketChannel channel;
+	private Completion readCompletion;
+	private Completion writeCompletion;
+	private ByteBuffer header;
+	private ByteBuffer frame;
+	
+	/**
+	 * Creates a transport over the given channel.
+	 *
+	 * @param channel	the channel, which must be connected.
+	 */
+	public AsyncChannelTransport(AsynchronousSocketChannel channel)
+	{
+		this.channel = channel;
+		this.readCompletion = new Completion();
+		this.writeCompletion = new Completion();
+		this.header = ByteBuffer.allocate(4);
+		this.frame = ByteBuffer.allocate(4 + TorCommDataTranslator.CELL_SIZE);
+	}
+	
+	/**
+	 * The handler of the operation in progress, through which the calling thread waits for its result.
+	 */
+	private static final class Completion implements CompletionHandler<Integer, Void>
+	{
+		private boolean done;
+		private int result;
+		private Throwable failure;
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		public synchronized void completed(Integer result, Void attachment)
+		{
+			this.result = result;
+			this.done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		public synchronized void failed(Throwable failure, Void attachment)
+		{
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Waits for the operation in progress to be over and prepares the handler for the next one.
+		 *
+		 * @param channel						the channel, which is closed if the calling thread is
+		 * interrupted.
+		 * @return								the number of bytes read or written, or -1 at the end of
+		 * the stream.
+		 * @throws ClosedByInterruptException	if the calling thread was interrupted.
+		 * @throws IOException					if the operation failed.
+		 */
+		private synchronized int await(Channel channel) throws IOException
+		{
+			try
+			{
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				channel.close();
+				throw new ClosedByInterruptException();
+			}
+			done = false;
+			if (failure != null)
+			{
+				Throwable cause = failure;
+				failure = null;
+				if (cause instanceof IOException)
+					throw (IOException)cause;
+				throw new IOException(cause);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException
+	{
+		if (frame.capacity() < 4 + length)
+			frame = ByteBuffer.allocate(4 + length);
+		frame.clear();
+		frame.putInt(length).put(data, offset, length).flip();
+		write();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(List<byte[]> frames) throws IOException
+	{
+		int size = 0;
+		for (byte[] data : frames)
+			size += 4 + data.length;
+		if (frame.capacity() < size)
+			frame = ByteBuffer.allocate(size);
+		frame.clear();
+		for (byte[] data : frames)
+			frame.putInt(data.length).put(data);
+		frame.flip();
+		write();
+	}
+	
+	/**
+	 * Writes the contents of the frame buffer.
+	 *
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void write() throws IOException
+	{
+		while (frame.hasRemaining())
+		{
+			channel.write(frame, null, writeCompletion);
+			writeCompletion.await(channel);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] receive() throws IOException
+	{
+		byte[] data = new byte[readLength()];
+		readFully(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer receive(ByteBuffer buffer) throws IOException
+	{
+		int length = readLength();
+		buffer = TorCommTransport.ensureRemaining(buffer, length);
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + length);
+		readFully(buffer);
+		buffer.limit(limit);
+		return buffer;
+	}
+	
+	/**
+	 * Reads the length of the next frame.
+	 *
+	 * @return				the length.
+	 * @throws IOException	if an I/O or connection error occurs, or the length is invalid.
+	 */
+	private int readLength() throws IOException
+	{
+		header.clear();
+		readFully(header);
+		return TorCommTransport.checkLength(header.getInt(0));
+	}
+	
+	/**
+	 * Reads bytes until the given buffer is full.
+	 *
+	 * @param buffer		the buffer.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.read(buffer, null, readCompletion);
+			if (readCompletion.await(channel) < 0)
+				throw new EOFException();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		try
+		{
+			SocketAddress address = channel.getRemoteAddress();
+			return address == null ? null : ((InetSocketAddress)address).getAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Closes the channel, which fails the operation in progress, if any.
+	 *
+	 * @throws IOException	if an I/O error occurs when closing down the channel.
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
\ No newline at end of file
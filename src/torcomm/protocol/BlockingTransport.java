@@ -0,0 +1,126 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A {@link torcomm.protocol.TorCommTransport TorCommTransport} over a classic blocking {@link
+ * java.net.Socket Socket}, which is the only one able to connect through a proxy such as Tor's. The
+ * length and the data of a frame, or of a batch of frames, are sent through a single write, and
+ * frames are received through a buffered stream, so that reading the length of a frame does not take
+ * a system call per byte.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class BlockingTransport implements TorCommTransport
+{
+	private Socket connection;
+	private DataInputStream in;
+	private OutputStream out;
+	private byte[] frame;
+	
+	/**
+	 * Creates a transport over the given socket.
+	 *
+	 * @param connection	the socket, which must be connected.
+	 * @throws IOException	if the socket is not connected.
+	 */
+	public BlockingTransport(Socket connection) throws IOException
+	{
+		if (!connection.isConnected())
+			throw new IOException("Disconnected socket.");
+		this.connection = connection;
+		this.in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+		this.out = connection.getOutputStream();
+		this.frame = new byte[4 + TorCommDataTranslator.CELL_SIZE];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException
+	{
+		if (frame.length < 4 + length)
+			frame = new byte[4 + length];
+		frame[0] = (byte)(length >>> 24);
+		frame[1] = (byte)(length >>> 16);
+		frame[2] = (byte)(length >>> 8);
+		frame[3] = (byte)length;
+		System.arraycopy(data, offset, frame, 4, length);
+		out.write(frame, 0, 4 + length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(List<byte[]> frames) throws IOException
+	{
+		int size = 0;
+		for (byte[] data : frames)
+			size += 4 + data.length;
+		if (frame.length < size)
+			frame = new byte[size];
+		ByteBuffer batch = ByteBuffer.wrap(frame);
+		for (byte[] data : frames)
+			batch.putInt(data.length).put(data);
+		out.write(frame, 0, size);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] receive() throws IOException
+	{
+		byte[] data = new byte[TorCommTransport.checkLength(in.readInt())];
+		in.readFully(data);
+		return data;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer receive(ByteBuffer buffer) throws IOException
+	{
+		int length = TorCommTransport.checkLength(in.readInt());
+		buffer = TorCommTransport.ensureRemaining(buffer, length);
+		in.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		buffer.position(buffer.position() + length);
+		return buffer;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int available() throws IOException
+	{
+		return in.available();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen()
+	{
+		return !connection.isClosed();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return connection.getInetAddress();
+	}
+	
+	/**
+	 * Closes the socket and its streams.
+	 *
+	 * @throws IOException	if an I/O error occurs when closing down the socket.
+	 */
+	public void close() throws IOException
+	{
+		connection.close();
+	}
+}
\ No newline at end of file
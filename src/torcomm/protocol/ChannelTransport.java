@@ -0,0 +1,217 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+
+/**
+ * A {@link torcomm.protocol.TorCommTransport TorCommTransport} over a non-blocking {@link
+ * java.nio.channels.SocketChannel SocketChannel}. Reads and writes are attempted at once, and the
+ * calling thread only waits on a selector when the channel is not ready, so that frames already
+ * available are received without blocking. Reads and writes wait on selectors of their own, so that a
+ * frame may be sent while another is being received. The length and the data of a frame, or of a
+ * batch of frames, are sent through a single gathering write.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class ChannelTransport implements TorCommTransport
+{
+	private SocketChannel channel;
+	private Selector readSelector;
+	private Selector writeSelector;
+	private ByteBuffer header;
+	private ByteBuffer[] frame;
+	private ByteBuffer lengths;
+	
+	/**
+	 * Creates a transport over the given channel, which is made non-blocking.
+	 *
+	 * @param channel		the channel, which must be connected.
+	 * @throws IOException	if the channel is not connected or the selectors could not be opened.
+	 */
+	public ChannelTransport(SocketChannel channel) throws IOException
+	{
+		if (!channel.isConnected())
+			throw new IOException("Disconnected channel.");
+		this.channel = channel;
+		channel.configureBlocking(false);
+		this.readSelector = Selector.open();
+		this.writeSelector = Selector.open();
+		channel.register(readSelector, SelectionKey.OP_READ);
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+		this.header = ByteBuffer.allocate(4);
+		this.frame = new ByteBuffer[]{ByteBuffer.allocate(4), null};
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException
+	{
+		frame[0].clear();
+		frame[0].putInt(length).flip();
+		frame[1] = ByteBuffer.wrap(data, offset, length);
+		write(frame);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(List<byte[]> frames) throws IOException
+	{
+		if (lengths == null || lengths.capacity() < 4 * frames.size())
+			lengths = ByteBuffer.allocate(4 * frames.size());
+		lengths.clear();
+		ByteBuffer[] batch = new ByteBuffer[2 * frames.size()];
+		for (int i = 0; i < frames.size(); i++)
+		{
+			byte[] data = frames.get(i);
+			lengths.putInt(data.length);
+			batch[2 * i] = ByteBuffer.wrap(lengths.array(), 4 * i, 4);
+			batch[2 * i + 1] = ByteBuffer.wrap(data);
+		}
+		write(batch);
+	}
+	
+	/**
+	 * Writes the given buffers through gathering writes until all of them are empty.
+	 *
+	 * @param buffers		the buffers.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void write(ByteBuffer[] buffers) throws IOException
+	{
+		int first = 0;
+		while (first < buffers.length)
+		{
+			if (channel.write(buffers, first, buffers.length - first) == 0)
+				await(writeSelector);
+			while (first < buffers.length && !buffers[first].hasRemaining())
+				first++;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] receive() throws IOException
+	{
+		byte[] data = new byte[readLength()];
+		readFully(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer receive(ByteBuffer buffer) throws IOException
+	{
+		int length = readLength();
+		buffer = TorCommTransport.ensureRemaining(buffer, length);
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + length);
+		readFully(buffer);
+		buffer.limit(limit);
+		return buffer;
+	}
+	
+	/**
+	 * Reads the length of the next frame.
+	 *
+	 * @return				the length.
+	 * @throws IOException	if an I/O or connection error occurs, or the length is invalid.
+	 */
+	private int readLength() throws IOException
+	{
+		header.clear();
+		readFully(header);
+		return TorCommTransport.checkLength(header.getInt(0));
+	}
+	
+	/**
+	 * Reads bytes until the given buffer is full.
+	 *
+	 * @param buffer		the buffer.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = channel.read(buffer);
+			if (read < 0)
+				throw new EOFException();
+			if (read == 0)
+				await(readSelector);
+		}
+	}
+	
+	/**
+	 * Waits until the channel is ready for the operation the given selector waits for.
+	 *
+	 * @param selector		the selector of reads or of writes.
+	 * @throws IOException	if the transport was closed while waiting.
+	 */
+	private void await(Selector selector) throws IOException
+	{
+		try
+		{
+			selector.select();
+			selector.selectedKeys().clear();
+		} catch (CancelledKeyException | ClosedSelectorException e) {
+			throw new ClosedChannelException();
+		}
+		if (!channel.isOpen())
+			throw new ClosedChannelException();
+	}
+	
+	/**
+	 * Tells whether the channel is ready to be read, without waiting, as the channel's own buffer is
+	 * not sized.
+	 *
+	 * @return				1 if the channel can be read, and 0 otherwise.
+	 * @throws IOException	if the transport was closed.
+	 */
+	public int available() throws IOException
+	{
+		try
+		{
+			int ready = readSelector.selectNow();
+			readSelector.selectedKeys().clear();
+			return ready > 0 ? 1 : 0;
+		} catch (CancelledKeyException | ClosedSelectorException e) {
+			throw new ClosedChannelException();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return channel.socket().getInetAddress();
+	}
+	
+	/**
+	 * Closes the channel and wakes up the threads waiting on it, if any.
+	 *
+	 * @throws IOException	if an I/O error occurs when closing down the channel.
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+		readSelector.close();
+		writeSelector.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+package torcomm.protocol;
+
+import torcomm.stats.*;
+
+/**
+ * Estimates the offset and drift of a remote host's clock relative to the local clock from the
+ * timestamps exchanged in {@link torcomm.protocol.TorCommCell TorCommCells}, in the same way as NTP.
+ * Every exchange gives a sample made of the local time at which a cell was sent, the remote timestamp
+ * of the reply and the local time at which the reply arrived. The remote host stamps its reply right
+ * after receiving the local cell, so the offset of a sample is the remote timestamp minus the middle
+ * point of the round trip.
+ *
+ * <p> Samples with a large round trip time are the least accurate, so only the sample with the smallest
+ * round trip time among the last {@value #FILTER_SIZE} is taken as an estimate. The drift is the slope
+ * of a least squares fit over the last {@value #HISTORY_SIZE} estimates. With the offset at hand, the
+ * one-way delay of each direction is recorded separately in microseconds.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class ClockOffsetEstimator
+{
+	/** The number of samples among which the one with the smallest round trip time is chosen. */
+	public static final int FILTER_SIZE = 8;
+	/** The number of filtered estimates used to compute the drift. */
+	public static final int HISTORY_SIZE = 32;
+	
+	// Clock filter fields
+	private long[] sampleRTT;
+	private double[] sampleOffset;
+	private long[] sampleTime;
+	private int samples;
+	private int chosen;
+	
+	// Drift fields
+	private double[] historyOffset;
+	private long[] historyTime;
+	private int estimates;
+	private double offset;
+	private long offsetTime;
+	private double drift;
+	
+	// Delay fields
+	private LatencyHistogram outbound;
+	private LatencyHistogram inbound;
+	private LatencyHistogram rtt;
+	
+	/**
+	 * Creates an estimator that has no samples yet and, therefore, assumes that both clocks agree.
+	 */
+	public ClockOffsetEstimator()
+	{
+		chosen = -1;
+		sampleRTT = new long[FILTER_SIZE];
+		sampleOffset = new double[FILTER_SIZE];
+		sampleTime = new long[FILTER_SIZE];
+		historyOffset = new double[HISTORY_SIZE];
+		historyTime = new long[HISTORY_SIZE];
+		outbound = new LatencyHistogram();
+		inbound = new LatencyHistogram();
+		rtt = new LatencyHistogram();
+	}
+	
+	/**
+	 * Adds a sample to the estimator and records the one-way delays of the exchange.
+	 *
+	 * @param localSend		the local time at which the local cell was sent, in milliseconds.
+	 * @param remoteStamp	the remote timestamp of the reply, in milliseconds.
+	 * @param localReceive	the local time at which the reply arrived, in milliseconds.
+	 */
+	public void sample(long localSend, long remoteStamp, long localReceive)
+	{
+		long roundTrip = Math.max(0, localReceive - localSend);
+		int slot = samples % FILTER_SIZE;
+		sampleRTT[slot] = roundTrip;
+		sampleOffset[slot] = remoteStamp - (localSend + localReceive) / 2.0;
+		sampleTime[slot] = localReceive;
+		samples++;
+		
+		// Slots hold the samples numbered from samples - FILTER_SIZE onwards
+		int best = slot;
+		for (int i = 0; i < Math.min(samples, FILTER_SIZE); i++)
+			if (sampleRTT[i] < sampleRTT[best])
+				best = i;
+		int bestNumber = samples - 1 - (slot - best + FILTER_SIZE) % FILTER_SIZE;
+		if (bestNumber != chosen)
+		{
+			chosen = bestNumber;
+			addEstimate(sampleTime[best], sampleOffset[best]);
+		}
+		
+		double current = getOffset(localReceive);
+		outbound.record(Math.round((remoteStamp - current - localSend) * 1000));
+		inbound.record(Math.round((localReceive - (remoteStamp - current)) * 1000));
+		rtt.record(roundTrip * 1000);
+	}
+	
+	/**
+	 * Retrieves the estimated offset of the remote clock at the given local time, that is, how much
+	 * the remote clock is ahead of the local one.
+	 *
+	 * @param localTime	the local time, in milliseconds.
+	 * @return			the offset, in milliseconds.
+	 */
+	public double getOffset(long localTime)
+	{
+		return offset + drift * (localTime - offsetTime);
+	}
+	
+	/**
+	 * Retrieves the last estimated offset of the remote clock.
+	 *
+	 * @return	the offset, in milliseconds.
+	 */
+	public double getOffset()
+	{
+		return offset;
+	}
+	
+	/**
+	 * Retrieves the estimated drift of the remote clock.
+	 *
+	 * @return	the drift, in parts per million.
+	 */
+	public double getDriftPPM()
+	{
+		return drift * 1000000;
+	}
+	
+	/**
+	 * Retrieves the one-way delays from the local host to the remote host.
+	 *
+	 * @return	the delay distribution, in microseconds.
+	 */
+	public LatencyHistogram getOutboundDelay()
+	{
+		return outbound;
+	}
+	
+	/**
+	 * Retrieves the one-way delays from the remote host to the local host.
+	 *
+	 * @return	the delay distribution, in microseconds.
+	 */
+	public LatencyHistogram getInboundDelay()
+	{
+		return inbound;
+	}
+	
+	/**
+	 * Retrieves the round trip times of every sample.
+	 *
+	 * @return	the round trip time distribution, in microseconds.
+	 */
+	public LatencyHistogram getRoundTrip()
+	{
+		return rtt;
+	}
+	
+	/**
+	 * Stores a filtered estimate and fits the drift over the stored estimates.
+	 *
+	 * @param time		the local time of the estimate, in milliseconds.
+	 * @param estimate	the estimated offset, in milliseconds.
+	 */
+	private void addEstimate(long time, double estimate)
+	{
+		int slot = estimates % HISTORY_SIZE;
+		historyTime[slot] = time;
+		historyOffset[slot] = estimate;
+		estimates++;
+		offset = estimate;
+		offsetTime = time;
+		
+		int n = Math.min(estimates, HISTORY_SIZE);
+		if (n < 2)
+			return;
+		double meanTime = 0, meanOffset = 0;
+		for (int i = 0; i < n; i++)
+		{
+			meanTime += historyTime[i] - time;
+			meanOffset += historyOffset[i];
+		}
+		meanTime /= n;
+		meanOffset /= n;
+		double covariance = 0, variance = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double dt = historyTime[i] - time - meanTime;
+			covariance += dt * (historyOffset[i] - meanOffset);
+			variance += dt * dt;
+		}
+		drift = variance > 0 ? covariance / variance : 0;
+	}
+}
\ No newline at end of file
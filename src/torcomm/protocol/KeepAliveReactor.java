@@ -0,0 +1,546 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A server for long-lived, mostly idle sessions of the {@link torcomm.protocol.TorCommSession
+ * TorCommSession} protocol. Instead of two threads, piped streams and a log file per session, every
+ * session is a non-blocking {@link java.nio.channels.SocketChannel SocketChannel} registered in a
+ * single {@link java.nio.channels.Selector Selector} with a small {@link IdleSession IdleSession}
+ * attached to it. The only thread of the reactor is woken either when a channel is readable or, once
+ * a second, to close the sessions that have not sent a heartbeat within the idle timeout.
+ *
+ * <p> Clients perform the usual handshake and then send cells as heartbeats. Each heartbeat is
+ * answered with a server cell, and a cell requesting the end of the connection is acknowledged before
+ * the channel is closed, so any client of the protocol can use this server. Replies are encoded into a
+ * buffer shared by all sessions, and partial frames are the only per-session data that is buffered.
+ *
+ * <p> Sessions that send many cells at once are served in deficit round robin order, so that they
+ * cannot delay the heartbeats of the others. At each turn, a session may answer as many cells as its
+ * quantum, which is the reactor's quantum times the session's weight, plus whatever it did not use at
+ * its last turn if it still has cells waiting. Frames longer than a cell count as the number of cells
+ * they would fill. A session whose cells do not fit in its quantum is not read from until they are
+ * answered, so that its client is slowed down by TCP flow control instead. The share of the cells
+ * answered by the reactor that went to each session is reported by {@link #getServiceShares(int limit)
+ * getServiceShares(int limit)}.
+ *
+ * <p> The heap used by each idle session can be measured by {@link #measureBytesPerSession()
+ * measureBytesPerSession()}, which shall stay under {@value #TARGET_BYTES_PER_SESSION} bytes.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class KeepAliveReactor implements Runnable, Closeable
+{
+	/** The acceptance target of the heap used by an idle session, in bytes. */
+	public static final int TARGET_BYTES_PER_SESSION = 2048;
+	
+	/** The number of cells answered at each turn of a session of weight 1, by default. */
+	public static final int DEFAULT_QUANTUM = 16;
+	
+	private static final int HANDSHAKE_SIZE = 8;
+	private static final int ACCEPT_BACKOFF = 100;
+	
+	// IO fields
+	private Selector selector;
+	private ServerSocketChannel server;
+	private SelectionKey acceptKey;
+	private ByteBuffer readBuffer;
+	private ByteBuffer writeBuffer;
+	private TorCommCell reply;
+	private Random random;
+	
+	// Scheduling fields
+	private Deque<SelectionKey> backlogged;
+	private Set<IdleSession> open;
+	private int quantum;
+	private Weigher weigher;
+	private long acceptResume;
+	
+	// Properties fields
+	private long idleTimeout;
+	private volatile boolean running;
+	
+	// Statistics fields
+	private volatile int sessions;
+	private volatile long heartbeats;
+	private volatile long timeouts;
+	private volatile long acceptFailures;
+	private long baselineHeap;
+	
+	/**
+	 * Opens a reactor that accepts sessions at the given port. The reactor only starts serving them
+	 * once {@link #run() run()} is called.
+	 *
+	 * @param port			the port at which clients connect.
+	 * @param idleTimeout	the number of seconds after which a session that sent no heartbeat is
+	 * closed.
+	 * @throws IOException	if the port could not be bound.
+	 */
+	public KeepAliveReactor(int port, int idleTimeout) throws IOException
+	{
+		this.idleTimeout = idleTimeout * 1000L;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 4096);
+		server.configureBlocking(false);
+		acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		writeBuffer = ByteBuffer.allocateDirect(64);
+		reply = new TorCommCell();
+		random = new Random();
+		backlogged = new ArrayDeque<SelectionKey>();
+		open = ConcurrentHashMap.newKeySet();
+		quantum = DEFAULT_QUANTUM;
+		running = true;
+		baselineHeap = usedHeap();
+	}
+	
+	/**
+	 * Decides the weight of each session, that is, the number of quanta it may answer at each turn.
+	 */
+	public interface Weigher
+	{
+		/**
+		 * Decides the weight of a session once its handshake is done.
+		 *
+		 * @param clientID	the client's session ID.
+		 * @param address	the client's address.
+		 * @return			the weight, which is taken as 1 if it is smaller.
+		 */
+		int weigh(short clientID, InetAddress address);
+	}
+	
+	/**
+	 * The state kept for each session between heartbeats.
+	 */
+	private static final class IdleSession
+	{
+		private short sessionID;
+		private short destID;
+		private boolean handshaken;
+		private long lastActivity;
+		private byte[] partial;
+		
+		// Scheduling fields
+		private int weight = 1;
+		private int deficit;
+		private volatile long served;
+	}
+	
+	/**
+	 * Sets the number of cells a session of weight 1 may answer at each turn. It must be called before
+	 * the reactor runs.
+	 *
+	 * @param quantum	the number of cells, which is taken as 1 if it is smaller.
+	 */
+	public void setQuantum(int quantum)
+	{
+		this.quantum = Math.max(1, quantum);
+	}
+	
+	/**
+	 * Sets up the weights of the sessions, which are otherwise all 1. It must be called before the
+	 * reactor runs.
+	 *
+	 * @param weigher	the weigher, or <i>null</i> to weigh every session as 1.
+	 */
+	public void setWeigher(Weigher weigher)
+	{
+		this.weigher = weigher;
+	}
+	
+	/**
+	 * Serves every session until the reactor is closed.
+	 */
+	public void run()
+	{
+		try
+		{
+			long nextSweep = System.currentTimeMillis() + 1000;
+			while (running)
+			{
+				long timeout = 1000;
+				if (acceptResume != 0)
+				{
+					timeout = acceptResume - System.currentTimeMillis();
+					if (timeout <= 0)
+					{
+						acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+						acceptResume = 0;
+						timeout = 1000;
+					}
+				}
+				// Sessions with cells waiting take their turns without waiting for new ones
+				if (backlogged.isEmpty())
+					selector.select(Math.min(timeout, 1000));
+				else
+					selector.selectNow();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.isReadable())
+						read(key);
+				}
+				serveBacklog();
+				long now = System.currentTimeMillis();
+				if (now >= nextSweep)
+				{
+					sweep(now);
+					nextSweep = now + 1000;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Keep-alive reactor error. " + e.getMessage(), e);
+		} finally {
+			try
+			{
+				for (SelectionKey key : selector.keys())
+					key.channel().close();
+				selector.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Error when closing down reactor.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the reactor and closes every session.
+	 */
+	public void close()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Retrieves the number of open sessions.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public int getSessionCount()
+	{
+		return sessions;
+	}
+	
+	/**
+	 * Measures the heap used by each open session, that is, the heap in use above the heap used when
+	 * the reactor was opened, divided by the number of sessions. The garbage collector is run before
+	 * the measurement, so this method shall not be called often.
+	 *
+	 * @return	the bytes used by each session, or 0 if there are no sessions.
+	 */
+	public long measureBytesPerSession()
+	{
+		int count = sessions;
+		if (count == 0)
+			return 0;
+		return Math.max(0, usedHeap() - baselineHeap) / count;
+	}
+	
+	/**
+	 * Summarizes the state of the reactor into a single line of text.
+	 *
+	 * @return	the summary.
+	 */
+	public String getStatus()
+	{
+		long perSession = measureBytesPerSession();
+		return "Idle sessions: " + sessions + ", heartbeats: " + heartbeats + ", timeouts: " +
+			timeouts + ", accept failures: " + acceptFailures + ", heap per session: " + perSession +
+			" bytes (target " + TARGET_BYTES_PER_SESSION + ", " + (perSession <=
+			TARGET_BYTES_PER_SESSION ? "met" : "missed") + ")";
+	}
+	
+	/**
+	 * Describes the share of the cells answered so far, counted as in the quanta, that went to each of
+	 * the open sessions that were served the most, one session per line, as in
+	 * <i>Session 1234 (weight 2): 5120 cells, 40.0%</i>.
+	 *
+	 * @param limit	the largest number of sessions described.
+	 * @return		the description, which is empty if no cell was answered.
+	 */
+	public String getServiceShares(int limit)
+	{
+		List<IdleSession> served = new ArrayList<IdleSession>(open);
+		long total = 0;
+		long[] cells = new long[served.size()];
+		for (int i = 0; i < cells.length; i++)
+			total += cells[i] = served.get(i).served;
+		Integer[] order = new Integer[cells.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(cells[b], cells[a]));
+		StringBuilder shares = new StringBuilder();
+		for (int i = 0; i < Math.min(limit, order.length) && total > 0; i++)
+		{
+			IdleSession session = served.get(order[i]);
+			shares.append(shares.length() == 0 ? "" : "\n").append("Session " + session.destID +
+				" (weight " + session.weight + "): " + cells[order[i]] + " cells, " + String.format(
+				"%.1f%%", cells[order[i]] * 100.0 / total));
+		}
+		return shares.toString();
+	}
+	
+	/**
+	 * Accepts every pending connection. If accepting fails, such as when the process runs out of file
+	 * descriptors, the failure is counted and no connection is accepted for a while, so that the
+	 * reactor keeps serving the open sessions. A connection that cannot be set up is closed.
+	 */
+	private void accept()
+	{
+		while (true)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = server.accept();
+			} catch (IOException e) {
+				acceptFailures++;
+				acceptKey.interestOps(0);
+				acceptResume = System.currentTimeMillis() + ACCEPT_BACKOFF;
+				return;
+			}
+			if (channel == null)
+				return;
+			IdleSession session = new IdleSession();
+			session.sessionID = (short)random.nextInt(Short.MAX_VALUE);
+			session.lastActivity = System.currentTimeMillis();
+			try
+			{
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.register(selector, SelectionKey.OP_READ, session);
+			} catch (IOException e) {
+				try
+				{
+					channel.close();
+				} catch (IOException e1) {}
+				continue;
+			}
+			open.add(session);
+			sessions++;
+		}
+	}
+	
+	/**
+	 * Reads the bytes available at a channel and answers the complete frames among them, as the turn
+	 * of the channel's session.
+	 *
+	 * @param key	the channel's key.
+	 */
+	private void read(SelectionKey key)
+	{
+		SocketChannel channel = (SocketChannel)key.channel();
+		IdleSession session = (IdleSession)key.attachment();
+		try
+		{
+			readBuffer.clear();
+			if (session.partial != null)
+			{
+				readBuffer.put(session.partial);
+				session.partial = null;
+			}
+			if (channel.read(readBuffer) < 0)
+			{
+				end(key);
+				return;
+			}
+			readBuffer.flip();
+			session.lastActivity = System.currentTimeMillis();
+			answer(key, channel, session);
+		} catch (IOException e) {
+			end(key);
+		}
+	}
+	
+	/**
+	 * Gives a turn to every session that had cells waiting at the end of its last turn, in the order in
+	 * which they were left waiting.
+	 */
+	private void serveBacklog()
+	{
+		for (int turns = backlogged.size(); turns > 0; turns--)
+		{
+			SelectionKey key = backlogged.poll();
+			if (!key.isValid())
+				continue;
+			IdleSession session = (IdleSession)key.attachment();
+			try
+			{
+				readBuffer.clear();
+				readBuffer.put(session.partial);
+				session.partial = null;
+				readBuffer.flip();
+				answer(key, (SocketChannel)key.channel(), session);
+			} catch (IOException e) {
+				end(key);
+			}
+		}
+	}
+	
+	/**
+	 * Answers the complete frames held by the read buffer, as many as the session's quantum and the
+	 * deficit left from its last turn allow, and keeps the others for its next turn. The session is
+	 * not read from while it has cells waiting.
+	 *
+	 * @param key			the session channel's key.
+	 * @param channel		the session's channel.
+	 * @param session		the session.
+	 * @throws IOException	if a frame is invalid or a reply could not be written.
+	 */
+	private void answer(SelectionKey key, SocketChannel channel, IdleSession session) throws IOException
+	{
+		session.deficit += quantum * session.weight;
+		while (readBuffer.remaining() >= 4)
+		{
+			int length = readBuffer.getInt(readBuffer.position());
+			if (length < 0 || length > readBuffer.capacity() - 4)
+				throw new IOException("Invalid frame length " + length);
+			// Frames longer than a cell cost as many cells as they fill
+			int cost = Math.max(1, (length + TorCommDataTranslator.CELL_SIZE - 1) /
+				TorCommDataTranslator.CELL_SIZE);
+			if (readBuffer.remaining() < 4 + length || cost > session.deficit)
+				break;
+			readBuffer.position(readBuffer.position() + 4);
+			int frameEnd = readBuffer.position() + length;
+			boolean open = frame(channel, session, length);
+			readBuffer.position(frameEnd);
+			session.deficit -= cost;
+			session.served += cost;
+			if (!open)
+			{
+				end(key);
+				return;
+			}
+		}
+		if (readBuffer.hasRemaining())
+		{
+			session.partial = new byte[readBuffer.remaining()];
+			readBuffer.get(session.partial);
+		}
+		boolean waiting = session.partial != null && session.partial.length >= 4 &&
+			session.partial.length >= 4 + ByteBuffer.wrap(session.partial).getInt();
+		if (waiting)
+			backlogged.add(key);
+		else
+			session.deficit = 0;
+		key.interestOps(waiting ? 0 : SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * Answers a single frame that starts at the current position of the read buffer.
+	 *
+	 * @param channel		the session's channel.
+	 * @param session		the session.
+	 * @param length		the frame's length.
+	 * @return				<i>false</i> if the session shall be closed, and <i>true</i> otherwise.
+	 * @throws IOException	if the reply could not be written.
+	 */
+	private boolean frame(SocketChannel channel, IdleSession session, int length) throws IOException
+	{
+		writeBuffer.clear();
+		if (!session.handshaken)
+		{
+			session.destID = readBuffer.getShort(readBuffer.position());
+			session.handshaken = true;
+			if (weigher != null)
+				session.weight = Math.max(1, weigher.weigh(session.destID, channel.socket().
+					getInetAddress()));
+			writeBuffer.putInt(HANDSHAKE_SIZE);
+			writeBuffer.putShort(session.sessionID);
+			writeBuffer.putShort((short)0).putInt(0);
+			write(channel);
+			return true;
+		}
+		if (length < TorCommDataTranslator.CELL_SIZE)
+			throw new IOException("Frame too short for a cell.");
+		boolean endConnection = readBuffer.get(readBuffer.position() +
+			TorCommDataTranslator.END_CONNECTION_OFFSET) > 0;
+		reply.senderID = session.sessionID;
+		reply.receiverID = session.destID;
+		TorCommDataTranslator.stamp(reply, LocalDateTime.now());
+		reply.endConnection = (byte)(endConnection ? 1 : 0);
+		reply.payload = random.nextInt(Integer.MAX_VALUE);
+		writeBuffer.putInt(TorCommDataTranslator.CELL_SIZE);
+		TorCommDataTranslator.translate(reply, writeBuffer);
+		write(channel);
+		heartbeats++;
+		return !endConnection;
+	}
+	
+	/**
+	 * Writes the reply held by the write buffer. A reply is a few dozen bytes long, so it only fails to
+	 * be written at once when the client stopped reading, in which case the session is dropped.
+	 *
+	 * @param channel		the session's channel.
+	 * @throws IOException	if the reply could not be written.
+	 */
+	private void write(SocketChannel channel) throws IOException
+	{
+		writeBuffer.flip();
+		channel.write(writeBuffer);
+		if (writeBuffer.hasRemaining())
+			throw new IOException("Client is not reading.");
+	}
+	
+	/**
+	 * Closes the sessions whose last heartbeat is older than the idle timeout.
+	 *
+	 * @param now	the current time, in milliseconds.
+	 */
+	private void sweep(long now)
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			Object attachment = key.attachment();
+			if (key.isValid() && attachment instanceof IdleSession &&
+				now - ((IdleSession)attachment).lastActivity > idleTimeout)
+			{
+				timeouts++;
+				end(key);
+			}
+		}
+	}
+	
+	/**
+	 * Closes a session.
+	 *
+	 * @param key	the session channel's key.
+	 */
+	private void end(SelectionKey key)
+	{
+		if (!key.isValid())
+			return;
+		open.remove(key.attachment());
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		} catch (IOException e) {}
+		sessions--;
+	}
+	
+	/**
+	 * Retrieves the heap in use after running the garbage collector.
+	 *
+	 * @return	the heap in use, in bytes.
+	 */
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+package torcomm.protocol;
+
+import torcomm.stats.LatencyHistogram;
+
+/**
+ * Decides which cells of a {@link torcomm.protocol.TorCommSession TorCommSession} are written to its log,
+ * so that the log does not slow down the communication at high cell rates. A cell is logged if it is
+ * one of every <i>n</i> cells and, when a rate limit is set, if no other cell was logged during the
+ * last <i>1 / rate</i> seconds. The round trip times of every cell, logged or not, are summarized in a
+ * line written at every summary interval.
+ *
+ * <p> Both lines of a cell, the client's and the server's, are either logged or not, so sampled logs
+ * can still be read by {@link torcomm.RunTorCommAnalyzer RunTorCommAnalyzer}.
+ *
+ * <p> A sampler holds the state of a single session. A session copies the sampler it is given, so the
+ * same sampler can be given to many sessions.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class LogSampler
+{
+	private int every;
+	private double maxPerSecond;
+	private long summaryInterval;
+
+	// Session state fields
+	private long cells;
+	private long nextLogged;
+	private long summaryStart;
+	private long summaryCells;
+	private long summaryLogged;
+	private LatencyHistogram roundTrip;
+
+	/**
+	 * Creates a sampler.
+	 *
+	 * @param every				the number of cells out of which one is logged. 1 or less logs every cell.
+	 * @param maxPerSecond		the largest number of cells logged per second. 0 or less sets no limit.
+	 * @param summaryInterval	the interval between two summary lines, in milliseconds. 0 or less
+	 * writes no summary.
+	 */
+	public LogSampler(int every, double maxPerSecond, long summaryInterval)
+	{
+		this.every = Math.max(1, every);
+		this.maxPerSecond = maxPerSecond;
+		this.summaryInterval = summaryInterval;
+		this.roundTrip = new LatencyHistogram();
+		this.summaryStart = System.currentTimeMillis();
+		this.nextLogged = System.nanoTime();
+	}
+
+	/**
+	 * Creates a sampler with the same settings as the given one, but a state of its own.
+	 *
+	 * @param settings	the sampler whose settings are copied.
+	 */
+	public LogSampler(LogSampler settings)
+	{
+		this(settings.every, settings.maxPerSecond, settings.summaryInterval);
+	}
+
+	/**
+	 * Decides whether the next cell shall be logged.
+	 *
+	 * @param nowNanos	the current time, as given by {@link System#nanoTime() System.nanoTime()}.
+	 * @return			<i>true</i> if the cell shall be logged, and <i>false</i> otherwise.
+	 */
+	public boolean sample(long nowNanos)
+	{
+		summaryCells++;
+		if (cells++ % every != 0)
+			return false;
+		if (maxPerSecond > 0)
+		{
+			if (nowNanos - nextLogged < 0)
+				return false;
+			nextLogged = nowNanos + (long)(1e9 / maxPerSecond);
+		}
+		summaryLogged++;
+		return true;
+	}
+
+	/**
+	 * Records the round trip time of a cell, whether it was logged or not.
+	 *
+	 * @param roundTripMicros	the round trip time, in microseconds.
+	 */
+	public void record(long roundTripMicros)
+	{
+		roundTrip.record(roundTripMicros);
+	}
+
+	/**
+	 * Retrieves the summary line of the current interval if the interval is over, and starts a new
+	 * interval.
+	 *
+	 * @param nowMillis	the current time, in milliseconds.
+	 * @return			the summary line, or <i>null</i> if the interval is not over or no summary is
+	 * written.
+	 */
+	public String summary(long nowMillis)
+	{
+		if (summaryInterval <= 0 || nowMillis - summaryStart < summaryInterval)
+			return null;
+		return flush(nowMillis);
+	}
+
+	/**
+	 * Retrieves the summary line of the current interval, whether it is over or not, and starts a new
+	 * interval.
+	 *
+	 * @param nowMillis	the current time, in milliseconds.
+	 * @return			the summary line, or <i>null</i> if no cell was exchanged during the interval.
+	 */
+	public String flush(long nowMillis)
+	{
+		if (summaryCells == 0)
+			return null;
+		String line = "Summary of " + summaryCells + " cells in " + (nowMillis - summaryStart) + " ms, " +
+			summaryLogged + " logged. Round trip time (us) " + roundTrip;
+		summaryStart = nowMillis;
+		summaryCells = 0;
+		summaryLogged = 0;
+		roundTrip.reset();
+		return line;
+	}
+}
@@ -0,0 +1,246 @@
+package torcomm.protocol;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sessions of a server that clients may resume over a new connection when theirs fails, such as
+ * when a Tor circuit is torn down during a run. Each session that agreed on {@link
+ * torcomm.protocol.TorCommCapabilities#RESUMPTION RESUMPTION} in its handshake is given a random token.
+ * When its connection fails, the thread running the session waits for the client to connect again with
+ * the token, up to the grace period, and then goes on with the new connection. Sessions whose clients
+ * do not come back within the grace period end, so that no half of a session is left behind.
+ *
+ * <p> A client may come back before the server notices that the old connection failed, in which case
+ * the old connection is closed, so that the session waiting on it moves on to the new one. The client
+ * tells from which cell it sends its cells again, so that the session goes on numbering them from
+ * there.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class ResumptionRegistry
+{
+	/** The grace period, in milliseconds, by default. */
+	public static final long DEFAULT_GRACE = 30000;
+	
+	private final long grace;
+	private final ConcurrentMap<Long, Slot> slots = new ConcurrentHashMap<Long, Slot>();
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	
+	/**
+	 * Creates a registry whose sessions wait up to the given grace period for their clients.
+	 *
+	 * @param grace	the grace period, in milliseconds.
+	 */
+	public ResumptionRegistry(long grace)
+	{
+		this.grace = grace;
+	}
+	
+	/**
+	 * The connection of a session that can be resumed, and the one that replaces it, each with the
+	 * sequence number of the first cell the client sends again over it.
+	 */
+	private static final class Slot
+	{
+		private TorCommTransport current;
+		private TorCommTransport next;
+		private int sequence;
+		private int nextSequence;
+		private boolean over;
+	}
+	
+	/**
+	 * Registers a session whose handshake is being done over the given connection.
+	 *
+	 * @param transport	the session's connection.
+	 * @return			the session's token, which is never 0.
+	 */
+	public long issue(TorCommTransport transport)
+	{
+		Slot slot = new Slot();
+		slot.current = transport;
+		long token;
+		do
+			token = random.nextLong();
+		while (token == 0 || slots.putIfAbsent(token, slot) != null);
+		return token;
+	}
+	
+	/**
+	 * Hands a new connection over to the session of the given token, whether it is already waiting for
+	 * it or still running over its old connection, which is then closed. A connection handed over
+	 * earlier that the session did not take yet is closed and replaced.
+	 *
+	 * @param token		the session's token.
+	 * @param transport	the new connection.
+	 * @param sequence	the sequence number of the first cell the client sends again, as read by {@link
+	 * torcomm.protocol.TorCommCapabilities#getSequence(byte[] handshake) getSequence(byte[] handshake)}.
+	 * @return			<i>true</i> if the connection was handed over, and <i>false</i> if the session is
+	 * unknown or over.
+	 */
+	public boolean resume(long token, TorCommTransport transport, int sequence)
+	{
+		Slot slot = slots.get(token);
+		if (slot == null)
+			return false;
+		TorCommTransport old;
+		synchronized (slot)
+		{
+			if (slot.over)
+				return false;
+			old = slot.next != null ? slot.next : slot.current;
+			slot.next = transport;
+			slot.nextSequence = sequence;
+			slot.notifyAll();
+		}
+		try
+		{
+			old.close();
+		} catch (IOException e) {}
+		return true;
+	}
+	
+	/**
+	 * Waits for the client of the given session to come back, up to the grace period. The sequence
+	 * number of the first cell the client sends again is then given by {@link #getSequence(long token)
+	 * getSequence(long token)}.
+	 *
+	 * @param token	the session's token.
+	 * @return		the new connection, or <i>null</i> if the client did not come back in time, in which
+	 * case the session is forgotten.
+	 */
+	public TorCommTransport await(long token)
+	{
+		Slot slot = slots.get(token);
+		if (slot == null)
+			return null;
+		synchronized (slot)
+		{
+			long deadline = System.currentTimeMillis() + grace;
+			long remaining = grace;
+			try
+			{
+				while (slot.next == null && !slot.over && remaining > 0)
+				{
+					slot.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (slot.next == null || slot.over)
+			{
+				if (!slot.over)
+					expired.incrementAndGet();
+				slot.over = true;
+				slots.remove(token, slot);
+				return null;
+			}
+			slot.current = slot.next;
+			slot.sequence = slot.nextSequence;
+			slot.next = null;
+			resumed.incrementAndGet();
+			return slot.current;
+		}
+	}
+	
+	/**
+	 * Retrieves the sequence number of the first cell the client of the given session sends again over
+	 * the connection last returned by {@link #await(long token) await(long token)}.
+	 *
+	 * @param token	the session's token.
+	 * @return		the sequence number, or 0 if the session is unknown or over.
+	 */
+	public int getSequence(long token)
+	{
+		Slot slot = slots.get(token);
+		if (slot == null)
+			return 0;
+		synchronized (slot)
+		{
+			return slot.sequence;
+		}
+	}
+	
+	/**
+	 * Forgets a session that is over, waking its thread if it is waiting for its client. A new
+	 * connection that was already handed over to it is closed.
+	 *
+	 * @param token	the session's token.
+	 */
+	public void forget(long token)
+	{
+		Slot slot = slots.remove(token);
+		if (slot == null)
+			return;
+		TorCommTransport next;
+		synchronized (slot)
+		{
+			slot.over = true;
+			next = slot.next;
+			slot.next = null;
+			slot.notifyAll();
+		}
+		if (next != null)
+			try
+			{
+				next.close();
+			} catch (IOException e) {}
+	}
+	
+	/**
+	 * Retrieves the grace period.
+	 *
+	 * @return	the grace period, in milliseconds.
+	 */
+	public long getGrace()
+	{
+		return grace;
+	}
+	
+	/**
+	 * Retrieves the number of sessions that can currently be resumed.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public int getSessionCount()
+	{
+		return slots.size();
+	}
+	
+	/**
+	 * Retrieves the number of times sessions were resumed.
+	 *
+	 * @return	the number of resumptions.
+	 */
+	public long getResumedCount()
+	{
+		return resumed.get();
+	}
+	
+	/**
+	 * Retrieves the number of sessions whose clients did not come back within the grace period.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+	
+	/**
+	 * Describes the current state, as in <i>3 sessions, 2 resumed, 1 expired</i>.
+	 *
+	 * @return	the description.
+	 */
+	public String getStatus()
+	{
+		return slots.size() + " sessions, " + resumed.get() + " resumed, " + expired.get() + " expired";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,489 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link torcomm.protocol.TorCommTransport TorCommTransport} between two processes of the same host
+ * through a memory-mapped file, which serves as a baseline that leaves out the network stack. The file
+ * holds two ring buffers, one per direction, each written by a single producer and read by a single
+ * consumer, so that frames are exchanged with no system call per frame. A side waiting for a frame, or
+ * for room in a full ring, spins for a while before yielding and then sleeping, so the latency
+ * measured is that of the cache coherence between the cores plus the protocol itself. On hosts with a
+ * single processor, where the other side cannot run while this one spins, it yields at once. The
+ * sleeps last 20 microseconds, and after a hundred of them double up to a millisecond, so that a side
+ * waiting for long, such as one whose other side died, wakes up about a thousand times per second at
+ * most, while a frame that arrives after such a wait may be received up to a millisecond late.
+ *
+ * <p> A listener at a given port owns a directory named after the port in the system's temporary
+ * directory. A client connects by creating its file in that directory, which the listener maps and
+ * deletes once accepted, so that nothing is left behind when both sides close it. The host name of the
+ * address is ignored, as both sides must run on the same host.
+ *
+ * <p> The positions of each ring only ever grow, and are published with a plain write after the data
+ * they cover and a volatile write, and read with a plain read before the data and a volatile read.
+ * The Java memory model does not order plain accesses to a mapped file, whichever process makes them,
+ * and a plain write may even move above an earlier volatile write, so this ordering relies on HotSpot,
+ * whose JIT does not move plain accesses across volatile ones and which places a full fence after every
+ * volatile write. Java 8 offers no release and acquire accesses to a mapped file. A side that dies
+ * without closing the transport is not detected.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class SharedMemoryTransport implements TorCommTransport
+{
+	/** The size, in bytes, of the data of each ring buffer. */
+	public static final int RING_SIZE = 1 << 20;
+	
+	private static final int MAGIC = 0x54435348;
+	private static final int CACHE_LINE = 64;
+	private static final int ACCEPTED = CACHE_LINE;
+	private static final int CLIENT_CLOSED = 2 * CACHE_LINE;
+	private static final int SERVER_CLOSED = 3 * CACHE_LINE;
+	private static final int HEADER_SIZE = 4 * CACHE_LINE;
+	private static final int RING_HEADER_SIZE = 2 * CACHE_LINE;
+	private static final int FILE_SIZE = HEADER_SIZE + 2 * (RING_HEADER_SIZE + RING_SIZE);
+	private static final long CONNECT_TIMEOUT = 10000;
+	// Spinning on a single processor only delays the other side
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = 20000;
+	private static final int PARKS = 100;
+	private static final long MAX_PARK_NANOS = 1000000;
+	
+	// Orders the plain accesses to the mapped file around the positions of the rings, through the
+	// fences HotSpot places around volatile accesses
+	private static volatile int fence;
+	
+	private MappedByteBuffer map;
+	private File file;
+	private Ring in;
+	private Ring out;
+	private int ownClosed;
+	private int peerClosed;
+	private volatile boolean closed;
+	
+	/**
+	 * Creates a transport over a mapped file holding both ring buffers.
+	 *
+	 * @param map		the mapped file.
+	 * @param file		the file, which is deleted when the transport is closed.
+	 * @param server	<i>true</i> if this is the listener's side, and <i>false</i> otherwise.
+	 */
+	private SharedMemoryTransport(MappedByteBuffer map, File file, boolean server)
+	{
+		this.map = map;
+		this.file = file;
+		Ring toServer = new Ring(HEADER_SIZE);
+		Ring toClient = new Ring(HEADER_SIZE + RING_HEADER_SIZE + RING_SIZE);
+		this.in = server ? toServer : toClient;
+		this.out = server ? toClient : toServer;
+		this.ownClosed = server ? SERVER_CLOSED : CLIENT_CLOSED;
+		this.peerClosed = server ? CLIENT_CLOSED : SERVER_CLOSED;
+	}
+	
+	/**
+	 * One of the ring buffers, laid out as the position up to which it was written, the position up to
+	 * which it was read, each in a cache line of its own, and the data.
+	 */
+	private final class Ring
+	{
+		private final int head;
+		private final int tail;
+		private final int data;
+		private final ByteBuffer view;
+		private final byte[] length;
+		private long written;
+		private long read;
+		
+		/**
+		 * Creates the view of the ring buffer at the given offset of the mapped file.
+		 *
+		 * @param offset	the offset.
+		 */
+		private Ring(int offset)
+		{
+			this.head = offset;
+			this.tail = offset + CACHE_LINE;
+			this.data = offset + RING_HEADER_SIZE;
+			this.view = map.duplicate();
+			this.length = new byte[4];
+		}
+		
+		/**
+		 * Waits until the ring has room for the given number of bytes, and writes the frame into it.
+		 *
+		 * @param source		the array holding the frame's data.
+		 * @param offset		the offset of the data in the array.
+		 * @param length		the length of the data.
+		 * @throws IOException	if the frame is larger than the ring, or the transport was closed.
+		 */
+		private void write(byte[] source, int offset, int length) throws IOException
+		{
+			if (length < 0 || 4 + length > RING_SIZE)
+				throw new IOException("Frame larger than the ring buffer.");
+			int idle = 0;
+			while (RING_SIZE - (written - readPosition(tail)) < 4 + length)
+				idle = idle(idle, false);
+			this.length[0] = (byte)(length >>> 24);
+			this.length[1] = (byte)(length >>> 16);
+			this.length[2] = (byte)(length >>> 8);
+			this.length[3] = (byte)length;
+			put(written, this.length, 0, 4);
+			put(written + 4, source, offset, length);
+			written += 4 + length;
+			publish(head, written);
+		}
+		
+		/**
+		 * Waits for the next frame and reads its length.
+		 *
+		 * @return				the length.
+		 * @throws IOException	if the transport was closed, or the length is invalid.
+		 * @throws EOFException	if the other side closed the transport and every frame was read.
+		 */
+		private int readLength() throws IOException
+		{
+			int idle = 0;
+			while (readPosition(head) == read)
+				idle = idle(idle, true);
+			get(read, length, 0, 4);
+			int value = (length[0] & 0xFF) << 24 | (length[1] & 0xFF) << 16 | (length[2] & 0xFF) << 8 |
+				length[3] & 0xFF;
+			if (value < 0 || 4 + value > RING_SIZE)
+				throw new IOException("Invalid frame length " + value);
+			return value;
+		}
+		
+		/**
+		 * Reads the data of the frame whose length was just read, and frees its room in the ring.
+		 *
+		 * @param target	the array into which the data is read.
+		 * @param offset	the offset of the data in the array.
+		 * @param length	the length of the data.
+		 */
+		private void readData(byte[] target, int offset, int length)
+		{
+			get(read + 4, target, offset, length);
+			read += 4 + length;
+			publish(tail, read);
+		}
+		
+		/**
+		 * Copies bytes into the ring, wrapping around its end.
+		 */
+		private void put(long position, byte[] source, int offset, int length)
+		{
+			int index = (int)(position % RING_SIZE);
+			int first = Math.min(length, RING_SIZE - index);
+			view.position(data + index);
+			view.put(source, offset, first);
+			if (first < length)
+			{
+				view.position(data);
+				view.put(source, offset + first, length - first);
+			}
+		}
+		
+		/**
+		 * Copies bytes out of the ring, wrapping around its end.
+		 */
+		private void get(long position, byte[] target, int offset, int length)
+		{
+			int index = (int)(position % RING_SIZE);
+			int first = Math.min(length, RING_SIZE - index);
+			view.position(data + index);
+			view.get(target, offset, first);
+			if (first < length)
+			{
+				view.position(data);
+				view.get(target, offset + first, length - first);
+			}
+		}
+	}
+	
+	/**
+	 * Publishes a position of a ring after the data it covers.
+	 *
+	 * @param offset	the offset of the position in the mapped file.
+	 * @param position	the position.
+	 */
+	private void publish(int offset, long position)
+	{
+		fence = 0;
+		map.putLong(offset, position);
+	}
+	
+	/**
+	 * Reads a position of a ring before the data it covers.
+	 *
+	 * @param offset	the offset of the position in the mapped file.
+	 * @return			the position.
+	 */
+	private long readPosition(int offset)
+	{
+		long position = map.getLong(offset);
+		if (fence != 0)
+			fence = 0;
+		return position;
+	}
+	
+	/**
+	 * Waits a little longer for the other side, spinning at first, then yielding, then sleeping and
+	 * then sleeping for twice as long each time, up to a bound.
+	 *
+	 * @param idle			the number of times the calling thread has waited so far.
+	 * @param reading		<i>true</i> if the thread waits for a frame, in which case the other side
+	 * closing the transport ends the wait, and <i>false</i> if it waits for room.
+	 * @return				the number of times the calling thread has waited, including this one.
+	 * @throws IOException	if the transport was closed by either side.
+	 */
+	private int idle(int idle, boolean reading) throws IOException
+	{
+		if (closed)
+			throw new IOException("Transport closed.");
+		if (map.getInt(peerClosed) != 0)
+		{
+			// Frames published before the other side closed are still read
+			if (reading && readPosition(in.head) != in.read)
+				return idle;
+			throw reading ? new EOFException() : new IOException("Transport closed by the other side.");
+		}
+		if (idle > SPINS + YIELDS)
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, PARK_NANOS << Math.min(Math.max(0, idle -
+				SPINS - YIELDS - PARKS), 16)));
+		else if (idle > SPINS)
+			Thread.yield();
+		return idle + 1;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException
+	{
+		out.write(data, offset, length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] receive() throws IOException
+	{
+		byte[] data = new byte[in.readLength()];
+		in.readData(data, 0, data.length);
+		return data;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer receive(ByteBuffer buffer) throws IOException
+	{
+		int length = in.readLength();
+		buffer = TorCommTransport.ensureRemaining(buffer, length);
+		in.readData(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		buffer.position(buffer.position() + length);
+		return buffer;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int available()
+	{
+		return (int)Math.min(Integer.MAX_VALUE, readPosition(in.head) - in.read);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen()
+	{
+		return !closed && map.getInt(peerClosed) == 0;
+	}
+	
+	/**
+	 * Retrieves the loopback address, as both sides run on the same host.
+	 *
+	 * @return	the loopback address.
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return InetAddress.getLoopbackAddress();
+	}
+	
+	/**
+	 * Tells the other side that the transport is closed, which still lets it read the frames already
+	 * sent, and deletes the file if it is still there.
+	 */
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		fence = 0;
+		map.putInt(ownClosed, 1);
+		file.delete();
+	}
+	
+	/**
+	 * Retrieves the directory through which connections to the given port are made.
+	 *
+	 * @param port	the port.
+	 * @return		the directory.
+	 */
+	private static File directory(int port)
+	{
+		return new File(System.getProperty("java.io.tmpdir"), "torcomm-shm-" + port);
+	}
+	
+	/**
+	 * Maps the whole of the given file.
+	 *
+	 * @param file			the file.
+	 * @param create		<i>true</i> if the file shall be sized, and <i>false</i> otherwise.
+	 * @return				the mapped file.
+	 * @throws IOException	if the file could not be mapped.
+	 */
+	private static MappedByteBuffer map(File file, boolean create) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			if (create)
+				raf.setLength(FILE_SIZE);
+			else if (raf.length() != FILE_SIZE)
+				throw new IOException("Unexpected size of " + file + ".");
+			// The mapping outlives the channel
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+	}
+	
+	/**
+	 * Connects to a listener of this host.
+	 *
+	 * @param port			the listener's port.
+	 * @return				the connection's transport.
+	 * @throws IOException	if nothing listens at the port, or the listener did not accept the connection
+	 * in time.
+	 */
+	public static SharedMemoryTransport connect(int port) throws IOException
+	{
+		File directory = directory(port);
+		if (!directory.isDirectory())
+			throw new ConnectException("Connection refused: nothing listens at " + directory + ".");
+		File pending = File.createTempFile("client", ".tmp", directory);
+		MappedByteBuffer map;
+		try
+		{
+			map = map(pending, true);
+			map.putInt(0, MAGIC);
+		} catch (IOException e) {
+			pending.delete();
+			throw e;
+		}
+		File file = new File(directory, pending.getName().replace(".tmp", ".ring"));
+		if (!pending.renameTo(file))
+		{
+			pending.delete();
+			throw new IOException("Could not offer the connection through " + file + ".");
+		}
+		SharedMemoryTransport transport = new SharedMemoryTransport(map, file, false);
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (map.getInt(ACCEPTED) == 0)
+		{
+			if (System.currentTimeMillis() > deadline || !directory.isDirectory())
+			{
+				transport.close();
+				throw new ConnectException("Connection timed out at " + directory + ".");
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return transport;
+	}
+	
+	/**
+	 * Starts listening for connections at the given port, which only names the directory through which
+	 * clients connect.
+	 *
+	 * @param port			the port, or 0 for any free port.
+	 * @return				the listener.
+	 * @throws IOException	if the directory of the port could not be created.
+	 */
+	public static Listener listen(int port) throws IOException
+	{
+		File directory = directory(port);
+		while (port == 0)
+		{
+			int candidate = 49152 + (int)(Math.random() * 16384);
+			directory = directory(candidate);
+			if (directory.mkdir())
+				port = candidate;
+		}
+		if (!directory.isDirectory() && !directory.mkdir())
+			throw new BindException("Could not create " + directory + ".");
+		// Connections offered to a listener that is gone are never accepted
+		File[] stale = directory.listFiles();
+		if (stale != null)
+			for (File file : stale)
+				file.delete();
+		final int boundPort = port;
+		final File boundDirectory = directory;
+		return new Listener()
+		{
+			private volatile boolean open = true;
+			
+			public TorCommTransport accept() throws IOException
+			{
+				while (open)
+				{
+					File[] offered = boundDirectory.listFiles(new FilenameFilter()
+					{
+						public boolean accept(File dir, String name)
+						{
+							return name.endsWith(".ring");
+						}
+					});
+					if (offered != null)
+						for (File file : offered)
+						{
+							MappedByteBuffer map;
+							try
+							{
+								map = map(file, false);
+							} catch (IOException e) {
+								// The client gave up on the connection
+								continue;
+							}
+							if (map.getInt(0) != MAGIC || map.getInt(ACCEPTED) != 0)
+								continue;
+							map.putInt(ACCEPTED, 1);
+							file.delete();
+							return new SharedMemoryTransport(map, file, true);
+						}
+					LockSupport.parkNanos(1000000);
+				}
+				throw new SocketException("Listener closed.");
+			}
+			
+			public int getPort()
+			{
+				return boundPort;
+			}
+			
+			public void close()
+			{
+				open = false;
+				File[] left = boundDirectory.listFiles();
+				if (left != null)
+					for (File file : left)
+						file.delete();
+				boundDirectory.delete();
+			}
+		};
+	}
+}
\ No newline at end of file
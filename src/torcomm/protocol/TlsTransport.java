@@ -0,0 +1,527 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.*;
+import java.util.List;
+import javax.net.ssl.*;
+
+/**
+ * A {@link torcomm.protocol.TorCommTransport TorCommTransport} that encrypts frames with TLS over a
+ * classic blocking {@link java.net.Socket Socket}, so that it can also connect through a proxy such as
+ * Tor's. It serves as a baseline for the cost of encryption without Tor. Frames are wrapped and
+ * unwrapped by an {@link javax.net.ssl.SSLEngine SSLEngine} into buffers that are reused for every
+ * frame, and the length and the data of a frame are encrypted as a single record, while a batch of
+ * frames is encrypted into as few records as it fits in.
+ *
+ * <p> Every transport of a JVM uses the same {@link javax.net.ssl.SSLContext SSLContext}, the default
+ * one unless another is given through {@link #setContext(SSLContext context) setContext(SSLContext
+ * context)}, so that its session cache lets clients resume the sessions of their earlier connections to
+ * the same host and port, through session tickets in TLS 1.3. The default context is set up through the
+ * usual <i>javax.net.ssl.keyStore</i> and <i>javax.net.ssl.trustStore</i> system properties.
+ *
+ * <p> The handshake is done when the transport is first used, and its time is kept apart from the time
+ * taken to encrypt and decrypt the frames afterwards, as described by {@link #getSummary()
+ * getSummary()}.
+ *
+ * <p> The engine does not tell whether a handshake resumed a session, and neither the creation time
+ * nor the ID of the session tell it reliably, as resumed TLS 1.3 sessions are given new IDs. A
+ * handshake is instead taken as resumed if the server skipped its certificates in it, that is, if
+ * the server sent fewer bytes in the handshake than its certificate chain takes, which a full
+ * handshake always sends. Both sides tell it the same way, from the bytes the server sent before the
+ * client's last handshake message, which leaves out the session tickets, or the bytes the client
+ * received. A handshake without certificates, such as that of an anonymous cipher suite, is never
+ * taken as resumed.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TlsTransport implements TorCommTransport
+{
+	private static SSLContext context;
+	
+	private Socket connection;
+	private InputStream in;
+	private OutputStream out;
+	private SSLEngine engine;
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+	private volatile boolean handshaken;
+	
+	// Buffers, which are only replaced by larger ones
+	private ByteBuffer plainOut;
+	private ByteBuffer netOut;
+	private ByteBuffer netIn;
+	private ByteBuffer plainIn;
+	private byte[] header = new byte[4];
+	
+	// Accounting fields
+	private long handshakeNanos;
+	private boolean resumed;
+	private long handshakeReceived;
+	private long encryptNanos;
+	private long decryptNanos;
+	private long records;
+	private long plainBytes;
+	private long netBytes;
+	
+	/**
+	 * Creates a transport over the given socket, which must be connected.
+	 *
+	 * @param connection	the socket.
+	 * @param client		<i>true</i> if this side starts the handshake, and <i>false</i> otherwise.
+	 * @throws IOException	if the socket is not connected, or the TLS context could not be set up.
+	 */
+	public TlsTransport(Socket connection, boolean client) throws IOException
+	{
+		if (!connection.isConnected())
+			throw new IOException("Disconnected socket.");
+		this.connection = connection;
+		this.in = connection.getInputStream();
+		this.out = connection.getOutputStream();
+		// The peer's host and port key the client's session cache
+		this.engine = client ? getContext().createSSLEngine(connection.getInetAddress().getHostAddress(),
+			connection.getPort()) : getContext().createSSLEngine();
+		engine.setUseClientMode(client);
+		SSLSession session = engine.getSession();
+		this.plainOut = ByteBuffer.allocate(4 + TorCommDataTranslator.CELL_SIZE);
+		this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		this.plainIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		netIn.flip();
+		plainIn.flip();
+	}
+	
+	/**
+	 * Sets up the TLS context used by every transport created afterwards.
+	 *
+	 * @param context	the context.
+	 */
+	public static synchronized void setContext(SSLContext context)
+	{
+		TlsTransport.context = context;
+	}
+	
+	/**
+	 * Retrieves the TLS context used by every transport, which is the default one unless another was
+	 * set up.
+	 *
+	 * @return				the context.
+	 * @throws IOException	if the default context could not be set up.
+	 */
+	public static synchronized SSLContext getContext() throws IOException
+	{
+		if (context == null)
+			try
+			{
+				context = SSLContext.getDefault();
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Error when setting up the TLS context.", e);
+			}
+		return context;
+	}
+	
+	/**
+	 * Performs the handshake, unless it was already done, in which case it returns at once.
+	 *
+	 * @throws IOException	if the handshake failed.
+	 */
+	private void handshake() throws IOException
+	{
+		if (handshaken)
+			return;
+		synchronized (readLock)
+		{
+			synchronized (writeLock)
+			{
+				if (handshaken)
+					return;
+				long begin = System.nanoTime();
+				// The server's tickets follow the client's last message, and are left out
+				long flights = 0;
+				engine.beginHandshake();
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				while (status != SSLEngineResult.HandshakeStatus.FINISHED &&
+					status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+				{
+					switch (status)
+					{
+						case NEED_WRAP:
+							plainOut.clear().flip();
+							status = wrap();
+							break;
+						case NEED_UNWRAP:
+							flights = netBytes;
+							status = unwrap();
+							break;
+						case NEED_TASK:
+							status = runTasks();
+							break;
+						default:
+							throw new SSLException("Unexpected handshake status " + status + ".");
+					}
+				}
+				handshakeNanos = System.nanoTime() - begin;
+				resumed = skippedCertificates(engine.getUseClientMode() ? handshakeReceived : flights);
+				encryptNanos = 0;
+				decryptNanos = 0;
+				records = 0;
+				plainBytes = 0;
+				netBytes = 0;
+				handshaken = true;
+			}
+		}
+	}
+	
+	/**
+	 * Tells whether the server skipped its certificates in the handshake, as it does when it resumes a
+	 * session, from the bytes it sent.
+	 *
+	 * @param serverBytes	the bytes the server sent in the handshake.
+	 * @return				<i>true</i> if they are fewer than the server's certificate chain takes,
+	 * and <i>false</i> otherwise, or if the server has no certificates.
+	 */
+	private boolean skippedCertificates(long serverBytes)
+	{
+		SSLSession session = engine.getSession();
+		long chain = 0;
+		try
+		{
+			Certificate[] certificates = engine.getUseClientMode() ? session.getPeerCertificates() :
+				session.getLocalCertificates();
+			if (certificates == null)
+				return false;
+			for (Certificate certificate : certificates)
+				chain += certificate.getEncoded().length;
+		} catch (SSLPeerUnverifiedException | CertificateEncodingException e) {
+			return false;
+		}
+		return serverBytes < chain;
+	}
+	
+	/**
+	 * Encrypts the contents of the outgoing plain buffer and writes them to the socket.
+	 *
+	 * @return				the handshake status after the last record.
+	 * @throws IOException	if an I/O or TLS error occurs.
+	 */
+	private SSLEngineResult.HandshakeStatus wrap() throws IOException
+	{
+		while (true)
+		{
+			netOut.clear();
+			long begin = System.nanoTime();
+			SSLEngineResult result = engine.wrap(plainOut, netOut);
+			encryptNanos += System.nanoTime() - begin;
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+			{
+				netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("TLS connection closed.");
+			records++;
+			plainBytes += result.bytesConsumed();
+			netBytes += result.bytesProduced();
+			out.write(netOut.array(), 0, netOut.position());
+			if (!plainOut.hasRemaining())
+				return result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK ?
+					runTasks() : result.getHandshakeStatus();
+		}
+	}
+	
+	/**
+	 * Decrypts the next record read from the socket into the incoming plain buffer, reading as much
+	 * from the socket as the record takes.
+	 *
+	 * @return				the handshake status after the record.
+	 * @throws IOException	if an I/O or TLS error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	private SSLEngineResult.HandshakeStatus unwrap() throws IOException
+	{
+		while (true)
+		{
+			plainIn.compact();
+			long begin = System.nanoTime();
+			SSLEngineResult result;
+			try
+			{
+				result = engine.unwrap(netIn, plainIn);
+			} finally {
+				decryptNanos += System.nanoTime() - begin;
+				plainIn.flip();
+			}
+			if (!handshaken)
+				handshakeReceived += result.bytesConsumed();
+			switch (result.getStatus())
+			{
+				case OK:
+					return result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK ?
+						runTasks() : result.getHandshakeStatus();
+				case BUFFER_UNDERFLOW:
+					fill();
+					break;
+				case BUFFER_OVERFLOW:
+					ByteBuffer larger = ByteBuffer.allocate(plainIn.remaining() + engine.getSession().
+						getApplicationBufferSize());
+					larger.put(plainIn).flip();
+					plainIn = larger;
+					break;
+				default:
+					throw new EOFException();
+			}
+		}
+	}
+	
+	/**
+	 * Reads more bytes from the socket into the incoming network buffer.
+	 *
+	 * @throws IOException	if an I/O error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	private void fill() throws IOException
+	{
+		netIn.compact();
+		if (!netIn.hasRemaining())
+		{
+			ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().
+				getPacketBufferSize());
+			netIn.flip();
+			netIn = larger.put(netIn);
+		}
+		int read = in.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+		if (read < 0)
+		{
+			netIn.flip();
+			throw new EOFException();
+		}
+		netIn.position(netIn.position() + read);
+		netIn.flip();
+	}
+	
+	/**
+	 * Runs the tasks the engine delegated to the calling thread.
+	 *
+	 * @return	the handshake status afterwards.
+	 */
+	private SSLEngineResult.HandshakeStatus runTasks()
+	{
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+		return engine.getHandshakeStatus();
+	}
+	
+	/**
+	 * Answers the messages the engine needs to send after the handshake, such as key updates, which
+	 * are found when reading.
+	 *
+	 * @param status		the handshake status after the last record read.
+	 * @throws IOException	if an I/O or TLS error occurs.
+	 */
+	private void answer(SSLEngineResult.HandshakeStatus status) throws IOException
+	{
+		if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+			return;
+		synchronized (writeLock)
+		{
+			ByteBuffer pending = plainOut;
+			plainOut = ByteBuffer.allocate(0);
+			try
+			{
+				wrap();
+			} finally {
+				plainOut = pending;
+			}
+		}
+	}
+	
+	/**
+	 * Reads decrypted bytes until the given array range is full.
+	 *
+	 * @param target		the array.
+	 * @param offset		the offset of the range.
+	 * @param count			the length of the range.
+	 * @throws IOException	if an I/O or TLS error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	private void readFully(byte[] target, int offset, int count) throws IOException
+	{
+		while (count > 0)
+		{
+			if (!plainIn.hasRemaining())
+			{
+				answer(unwrap());
+				continue;
+			}
+			int chunk = Math.min(count, plainIn.remaining());
+			plainIn.get(target, offset, chunk);
+			offset += chunk;
+			count -= chunk;
+		}
+	}
+	
+	/**
+	 * Reads the length of the next frame.
+	 *
+	 * @return				the length.
+	 * @throws IOException	if an I/O or TLS error occurs, or the length is invalid.
+	 */
+	private int readLength() throws IOException
+	{
+		readFully(header, 0, 4);
+		return TorCommTransport.checkLength((header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 |
+			(header[2] & 0xFF) << 8 | header[3] & 0xFF);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException
+	{
+		handshake();
+		synchronized (writeLock)
+		{
+			if (plainOut.capacity() < 4 + length)
+				plainOut = ByteBuffer.allocate(4 + length);
+			plainOut.clear();
+			plainOut.putInt(length).put(data, offset, length).flip();
+			wrap();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void send(List<byte[]> frames) throws IOException
+	{
+		handshake();
+		synchronized (writeLock)
+		{
+			int size = 0;
+			for (byte[] data : frames)
+				size += 4 + data.length;
+			if (plainOut.capacity() < size)
+				plainOut = ByteBuffer.allocate(size);
+			plainOut.clear();
+			for (byte[] data : frames)
+				plainOut.putInt(data.length).put(data);
+			plainOut.flip();
+			wrap();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] receive() throws IOException
+	{
+		handshake();
+		synchronized (readLock)
+		{
+			byte[] data = new byte[readLength()];
+			readFully(data, 0, data.length);
+			return data;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer receive(ByteBuffer buffer) throws IOException
+	{
+		handshake();
+		synchronized (readLock)
+		{
+			int length = readLength();
+			buffer = TorCommTransport.ensureRemaining(buffer, length);
+			readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+			return buffer;
+		}
+	}
+	
+	/**
+	 * Estimates the number of bytes that can be received without waiting, counting those still
+	 * encrypted, as a TLS record is decrypted as a whole.
+	 *
+	 * @return				the number of bytes.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public int available() throws IOException
+	{
+		synchronized (readLock)
+		{
+			return plainIn.remaining() + netIn.remaining() + in.available();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen()
+	{
+		return !connection.isClosed();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return connection.getInetAddress();
+	}
+	
+	/**
+	 * Retrieves the time the handshake took, from its beginning to its end, including the round trips
+	 * to the other host.
+	 *
+	 * @return	the time, in nanoseconds, or 0 before the handshake.
+	 */
+	public long getHandshakeNanos()
+	{
+		return handshakeNanos;
+	}
+	
+	/**
+	 * Tells whether the handshake resumed a session of an earlier connection, as far as it can be told
+	 * from the server skipping its certificates, as described for this class.
+	 *
+	 * @return	<i>true</i> if it did, and <i>false</i> otherwise.
+	 */
+	public boolean isResumed()
+	{
+		return resumed;
+	}
+	
+	/**
+	 * {@inheritDoc} For TLS, that is the protocol and cipher suite, the handshake's time and whether it
+	 * resumed a session, and the time spent encrypting and decrypting records after the handshake, with
+	 * the bytes that encryption added to them.
+	 *
+	 * @return	the description, or <i>null</i> before the handshake.
+	 */
+	public String getSummary()
+	{
+		if (!handshaken)
+			return null;
+		SSLSession session = engine.getSession();
+		return "TLS " + session.getProtocol() + " " + session.getCipherSuite() + ", handshake " +
+			handshakeNanos / 1000 + " us" + (resumed ? " (resumed)" : "") + ", encryption " + encryptNanos /
+			1000 + " us and decryption " + decryptNanos / 1000 + " us for " + records + " records sent, " +
+			(records == 0 ? 0 : (netBytes - plainBytes) / records) + " bytes of overhead per record.";
+	}
+	
+	/**
+	 * Closes the socket, without the closure alert of TLS, as sessions end their connections through
+	 * cells of their own, and the thread using the transport may be blocked on it.
+	 *
+	 * @throws IOException	if an I/O error occurs when closing down the socket.
+	 */
+	public void close() throws IOException
+	{
+		connection.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+package torcomm.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The protocol version and the features that one side of a {@link torcomm.protocol.TorCommSession
+ * TorCommSession} offers, or that both sides agreed on, in the handshake. Each side sends what it offers
+ * and the server answers with the common set, so that faster modes can be used between hosts that
+ * support them without breaking the older hosts, which neither send nor read anything past the session
+ * ID of the handshake and are therefore treated as version 0, with no features.
+ *
+ * <p> A handshake of version 1 or later is laid out as follows:
+ * <ul>
+ * 	<li> bytes 0 to 1: the session ID.
+ * 	<li> byte 2: 0, unless the server rejected the session, in which case it is the reason, as in
+ * 	{@link torcomm.protocol.AdmissionControl AdmissionControl}.
+ * 	<li> byte 3: the protocol version.
+ * 	<li> bytes 4 to 7: the bitmap of features.
+ * 	<li> bytes 8 to 9: the largest number of cells in flight, or pipelining window.
+ * 	<li> bytes 10 to 13: 0, unless the server rejected the session, in which case it is the time, in
+ * 	milliseconds, after which the client may try again.
+ * 	<li> bytes 14 to 15: reserved, always 0.
+ * </ul>
+ *
+ * <p> When {@link #RESUMPTION RESUMPTION} is agreed on, the server's handshake is {@value
+ * #RESUMPTION_HANDSHAKE_SIZE} bytes long, and bytes 16 to 23 hold the token through which the client
+ * may resume the session over a new connection. The client then resumes it by sending a handshake of
+ * the same length whose bytes 16 to 23 hold the token and bytes 24 to 27 the sequence number of the
+ * first cell it sends again, and the server answers with its handshake.
+ *
+ * <p> Instances of this class are immutable.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommCapabilities
+{
+	/** The protocol version of this implementation. */
+	public static final byte VERSION = 1;
+	
+	/** The size, in bytes, of a handshake of version 1 or later. */
+	public static final int HANDSHAKE_SIZE = 16;
+	
+	/** The server reflects every frame instead of replying with a cell of its own. */
+	public static final int ECHO = 1;
+	
+	/** The server appends the times at which it received and sent each reflected frame. */
+	public static final int ECHO_TIMESTAMPS = 1 << 1;
+	
+	/** Cells are sent without the padding that follows their fields. */
+	public static final int COMPACT_CELLS = 1 << 2;
+	
+	/** The client may send cells before the replies to the previous ones, up to the window. */
+	public static final int PIPELINING = 1 << 3;
+	
+	/** Reserved for frames sent without their length. Not offered by this implementation. */
+	public static final int FIXED_FRAMES = 1 << 4;
+	
+	/** Reserved for frames coalesced into a single write. Not offered by this implementation. */
+	public static final int BATCHING = 1 << 5;
+	
+	/**
+	 * The client may wait between receiving a reply and sending its next cell, such as between the
+	 * bursts of a workload, so the server cannot time round trips from its replies.
+	 */
+	public static final int PACED = 1 << 6;
+	
+	/** The client may resume the session over a new connection after the connection fails. */
+	public static final int RESUMPTION = 1 << 7;
+	
+	/** The size, in bytes, of a handshake that carries a resumption token. */
+	public static final int RESUMPTION_HANDSHAKE_SIZE = 28;
+	
+	/** The largest pipelining window a server accepts by default. */
+	public static final int MAX_WINDOW = 256;
+	
+	/** The capabilities of a host that does not negotiate, which are those of version 0. */
+	public static final TorCommCapabilities LEGACY = new TorCommCapabilities(0, 0, 1);
+	
+	/** The capabilities a client offers by default. */
+	public static final TorCommCapabilities CLIENT_DEFAULT = new TorCommCapabilities(VERSION,
+		ECHO | ECHO_TIMESTAMPS | COMPACT_CELLS, 1);
+	
+	/** The capabilities a server offers by default. Echo is only offered by servers set up for it. */
+	public static final TorCommCapabilities SERVER_DEFAULT = new TorCommCapabilities(VERSION,
+		COMPACT_CELLS | PIPELINING | PACED, MAX_WINDOW);
+	
+	private int version;
+	private int features;
+	private int window;
+	
+	/**
+	 * Creates a set of capabilities.
+	 *
+	 * @param version	the protocol version.
+	 * @param features	the bitmap of features.
+	 * @param window	the pipelining window, which is taken as 1 unless the features include {@link
+	 * #PIPELINING PIPELINING}.
+	 */
+	public TorCommCapabilities(int version, int features, int window)
+	{
+		if (version < 0 || version > 255)
+			throw new IllegalArgumentException("Version out of range.");
+		this.version = version;
+		this.features = features;
+		this.window = (features & PIPELINING) != 0 ? Math.max(1, Math.min(window, 65535)) : 1;
+	}
+	
+	/**
+	 * Retrieves the protocol version.
+	 *
+	 * @return	the version.
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+	
+	/**
+	 * Retrieves the bitmap of features.
+	 *
+	 * @return	the features.
+	 */
+	public int getFeatures()
+	{
+		return features;
+	}
+	
+	/**
+	 * Tells whether every one of the given features is included.
+	 *
+	 * @param feature	the bitmap of features.
+	 * @return			<i>true</i> if they are all included, and <i>false</i> otherwise.
+	 */
+	public boolean has(int feature)
+	{
+		return (features & feature) == feature;
+	}
+	
+	/**
+	 * Retrieves the pipelining window, that is, the largest number of cells that may be in flight.
+	 *
+	 * @return	the window.
+	 */
+	public int getWindow()
+	{
+		return window;
+	}
+	
+	/**
+	 * Creates a copy of these capabilities with other features.
+	 *
+	 * @param features	the bitmap of features.
+	 * @return			the copy.
+	 */
+	public TorCommCapabilities withFeatures(int features)
+	{
+		return new TorCommCapabilities(version, features, window);
+	}
+	
+	/**
+	 * Creates a copy of these capabilities that offers pipelining with the given window, or does not
+	 * offer pipelining if the window is 1 or less.
+	 *
+	 * @param window	the window.
+	 * @return			the copy.
+	 */
+	public TorCommCapabilities withWindow(int window)
+	{
+		return new TorCommCapabilities(version, window > 1 ? features | PIPELINING :
+			features & ~PIPELINING, window);
+	}
+	
+	/**
+	 * Settles on the best common set of these capabilities and the other side's: the lowest version,
+	 * the features offered by both sides and the smallest window.
+	 *
+	 * @param remote	the capabilities offered by the other side.
+	 * @return			the common capabilities.
+	 */
+	public TorCommCapabilities negotiate(TorCommCapabilities remote)
+	{
+		if (version == 0 || remote.version == 0)
+			return LEGACY;
+		int common = features & remote.features;
+		if ((common & ECHO) == 0)
+			common &= ~ECHO_TIMESTAMPS;
+		return new TorCommCapabilities(Math.min(version, remote.version), common, Math.min(window,
+			remote.window));
+	}
+	
+	/**
+	 * Creates the handshake that offers these capabilities, or that answers with them.
+	 *
+	 * @param sessionID	the session ID of the side that sends the handshake.
+	 * @return			the handshake, which is 8 bytes long for version 0, as older hosts expect.
+	 */
+	public byte[] toHandshake(short sessionID)
+	{
+		if (version == 0)
+			return ByteBuffer.allocate(8).putShort(sessionID).array();
+		return ByteBuffer.allocate(HANDSHAKE_SIZE).putShort(sessionID).put((byte)0).put((byte)version).
+			putInt(features).putShort((short)window).array();
+	}
+	
+	/**
+	 * Creates the handshake that offers or answers with these capabilities and carries a resumption
+	 * token, as described in {@link #RESUMPTION RESUMPTION}.
+	 *
+	 * @param sessionID	the session ID of the side that sends the handshake.
+	 * @param token		the token, or 0 for none, in which case the handshake is the usual one.
+	 * @param sequence	the sequence number of the first cell the client sends again, or 0 in the
+	 * server's handshake.
+	 * @return			the handshake.
+	 */
+	public byte[] toHandshake(short sessionID, long token, int sequence)
+	{
+		byte[] handshake = toHandshake(sessionID);
+		if (token == 0 || version == 0)
+			return handshake;
+		return ByteBuffer.allocate(RESUMPTION_HANDSHAKE_SIZE).put(handshake).putLong(token).putInt(
+			sequence).array();
+	}
+	
+	/**
+	 * Reads the resumption token of a handshake.
+	 *
+	 * @param handshake	the handshake.
+	 * @return			the token, or 0 if it carries none.
+	 */
+	public static long getToken(byte[] handshake)
+	{
+		return handshake.length < RESUMPTION_HANDSHAKE_SIZE || handshake[3] == 0 ? 0 : ByteBuffer.wrap(
+			handshake).getLong(HANDSHAKE_SIZE);
+	}
+	
+	/**
+	 * Reads the sequence number of the first cell a client sends again from its resumption handshake.
+	 *
+	 * @param handshake	the client's handshake.
+	 * @return			the sequence number, or 0 if it carries no token.
+	 */
+	public static int getSequence(byte[] handshake)
+	{
+		return getToken(handshake) == 0 ? 0 : ByteBuffer.wrap(handshake).getInt(HANDSHAKE_SIZE + 8);
+	}
+	
+	/**
+	 * Reads the capabilities held by a handshake received from the other side. Handshakes that are too
+	 * short or of version 0 hold the {@link #LEGACY LEGACY} capabilities.
+	 *
+	 * @param handshake	the handshake.
+	 * @return			the capabilities.
+	 */
+	public static TorCommCapabilities fromHandshake(byte[] handshake)
+	{
+		if (handshake.length < HANDSHAKE_SIZE || handshake[3] == 0)
+			return LEGACY;
+		ByteBuffer buffer = ByteBuffer.wrap(handshake, 4, HANDSHAKE_SIZE - 4);
+		return new TorCommCapabilities(handshake[3] & 0xFF, buffer.getInt(), buffer.getShort() & 0xFFFF);
+	}
+	
+	/**
+	 * Creates the handshake through which a server rejects a session instead of answering with its
+	 * capabilities. It is as long as a handshake of version 1, so older hosts still read the session
+	 * ID from it.
+	 *
+	 * @param sessionID		the session ID of the server.
+	 * @param reason		the reason, which must be between 1 and 255.
+	 * @param retryAfter	the time, in milliseconds, after which the client may try again.
+	 * @return				the handshake.
+	 */
+	public static byte[] toRejection(short sessionID, int reason, int retryAfter)
+	{
+		if (reason < 1 || reason > 255)
+			throw new IllegalArgumentException("Reason out of range.");
+		return ByteBuffer.allocate(HANDSHAKE_SIZE).putShort(sessionID).put((byte)reason).put(VERSION).
+			putInt(0).putShort((short)0).putInt(retryAfter).array();
+	}
+	
+	/**
+	 * Reads the reason for which the server rejected the session from its handshake.
+	 *
+	 * @param handshake	the server's handshake.
+	 * @return			the reason, or 0 if the session was not rejected.
+	 */
+	public static int getRejection(byte[] handshake)
+	{
+		return handshake.length < HANDSHAKE_SIZE || handshake[3] == 0 ? 0 : handshake[2] & 0xFF;
+	}
+	
+	/**
+	 * Reads the time after which the client may try again from the handshake of a server that
+	 * rejected the session.
+	 *
+	 * @param handshake	the server's handshake.
+	 * @return			the time, in milliseconds, or 0 if the session was not rejected.
+	 */
+	public static int getRetryAfter(byte[] handshake)
+	{
+		return getRejection(handshake) == 0 ? 0 : ByteBuffer.wrap(handshake).getInt(10);
+	}
+	
+	/**
+	 * Describes these capabilities, as in <i>version 1: compact cells, window 1</i>.
+	 *
+	 * @return	the description.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder description = new StringBuilder("version " + version + ":");
+		String[] names = {"echo", "echo timestamps", "compact cells", "pipelining", "fixed frames",
+			"batching", "paced", "resumption"};
+		for (int i = 0; i < names.length; i++)
+			if ((features & (1 << i)) != 0)
+				description.append(" " + names[i] + ",");
+		return description.append(" window " + window).toString();
+	}
+}
\ No newline at end of file
@@ -1,5 +1,7 @@
 package torcomm.protocol;
 import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 
 /**
  * This class holds two static methods that shall simplify the conversion of {@link torcomm.protocol.TorCommCell
@@ -10,6 +12,17 @@ import java.nio.ByteBuffer;
  */
 public class TorCommDataTranslator
 {
+	/** The size, in bytes, of a translated {@link torcomm.protocol.TorCommCell TorCommCell}. */
+	public static final int CELL_SIZE = 22;
+	
+	/**
+	 * The size, in bytes, of the fields of a translated {@link torcomm.protocol.TorCommCell TorCommCell},
+	 * which are followed by padding up to {@link #CELL_SIZE CELL_SIZE}.
+	 */
+	public static final int CELL_FIELDS_SIZE = 18;
+	
+	/** The offset, in bytes, of the <i>endConnection</i> field in a translated cell. */
+	public static final int END_CONNECTION_OFFSET = 13;
 	
 	/**
 	 * Translates a byte array to a {@link torcomm.protocol.TorCommCell TorCommCell}.
@@ -45,7 +58,21 @@ public class TorCommDataTranslator
 	 */
 	public static byte[] translate(TorCommCell cell)
 	{
-		ByteBuffer data = ByteBuffer.allocate(22);
+		ByteBuffer data = ByteBuffer.allocate(CELL_SIZE);
+		translate(cell, data);
+		return data.array();
+	}
+	
+	/**
+	 * Translates a {@link torcomm.protocol.TorCommCell TorCommCell} into bytes that are put at the
+	 * current position of the given buffer, so that no array has to be allocated.
+	 * 
+	 * @param cell	The {@link torcomm.protocol.TorCommCell TorCommCell} to be translated.
+	 * @param data	The buffer, which must have at least {@value #CELL_SIZE} bytes remaining.
+	 */
+	public static void translate(TorCommCell cell, ByteBuffer data)
+	{
+		int end = data.position() + CELL_SIZE;
 		data.putShort(cell.senderID);
 		data.putShort(cell.receiverID);
 		data.putShort(cell.year);
@@ -57,6 +84,53 @@ public class TorCommDataTranslator
 		data.putShort(cell.millisecond);
 		data.put(cell.endConnection);
 		data.putInt(cell.payload);
-		return data.array();
+		// The fields take less than CELL_SIZE bytes, the rest is zeroed
+		while (data.position() < end)
+			data.put((byte)0);
+	}
+	
+	/**
+	 * Sets the date and time fields of a {@link torcomm.protocol.TorCommCell TorCommCell} from a local
+	 * date and time without formatting it.
+	 *
+	 * @param cell	The {@link torcomm.protocol.TorCommCell TorCommCell} to be stamped.
+	 * @param time	The local date and time.
+	 */
+	public static void stamp(TorCommCell cell, LocalDateTime time)
+	{
+		cell.year = (short)time.getYear();
+		cell.month = (byte)time.getMonthValue();
+		cell.day = (byte)time.getDayOfMonth();
+		cell.hour = (byte)time.getHour();
+		cell.minute = (byte)time.getMinute();
+		cell.second = (byte)time.getSecond();
+		cell.millisecond = (short)(time.getNano() / 1000000);
+	}
+	
+	/**
+	 * Converts the date and time fields of a {@link torcomm.protocol.TorCommCell TorCommCell} into
+	 * milliseconds. The fields are read as they were written, in the local time of the host that
+	 * created the cell, so the result is only meaningful when compared to another result of this
+	 * class.
+	 *
+	 * @param cell	The {@link torcomm.protocol.TorCommCell TorCommCell} whose timestamp is wanted.
+	 * @return		The cell's timestamp in milliseconds.
+	 */
+	public static long timestamp(TorCommCell cell)
+	{
+		return timestamp(LocalDateTime.of(cell.year, cell.month, cell.day, cell.hour, cell.minute,
+			cell.second, cell.millisecond * 1000000));
+	}
+	
+	/**
+	 * Converts a local date and time into milliseconds in the same way as {@link 
+	 * #timestamp(TorCommCell cell) timestamp(TorCommCell cell)}.
+	 *
+	 * @param time	The local date and time.
+	 * @return		The timestamp in milliseconds.
+	 */
+	public static long timestamp(LocalDateTime time)
+	{
+		return time.toEpochSecond(ZoneOffset.UTC) * 1000 + time.getNano() / 1000000;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package torcomm.protocol;
+
+import java.io.IOException;
+
+/**
+ * Signals that a server rejected a session in the handshake, as turned down by its {@link
+ * torcomm.protocol.AdmissionControl AdmissionControl}, rather than failing to serve it. The client may
+ * connect again once the time the server suggested has passed.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommRejectedException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	
+	private final int reason;
+	private final int retryAfter;
+	
+	/**
+	 * Creates the exception.
+	 *
+	 * @param reason		the reason, as in {@link torcomm.protocol.AdmissionControl AdmissionControl}.
+	 * @param retryAfter	the time, in milliseconds, after which the client may try again.
+	 */
+	public TorCommRejectedException(int reason, int retryAfter)
+	{
+		super("Session rejected by the server: " + AdmissionControl.describe(reason) + ". Retry after " +
+			retryAfter + " ms.");
+		this.reason = reason;
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * Retrieves the reason for which the session was rejected.
+	 *
+	 * @return	the reason, such as {@link torcomm.protocol.AdmissionControl#SESSION_LIMIT SESSION_LIMIT}.
+	 */
+	public int getReason()
+	{
+		return reason;
+	}
+	
+	/**
+	 * Retrieves the time the server suggested the client wait before trying again.
+	 *
+	 * @return	the time, in milliseconds.
+	 */
+	public int getRetryAfter()
+	{
+		return retryAfter;
+	}
+}
\ No newline at end of file
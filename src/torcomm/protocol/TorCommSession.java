@@ -1,5 +1,6 @@
 package torcomm.protocol;
 
+import torcomm.stats.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.net.*;
@@ -7,6 +8,7 @@ import java.io.*;
 import java.util.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The protocol for establishing and maintaining the communication with another host that is also 
@@ -17,31 +19,116 @@ import java.nio.channels.ClosedByInterruptException;
  * is, {@link #TorCommSession(Socket connection, int duration) TorCommSession(Socket connection, 
  * int duration)}, is used for instantiating this class as a client, while the one that does not require,
  * {@link #TorCommSession(Socket connection) TorCommSession(Socket connection)}, instantiates this
- * class as a server.
+ * class as a server. Both also have counterparts that take a {@link torcomm.protocol.TorCommTransport
+ * TorCommTransport} instead of a socket, so that cells can be exchanged over other kinds of channels.
+ *
+ * <p> A server may be set up to reflect every frame it receives, as is, instead of replying with a cell
+ * of its own, so that the round trip times measured by the client do not include the time the server
+ * takes to create a cell. The client must offer this mode in its handshake for it to be used. It may also
+ * append the times at which it received and sent the frame, in which case the client subtracts the
+ * difference from the round trip time of the cell, both in the trace and in the intervals, so that only
+ * the network's round trip time is left.
+ *
+ * <p> The features used by a session, such as the echo mode, are negotiated in the handshake, as
+ * described in {@link torcomm.protocol.TorCommCapabilities TorCommCapabilities}. Hosts that do not
+ * negotiate are answered as they were before negotiation existed, and only use the features of
+ * version 0.
+ *
+ * <p> Through a {@link torcomm.protocol.TorCommSwitchboard TorCommSwitchboard}, a client may address
+ * its cells to another session connected to the same switchboard, set up through {@link
+ * #setPeer(short peerID) setPeer(short peerID)}, which answers them as a server would by running
+ * {@link #PEER_RESPOND PEER_RESPOND}.
+ *
+ * <p> When both sides agree on {@link torcomm.protocol.TorCommCapabilities#RESUMPTION RESUMPTION}, a
+ * session outlives the failure of its connection, such as when a Tor circuit is torn down: the client
+ * connects again through its {@link Reconnector Reconnector} and sends again the cells whose replies it
+ * did not receive, while the server waits for it through its {@link
+ * torcomm.protocol.ResumptionRegistry ResumptionRegistry}. The cells sent again keep their sequence
+ * numbers, and the server answers them under the same numbers, so that the cells of both sides still
+ * pair up in the logs. The time taken to resume the session is written out and kept in a histogram of
+ * its own, apart from the round trip times.
+ *
+ * <p> The CPU time and the bytes allocated by a session can be accounted for, by phase, through a
+ * {@link torcomm.stats.CostMeter CostMeter}, and are written out when the session is over.
+ *
+ * <p> Under load, such as when a pipelined client keeps many cells in flight, the frames sent by the
+ * session may be coalesced into batches by a {@link torcomm.protocol.WriteBatcher WriteBatcher}, which
+ * sends them as soon as the session would otherwise wait for the other host.
  *
  * @author Daniel G. Maia Filho
  */
 public class TorCommSession implements Closeable
 {
+	/** The size, in bytes, of the receive and send times appended to a reflected frame. */
+	public static final int ECHO_TIMESTAMPS_SIZE = 16;
+	
 	// IO fields
-	private Socket connection;
-	private DataInputStream in;
-	private DataOutputStream out;
+	private volatile TorCommTransport transport;
 	private String cmd;
 	private String currentTask;
 	private PrintWriter writer;
+	private WriteBatcher batcher;
 	
 	// Connection session fields
 	private short sessionID;
 	private short destID;
+	private short peerID;
+	private boolean peered;
 	
 	// Properties fields
 	private int duration;
+	private TorCommCapabilities offered;
+	private TorCommCapabilities capabilities = TorCommCapabilities.LEGACY;
+	private byte echo;
+	private int cellSize = TorCommDataTranslator.CELL_SIZE;
 	
 	// Communication fields
 	TorCommCell clientCell;
 	TorCommCell serverCell;
 	
+	// Pipelining fields, indexed by the sequence number modulo the window
+	private TorCommCell[] inFlightCells;
+	private long[] inFlightNanos;
+	private int[] inFlightLengths;
+	private boolean[] inFlightLogged;
+	
+	// Measurement fields
+	private ClockOffsetEstimator clock = new ClockOffsetEstimator();
+	private CellTraceStore trace;
+	private IntervalRecorder intervals;
+	private LogSampler sampler;
+	private WarmUp warmUp;
+	private LatencyHistogram dwell;
+	private CostMeter cost;
+	
+	// Workload fields
+	private TorCommWorkload workload;
+	private Random random = new Random();
+	
+	// Resumption fields
+	private ResumptionRegistry resumption;
+	private Reconnector reconnector;
+	private int attempts;
+	private long token;
+	private int resentFrom;
+	private boolean handedOver;
+	private LatencyHistogram recovery = new LatencyHistogram();
+	private volatile boolean closed;
+	
+	/**
+	 * Creates the new connection over which a client resumes its session after its connection failed.
+	 */
+	public interface Reconnector
+	{
+		/**
+		 * Connects to the server again.
+		 *
+		 * @return				the new connection.
+		 * @throws IOException	if the connection could not be made.
+		 */
+		TorCommTransport reconnect() throws IOException;
+	}
+	
 	/**
 	 * Creates an instance of this class that enables exchange of {@link torcomm.protocol.TorCommCell 
 	 * TorCommCells} as bytes through the given {@link java.net.Socket Socket}. Note that this
@@ -56,13 +143,7 @@ public class TorCommSession implements Closeable
 	 */
 	public TorCommSession(Socket connection) throws IOException
 	{
-		this.connection = connection;
-		if (!connection.isConnected())
-			throw new IOException("Disconnected socket.");
-		Random randomGen = new Random();
-		this.sessionID = (short)(randomGen.nextInt(Short.MAX_VALUE));
-		in = new DataInputStream(connection.getInputStream());
-		out = new DataOutputStream(connection.getOutputStream());
+		this(new BlockingTransport(connection));
 	}
 	
 	/**
@@ -79,8 +160,35 @@ public class TorCommSession implements Closeable
 	 */
 	public TorCommSession(Socket connection, int duration) throws IOException
 	{
-		this(connection);
+		this(new BlockingTransport(connection), duration);
+	}
+	
+	/**
+	 * Creates an instance of this class, as a server, that exchanges {@link torcomm.protocol.TorCommCell
+	 * TorCommCells} through the given {@link torcomm.protocol.TorCommTransport TorCommTransport}.
+	 *
+	 * @param transport	the transport, which must be connected with a destination host.
+	 */
+	public TorCommSession(TorCommTransport transport)
+	{
+		this.transport = transport;
+		this.offered = TorCommCapabilities.SERVER_DEFAULT;
+		Random randomGen = new Random();
+		this.sessionID = (short)(randomGen.nextInt(Short.MAX_VALUE));
+	}
+	
+	/**
+	 * Creates an instance of this class, as a client, that exchanges {@link torcomm.protocol.TorCommCell
+	 * TorCommCells} through the given {@link torcomm.protocol.TorCommTransport TorCommTransport}.
+	 *
+	 * @param transport	the transport, which must be connected with a destination host.
+	 * @param duration	the communication's duration.
+	 */
+	public TorCommSession(TorCommTransport transport, int duration)
+	{
+		this(transport);
 		this.duration = duration * 1000;
+		this.offered = TorCommCapabilities.CLIENT_DEFAULT;
 	}
 	
 	/**
@@ -91,13 +199,24 @@ public class TorCommSession implements Closeable
 	 * <p> Note that this is an innapropriate method for servers. Server should use, instead, the method
 	 * {@link #serverHandshake() serverHandshake()}.
 	 *
-	 * @throws IOException	If there is a connection or I/O error while sening or receiving data.
+	 * @throws IOException				If there is a connection or I/O error while sening or receiving
+	 * data.
+	 * @throws TorCommRejectedException	if the server rejected the session, as it was overloaded.
 	 */
 	public void clientHandshake() throws IOException
 	{
-		send(ByteBuffer.allocate(8).putShort(this.sessionID).
-			array());
-		this.destID = ByteBuffer.wrap(retrieve()).getShort();
+		begin(CostMeter.HANDSHAKE);
+		send(offered.toHandshake(this.sessionID));
+		byte[] reply = retrieve();
+		this.destID = ByteBuffer.wrap(reply).getShort();
+		int reason = TorCommCapabilities.getRejection(reply);
+		if (reason != 0)
+			throw new TorCommRejectedException(reason, TorCommCapabilities.getRetryAfter(reply));
+		// The server answers with the common capabilities, which are negotiated again in case it did not
+		setCapabilities(offered.negotiate(TorCommCapabilities.fromHandshake(reply)));
+		if (capabilities.has(TorCommCapabilities.RESUMPTION))
+			token = TorCommCapabilities.getToken(reply);
+		end(CostMeter.HANDSHAKE);
 	}
 	
 	/**
@@ -107,12 +226,113 @@ public class TorCommSession implements Closeable
 	 *
 	 * <p> Note that this is an innapropriate method for clients. Clients should use, instead, the method
 	 * {@link #clientHandshake() clientHandshake()}.
-	 * @throws IOException	If there is a connection or I/O error while sending or receiving data.
+	 *
+	 * <p> If the client resumes a session instead, the connection is handed over to that session, which
+	 * answers the handshake itself, and this instance must not be run. See {@link #isHandedOver()
+	 * isHandedOver()}.
+	 * @throws IOException	If there is a connection or I/O error while sending or receiving data, or
+	 * the client resumes a session that is unknown to the server.
 	 */
 	public void serverHandshake() throws IOException
 	{
-		this.destID = ByteBuffer.wrap(retrieve()).getShort();
-		send(ByteBuffer.allocate(8).putShort(this.sessionID).array());
+		begin(CostMeter.HANDSHAKE);
+		byte[] request = retrieve();
+		this.destID = ByteBuffer.wrap(request).getShort();
+		long resumed = TorCommCapabilities.getToken(request);
+		if (resumed != 0)
+		{
+			if (resumption == null || !resumption.resume(resumed, transport, TorCommCapabilities.
+				getSequence(request)))
+			{
+				send(TorCommCapabilities.toRejection(this.sessionID, AdmissionControl.UNKNOWN_SESSION, 0));
+				throw new IOException("Session of client " + destID + " cannot be resumed.");
+			}
+			handedOver = true;
+			return;
+		}
+		setCapabilities(offered.negotiate(TorCommCapabilities.fromHandshake(request)));
+		if (resumption != null && capabilities.has(TorCommCapabilities.RESUMPTION))
+			token = resumption.issue(transport);
+		send(capabilities.toHandshake(this.sessionID, token, 0));
+		end(CostMeter.HANDSHAKE);
+	}
+	
+	/**
+	 * Tells whether the connection was handed over, in the handshake, to a session that the client
+	 * resumed, in which case this instance must neither be run nor closed.
+	 *
+	 * @return	<i>true</i> if it was handed over, and <i>false</i> otherwise.
+	 */
+	public boolean isHandedOver()
+	{
+		return handedOver;
+	}
+	
+	/**
+	 * Sets up the session according to the capabilities agreed on in the handshake.
+	 *
+	 * @param capabilities	the agreed capabilities.
+	 */
+	private void setCapabilities(TorCommCapabilities capabilities)
+	{
+		this.capabilities = capabilities;
+		if (capabilities.has(TorCommCapabilities.ECHO))
+			echo = (byte)(capabilities.getFeatures() & (TorCommCapabilities.ECHO |
+				TorCommCapabilities.ECHO_TIMESTAMPS));
+		if (capabilities.has(TorCommCapabilities.ECHO_TIMESTAMPS))
+			dwell = new LatencyHistogram();
+		if (capabilities.has(TorCommCapabilities.COMPACT_CELLS))
+			cellSize = TorCommDataTranslator.CELL_FIELDS_SIZE;
+	}
+	
+	/**
+	 * Sets up the capabilities this side offers in the handshake, which must be called before it. By
+	 * default, clients offer {@link torcomm.protocol.TorCommCapabilities#CLIENT_DEFAULT CLIENT_DEFAULT}
+	 * and servers offer {@link torcomm.protocol.TorCommCapabilities#SERVER_DEFAULT SERVER_DEFAULT}.
+	 * Offering {@link torcomm.protocol.TorCommCapabilities#LEGACY LEGACY} handshakes as hosts that do not
+	 * negotiate.
+	 *
+	 * @param offered	the capabilities offered.
+	 */
+	public void setOfferedCapabilities(TorCommCapabilities offered)
+	{
+		this.offered = offered;
+	}
+	
+	/**
+	 * Retrieves the capabilities agreed on in the handshake.
+	 *
+	 * @return	the capabilities, which are {@link torcomm.protocol.TorCommCapabilities#LEGACY LEGACY}
+	 * until the handshake.
+	 */
+	public TorCommCapabilities getCapabilities()
+	{
+		return capabilities;
+	}
+	
+	/**
+	 * Sets up this instance's ID, which must be called before the handshake. By default, the ID is
+	 * chosen at random, but sessions that are addressed by others through a {@link
+	 * torcomm.protocol.TorCommSwitchboard TorCommSwitchboard} need IDs known beforehand.
+	 *
+	 * @param sessionID	the session ID.
+	 */
+	public void setSessionID(short sessionID)
+	{
+		this.sessionID = sessionID;
+	}
+	
+	/**
+	 * Sets up the session to which the client's cells are addressed, instead of the server, when
+	 * connected to a {@link torcomm.protocol.TorCommSwitchboard TorCommSwitchboard}. The replies are
+	 * then created by the peer, which must be running {@link #PEER_RESPOND PEER_RESPOND}.
+	 *
+	 * @param peerID	the peer's session ID.
+	 */
+	public void setPeer(short peerID)
+	{
+		this.peerID = peerID;
+		this.peered = true;
 	}
 	
 	/**
@@ -163,44 +383,322 @@ public class TorCommSession implements Closeable
 			if (duration == null)
 				throw new RunTimeException("Duration not defined. Is this " +
 					"instance a server?");
+			if (intervals != null)
+				intervals.sessionOpened();
 			try
 			{
 				long initTime = System.currentTimeMillis();
 				int i = 0;
-				writeMessage("Communication begun.");
-				while (System.currentTimeMillis() - initTime < duration)
+				String summary;
+				int window = capabilities.getWindow();
+				if (cost != null)
+					cost.start();
+				inFlightCells = new TorCommCell[window];
+				inFlightNanos = new long[window];
+				inFlightLengths = new int[window];
+				inFlightLogged = new boolean[window];
+				writeMessage("Communication begun with " + capabilities + ".");
+				if (workload != null)
+					i = replay(initTime);
+				else if (window > 1)
+					i = pipeline(initTime);
+				else
 				{
-					writeMessage("Creating new cell.");
-					clientCell = createCell(false);
-					writeMessage("Client Cell " + i + " of connection with " +
-						"session " + destID + "\n" + clientCell);
-					writeMessage("Sending cell to server.");
-					send(TorCommDataTranslator.translate(clientCell));
-					writeMessage("Waiting for server reply...");
-					serverCell = TorCommDataTranslator.translate(retrieve());
-					writeMessage("Cell received.");
-					writeMessage("Server Cell " + i + " of connection with " + 
-						"session " + destID + "\n" + serverCell);
-					i++;
+					while (System.currentTimeMillis() - initTime < duration)
+					{
+						exchange(i, 0);
+						i++;
+					}
+					writeMessage("Time out.");
 				}
-				writeMessage("Time out.");
 				clientCell = createCell(true);
 				writeMessage("Sending terminate request...");
-				send(TorCommDataTranslator.translate(clientCell));
-				writeMessage("Acknowledging end of connection by server...");
-				serverCell = TorCommDataTranslator.translate(retrieve());
-				if (serverCell.endConnection > 0)
+				long sendNanos = 0;
+				while (true)
+					try
+					{
+						if (batcher != null)
+							batcher.flush(transport);
+						sendNanos = System.nanoTime();
+						transport.send(TorCommDataTranslator.translate(clientCell), 0, cellSize);
+						writeMessage("Acknowledging end of connection by server...");
+						serverCell = TorCommDataTranslator.translate(retrieve());
+						break;
+					} catch (IOException e) {
+						try
+						{
+							resume(e, i);
+						} catch (TorCommRejectedException r) {
+							// The server ended the session, but its acknowledgement was lost
+							if (r.getReason() != AdmissionControl.UNKNOWN_SESSION)
+								throw r;
+							serverCell = null;
+							break;
+						}
+					}
+				if (trace != null)
+					trace.add(i, sendNanos, System.nanoTime(), clientCell.payload,
+						CellTraceStore.FLAG_END_CONNECTION);
+				if (cost != null)
+					cost.stop(i);
+				if (serverCell != null && serverCell.endConnection > 0)
 					writeMessage("Termination acknowledged.");
 				else
 					writeMessage("Termination was not acknowledged.");
+				if (warmUp != null && !warmUp.isOver())
+					writeMessage("Warm-up not over after " + warmUp.getCells() + " cells. No cell was " +
+						"recorded.");
+				if (sampler != null && (summary = sampler.flush(System.currentTimeMillis())) != null)
+					writeMessage(summary);
+				writeRecoverySummary();
+				writeCostSummary();
+				writeBatchingSummary();
+				if (echo == 0)
+					writeClockSummary(clock.getOutboundDelay(), clock.getInboundDelay());
+				if (dwell != null)
+					writeMessage("Server dwell time (ns): " + dwell);
+				if (trace != null)
+					writeMessage("Trace of " + trace.size() + " cells, " + trace.getMemoryUsage() / 1024 +
+						" KB, " + trace.countSequenceGaps() + " sequence numbers missing. Round trip time " +
+						"(us): " + trace.roundTripHistogram(1000));
+				writeTransportSummary();
 				writeMessage("End of communication.");
 			} catch (IOException e) {
-				throw new RuntimeException("" + connection.getInetAddress() + 
+				throw new RuntimeException("" + transport.getRemoteAddress() + 
 					" disconnected.", e);
+			} finally {
+				if (intervals != null)
+					intervals.sessionClosed();
+				// Lets the reader of the pipe know that the session is over
+				if (writer != null)
+					writer.close();
 			}
 		}
 	};
 	
+	/**
+	 * Exchanges a single cell with the server, that is, sends a new client cell and waits for the
+	 * server's reply. If the connection fails and the session is resumed, a new cell is sent in its
+	 * place.
+	 *
+	 * @param i				the cell's sequence number.
+	 * @param frameSize		the size of the frame sent. Frames smaller than a cell are not padded.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed.
+	 */
+	private void exchange(int i, int frameSize) throws IOException
+	{
+		while (true)
+			try
+			{
+				sendNext(i, frameSize);
+				receiveNext(i);
+				return;
+			} catch (IOException e) {
+				resume(e, i);
+			}
+	}
+	
+	/**
+	 * Exchanges cells with the server until the communication's duration is exceeded, keeping as many
+	 * cells in flight as the agreed pipelining window allows. The round trip time of each cell is
+	 * measured from sending it to receiving its reply, so it includes the time it waits behind the
+	 * cells sent before it. If the connection fails and the session is resumed, new cells are sent in
+	 * place of those whose replies were not received.
+	 *
+	 * @param initTime		the time at which the communication begun, in milliseconds.
+	 * @return				the number of cells exchanged.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed.
+	 */
+	private int pipeline(long initTime) throws IOException
+	{
+		int window = inFlightCells.length;
+		int sent = 0;
+		int received = 0;
+		while (true)
+			try
+			{
+				while (sent - received < window && System.currentTimeMillis() - initTime < duration)
+					sendNext(sent++, 0);
+				if (received == sent)
+					break;
+				receiveNext(received);
+				received++;
+			} catch (IOException e) {
+				resume(e, received);
+				sent = received;
+			}
+		writeMessage("Time out.");
+		return sent;
+	}
+	
+	/**
+	 * Creates a new client cell and sends it to the server without waiting for the reply.
+	 *
+	 * @param i				the cell's sequence number.
+	 * @param frameSize		the size of the frame sent. Frames smaller than a cell are not padded.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void sendNext(int i, int frameSize) throws IOException
+	{
+		int slot = i % inFlightCells.length;
+		boolean logged = (warmUp == null || warmUp.isOver()) && (sampler == null || sampler.sample(
+			System.nanoTime()));
+		begin(CostMeter.ENCODING);
+		clientCell = createCell(false);
+		byte[] frame = TorCommDataTranslator.translate(clientCell);
+		int length = Math.max(cellSize, frameSize);
+		if (length > frame.length)
+			frame = Arrays.copyOf(frame, length);
+		end(CostMeter.ENCODING);
+		if (logged)
+		{
+			begin(CostMeter.LOGGING);
+			writeMessage("Creating new cell.");
+			writeMessage("Client Cell " + i + " of connection with " +
+				"session " + destID + "\n" + clientCell);
+			writeMessage("Sending cell to server.");
+			end(CostMeter.LOGGING);
+		}
+		inFlightCells[slot] = clientCell;
+		inFlightLengths[slot] = length;
+		inFlightLogged[slot] = logged;
+		begin(CostMeter.IO);
+		inFlightNanos[slot] = System.nanoTime();
+		output(frame, length);
+		end(CostMeter.IO);
+		if (logged)
+			writeMessage("Waiting for server reply...");
+	}
+	
+	/**
+	 * Receives the server's reply to a cell sent by {@link #sendNext(int i, int frameSize) sendNext(int i,
+	 * int frameSize)} and records its measurements.
+	 *
+	 * @param i				the cell's sequence number.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void receiveNext(int i) throws IOException
+	{
+		int slot = i % inFlightCells.length;
+		TorCommCell sentCell = inFlightCells[slot];
+		long sendNanos = inFlightNanos[slot];
+		begin(CostMeter.IO);
+		byte[] reply = retrieve();
+		long receiveNanos = System.nanoTime();
+		end(CostMeter.IO);
+		begin(CostMeter.ENCODING);
+		serverCell = TorCommDataTranslator.translate(reply);
+		end(CostMeter.ENCODING);
+		long serverDwell = 0;
+		boolean stamped = dwell != null && reply.length >= inFlightLengths[slot] + ECHO_TIMESTAMPS_SIZE;
+		if (stamped)
+		{
+			ByteBuffer stamps = ByteBuffer.wrap(reply, reply.length - ECHO_TIMESTAMPS_SIZE,
+				ECHO_TIMESTAMPS_SIZE);
+			serverDwell = -stamps.getLong() + stamps.getLong();
+		}
+		long roundTrip = receiveNanos - sendNanos - serverDwell;
+		if (warmUp != null && warmUp.warming(System.currentTimeMillis(), roundTrip / 1000))
+		{
+			if (warmUp.isOver())
+				writeMessage(warmUp.getBoundary());
+			return;
+		}
+		if (stamped)
+			dwell.record(serverDwell);
+		if (trace != null)
+			trace.add(i, sendNanos, sendNanos + roundTrip, sentCell.payload, (byte)0);
+		if (intervals != null)
+			intervals.recordCell(8 + inFlightLengths[slot] + reply.length, roundTrip / 1000);
+		if (echo == 0)
+			clock.sample(TorCommDataTranslator.timestamp(sentCell),
+				TorCommDataTranslator.timestamp(serverCell),
+				TorCommDataTranslator.timestamp(LocalDateTime.now()));
+		if (inFlightLogged[slot])
+		{
+			begin(CostMeter.LOGGING);
+			writeMessage("Cell received.");
+			if (echo != 0)
+				writeMessage("Echo of Client Cell " + i + " received. Server dwell time: " + serverDwell +
+					" ns");
+			else
+				writeMessage("Server Cell " + i + " of connection with " + 
+					"session " + destID + "\n" + serverCell);
+			end(CostMeter.LOGGING);
+		}
+		summarize(roundTrip / 1000);
+	}
+	
+	/**
+	 * Records a cell's round trip time in the log sampler, if any, and writes out the sampler's summary
+	 * line if its interval is over.
+	 *
+	 * @param roundTripMicros	the round trip time, in microseconds.
+	 */
+	private void summarize(long roundTripMicros)
+	{
+		if (sampler == null)
+			return;
+		sampler.record(roundTripMicros);
+		String summary = sampler.summary(System.currentTimeMillis());
+		if (summary != null)
+			writeMessage(summary);
+	}
+	
+	/**
+	 * Replays the workload set up by {@link #setWorkload(TorCommWorkload workload, int session)
+	 * setWorkload(TorCommWorkload workload, int session)} until either all of its phases are over or
+	 * the communication's duration is exceeded.
+	 *
+	 * @param initTime		the time at which the communication begun, in milliseconds.
+	 * @return				the number of cells exchanged.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private int replay(long initTime) throws IOException
+	{
+		int i = 0;
+		for (TorCommWorkload.Phase phase : workload.getPhases())
+		{
+			writeMessage("Phase " + phase.getName() + " begun.");
+			for (int r = 0; r < phase.getRepeat(); r++)
+			{
+				int burst = phase.nextBurst(random);
+				for (int b = 0; b < burst; b++)
+				{
+					if (System.currentTimeMillis() - initTime >= duration)
+					{
+						writeMessage("Time out.");
+						return i;
+					}
+					exchange(i, phase.nextPayloadSize(random));
+					i++;
+				}
+				sleepUntil(System.nanoTime() + phase.nextThinkNanos(random));
+			}
+		}
+		writeMessage("End of workload.");
+		return i;
+	}
+	
+	/**
+	 * Waits until the given instant. The thread is parked until shortly before the instant and then
+	 * yields until it is reached, so the wait ends within a few microseconds of the instant.
+	 *
+	 * @param deadline	the instant, as given by {@link System#nanoTime() System.nanoTime()}.
+	 */
+	private static void sleepUntil(long deadline)
+	{
+		long remaining = deadline - System.nanoTime();
+		while (remaining > 0)
+		{
+			if (remaining > 200000)
+				LockSupport.parkNanos(remaining - 100000);
+			else
+				Thread.yield();
+			remaining = deadline - System.nanoTime();
+		}
+	}
+	
 	/**
 	 * An implementation of the {@link java.lang.Runnable Runnable} interface that can be run on a {@link
 	 * java.lang.Thread Thread} instance to establish server communication with a client.
@@ -218,40 +716,571 @@ public class TorCommSession implements Closeable
 		 */
 		public void run()
 		{
+			if (intervals != null)
+				intervals.sessionOpened();
 			try
 			{
 				int i = 0;
+				String summary;
 				TorCommCell clientCell, serverCell;
-				writeMessage("Communication has begun.");
+				writeMessage("Communication has begun with " + capabilities + ".");
+				if (cost != null)
+					cost.start();
+				if (echo != 0)
+				{
+					writeMessage("Reflecting every frame.");
+					i = reflect();
+					if (cost != null)
+						cost.stop(i);
+					writeMessage("Client requested connection termination after " + i + " cells.");
+					writeRecoverySummary();
+					writeCostSummary();
+					writeBatchingSummary();
+					writeTransportSummary();
+					writeMessage("End of communication.");
+					return;
+				}
 				writeMessage("Waiting for client reply...");
-				clientCell = TorCommDataTranslator.translate(retrieve());
+				clientCell = TorCommDataTranslator.translate(receive());
 				writeMessage("Client cell received.");
-				while (clientCell.endConnection <= 0)
+				while (true)
+				{
+					while (clientCell.endConnection <= 0)
+					{
+						boolean logged = sampler == null || sampler.sample(System.nanoTime());
+						if (logged)
+						{
+							begin(CostMeter.LOGGING);
+							writeMessage("Client Cell " + i + " of connection with " + 
+								"session " + destID + "\n" + clientCell);
+							writeMessage("Creating new cell.");
+							end(CostMeter.LOGGING);
+						}
+						begin(CostMeter.ENCODING);
+						serverCell = createCell(false);
+						byte[] frame = TorCommDataTranslator.translate(serverCell);
+						end(CostMeter.ENCODING);
+						if (logged)
+						{
+							begin(CostMeter.LOGGING);
+							writeMessage("Server Cell " + i + " of connection with " + 
+								"session " + destID + "\n" + serverCell);
+							writeMessage("Sending new cell.");
+							end(CostMeter.LOGGING);
+						}
+						long resumed = recovery.getCount();
+						begin(CostMeter.IO);
+						long sendNanos = System.nanoTime();
+						reply(frame, cellSize);
+						end(CostMeter.IO);
+						if (logged)
+							writeMessage("Waiting for client reply...");
+						begin(CostMeter.IO);
+						byte[] request = receive();
+						long roundTrip = (System.nanoTime() - sendNanos) / 1000;
+						end(CostMeter.IO);
+						begin(CostMeter.ENCODING);
+						clientCell = TorCommDataTranslator.translate(request);
+						end(CostMeter.ENCODING);
+						// Round trips that span the resumption of the session are not measured
+						boolean timed = recovery.getCount() == resumed && isStopAndWait();
+						// The client sends again the cells whose replies it did not receive
+						i = recovery.getCount() == resumed ? i + 1 : resentFrom;
+						if (intervals != null)
+							intervals.recordCell(8 + cellSize + request.length, timed ? roundTrip :
+								-1);
+						if (timed)
+						{
+							summarize(roundTrip);
+							// The client stamps its next cell right after receiving this one
+							clock.sample(TorCommDataTranslator.timestamp(serverCell),
+								TorCommDataTranslator.timestamp(clientCell),
+								TorCommDataTranslator.timestamp(LocalDateTime.now()));
+						}
+					}
+					writeMessage("Client requested connection termination.");
+					serverCell = createCell(true);
+					if (reply(TorCommDataTranslator.translate(serverCell), cellSize) && flush())
+						break;
+					// The client requests the end of the connection again once it resumes the session
+					clientCell = TorCommDataTranslator.translate(receive());
+					i = resentFrom;
+				}
+				if (cost != null)
+					cost.stop(i);
+				writeMessage("End of connection acknowledged.");
+				if (sampler != null && (summary = sampler.flush(System.currentTimeMillis())) != null)
+					writeMessage(summary);
+				writeRecoverySummary();
+				writeCostSummary();
+				writeBatchingSummary();
+				writeClockSummary(clock.getInboundDelay(), clock.getOutboundDelay());
+				writeTransportSummary();
+				writeMessage("End of communication.");
+			} catch (IOException e) {
+				throw new RuntimeException("" + transport.getRemoteAddress() + 
+					" disconnected.", e);
+			} finally {
+				if (intervals != null)
+					intervals.sessionClosed();
+				if (token != 0 && resumption != null)
+					resumption.forget(token);
+			}
+		}
+	};
+	
+	/**
+	 * An implementation of the {@link java.lang.Runnable Runnable} interface that can be run on a {@link
+	 * java.lang.Thread Thread} instance to answer, through a {@link torcomm.protocol.TorCommSwitchboard
+	 * TorCommSwitchboard}, the cells other sessions address to this one, each with a new cell addressed
+	 * to its sender. The session must have been created as a client and have done its handshake with the
+	 * switchboard.
+	 *
+	 * <p> After the duration set in the constructor, the session requests the end of the connection, but
+	 * goes on answering the cells that were already on their way to it until the switchboard
+	 * acknowledges the request, so that none of its peers waits for a reply that never comes. The trace
+	 * store, if any, holds the time taken to answer each cell.
+	 */
+	public final Runnable PEER_RESPOND = new Runnable()
+	{
+		/**
+		 * Answers cells until the end of the connection is acknowledged.
+		 */
+		public void run()
+		{
+			if (duration == 0)
+				throw new RuntimeException("Duration not defined. Is this instance a server?");
+			if (intervals != null)
+				intervals.sessionOpened();
+			final Object sendLock = new Object();
+			final boolean[] ending = new boolean[1];
+			Thread timer = new Thread(new Runnable()
+			{
+				public void run()
 				{
-					writeMessage("Client Cell " + i + " of connection with " + 
-						"session " + destID + "\n" + clientCell);
-					writeMessage("Creating new cell.");
+					try
+					{
+						Thread.sleep(duration);
+						synchronized (sendLock)
+						{
+							writeMessage("Time out. Sending terminate request...");
+							ending[0] = true;
+							transport.send(TorCommDataTranslator.translate(createCell(true)), 0, cellSize);
+						}
+					} catch (InterruptedException | IOException e) {}
+				}
+			}, "TorCommSession " + sessionID + " timer");
+			timer.setDaemon(true);
+			try
+			{
+				int i = 0;
+				String summary;
+				writeMessage("Answering cells of other sessions with " + capabilities + ".");
+				timer.start();
+				while (true)
+				{
+					byte[] request = retrieve();
+					long receiveNanos = System.nanoTime();
+					clientCell = TorCommDataTranslator.translate(request);
+					if (clientCell.endConnection > 0)
+						break;
+					boolean logged = sampler == null || sampler.sample(receiveNanos);
 					serverCell = createCell(false);
-					writeMessage("Server Cell " + i + " of connection with " + 
-						"session " + destID + "\n" + serverCell);
-					writeMessage("Sending new cell.");
-					send(TorCommDataTranslator.translate(serverCell));
-					writeMessage("Waiting for client reply...");
-					clientCell = TorCommDataTranslator.translate(retrieve());
+					serverCell.receiverID = clientCell.senderID;
+					if (logged)
+						writeMessage("Cell " + i + " of session " + clientCell.senderID + " answered.\n" +
+							serverCell);
+					byte[] frame = TorCommDataTranslator.translate(serverCell);
+					long sendNanos;
+					synchronized (sendLock)
+					{
+						sendNanos = System.nanoTime();
+						transport.send(frame, 0, cellSize);
+					}
+					if (trace != null)
+						trace.add(i, receiveNanos, sendNanos, clientCell.payload, (byte)0);
+					if (intervals != null)
+						intervals.recordCell(8 + request.length + cellSize, (sendNanos - receiveNanos) / 1000);
+					summarize((sendNanos - receiveNanos) / 1000);
 					i++;
 				}
-				writeMessage("Client requested connection termination.");
-				writeMessage("End of connection acknowledged.");
-				serverCell = createCell(true);
-				send(TorCommDataTranslator.translate(serverCell));
+				synchronized (sendLock)
+				{
+					writeMessage(ending[0] ? "Termination acknowledged." : "Connection terminated by the " +
+						"switchboard.");
+				}
+				writeMessage(i + " cells answered.");
+				if (sampler != null && (summary = sampler.flush(System.currentTimeMillis())) != null)
+					writeMessage(summary);
+				writeTransportSummary();
 				writeMessage("End of communication.");
 			} catch (IOException e) {
-				throw new RuntimeException("" + connection.getInetAddress() + 
+				throw new RuntimeException("" + transport.getRemoteAddress() + 
 					" disconnected.", e);
+			} finally {
+				timer.interrupt();
+				if (intervals != null)
+					intervals.sessionClosed();
+				if (writer != null)
+					writer.close();
 			}
 		}
 	};
 	
+	/**
+	 * Reflects every frame received back to the client, until the client requests the end of the
+	 * connection. Frames are not decoded, and the same buffer is used for every frame
+	 * unless a larger one is received.
+	 *
+	 * @return				the number of frames reflected, including the one requesting the end.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed, or a
+	 * frame is too short for a cell.
+	 */
+	private int reflect() throws IOException
+	{
+		int stamps = (echo & TorCommCapabilities.ECHO_TIMESTAMPS) != 0 ? ECHO_TIMESTAMPS_SIZE : 0;
+		ByteBuffer frame = ByteBuffer.allocate(TorCommDataTranslator.CELL_SIZE + stamps);
+		boolean endConnection = false;
+		long sendNanos = 0;
+		int i = 0;
+		while (!endConnection)
+		{
+			frame.clear();
+			begin(CostMeter.IO);
+			try
+			{
+				if (batcher != null)
+					batcher.receiving(transport);
+				frame = transport.receive(frame);
+			} catch (IOException e) {
+				suspend(e);
+				i = resentFrom;
+				sendNanos = 0;
+				continue;
+			}
+			long receiveNanos = System.nanoTime();
+			end(CostMeter.IO);
+			int length = frame.position();
+			if (length < TorCommDataTranslator.CELL_FIELDS_SIZE)
+				throw new IOException("Frame too short for a cell.");
+			frame = TorCommTransport.ensureRemaining(frame, stamps);
+			endConnection = frame.get(TorCommDataTranslator.END_CONNECTION_OFFSET) > 0;
+			if (stamps > 0)
+			{
+				frame.putLong(length, receiveNanos);
+				frame.putLong(length + 8, System.nanoTime());
+			}
+			begin(CostMeter.IO);
+			boolean replied = reply(frame.array(), length + stamps) && (!endConnection || flush());
+			end(CostMeter.IO);
+			if (!replied)
+			{
+				// The client sends the frame again once it resumes the session
+				endConnection = false;
+				i = resentFrom;
+				sendNanos = 0;
+				continue;
+			}
+			// The round trip is measured from sending a frame to receiving the next one
+			if (intervals != null)
+				intervals.recordCell(8 + 2 * length + stamps, sendNanos == 0 || !isStopAndWait() ?
+					-1 : (receiveNanos - sendNanos) / 1000);
+			sendNanos = System.nanoTime();
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * Tells whether the client sends each cell right after receiving the reply to the previous one,
+	 * so that the server may time round trips from its replies to the next cells. It does not when
+	 * it keeps many cells in flight, whose next cell was sent before the reply arrived, nor when it
+	 * waits between cells, in which case the round trip would include the wait.
+	 *
+	 * @return	<i>true</i> if it does, and <i>false</i> otherwise.
+	 */
+	private boolean isStopAndWait()
+	{
+		return capabilities.getWindow() == 1 && !capabilities.has(TorCommCapabilities.PACED);
+	}
+	
+	/**
+	 * Sets up the server to reflect every frame it receives instead of replying with a cell of its own.
+	 * It must be called before the {@link #serverHandshake() serverHandshake()}, through which it is
+	 * offered to the client, and only takes effect if the client offers it as well.
+	 *
+	 * @param timestamps	<i>true</i> if the times at which the server received and sent the frame shall
+	 * be appended to it, as two longs given by {@link System#nanoTime() System.nanoTime()}, and
+	 * <i>false</i> otherwise.
+	 */
+	public void setEchoMode(boolean timestamps)
+	{
+		offered = offered.withFeatures(offered.getFeatures() | TorCommCapabilities.ECHO |
+			(timestamps ? TorCommCapabilities.ECHO_TIMESTAMPS : 0));
+	}
+	
+	/**
+	 * Retrieves the estimator of the destination's clock offset, which also holds the one-way delay
+	 * distributions of both directions of the communication.
+	 *
+	 * @return	the clock offset estimator.
+	 */
+	public ClockOffsetEstimator getClockOffsetEstimator()
+	{
+		return clock;
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.protocol.TorCommWorkload TorCommWorkload} that the client will replay
+	 * instead of exchanging cells one after another. The session's random generator is replaced by the
+	 * workload's generator of the given session, so that the payload of every cell is also reproduced.
+	 * The duration given to the constructor still bounds the communication. As the client waits
+	 * between bursts, it offers {@link torcomm.protocol.TorCommCapabilities#PACED PACED} to the
+	 * server, so it must be called before the handshake, and after {@link
+	 * #setOfferedCapabilities(TorCommCapabilities offered) setOfferedCapabilities(TorCommCapabilities
+	 * offered)}.
+	 *
+	 * @param workload	the workload to be replayed.
+	 * @param session	the index of this session among the workload's sessions.
+	 */
+	public void setWorkload(TorCommWorkload workload, int session)
+	{
+		this.workload = workload;
+		this.random = workload.newRandom(session);
+		offered = offered.withFeatures(offered.getFeatures() | TorCommCapabilities.PACED);
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.stats.CellTraceStore CellTraceStore} in which the client will record the
+	 * sequence number, send and receive times and payload of every cell it exchanges. No trace is kept
+	 * unless a store is set.
+	 *
+	 * @param trace	the store to which samples shall be appended.
+	 */
+	public void setTraceStore(CellTraceStore trace)
+	{
+		this.trace = trace;
+	}
+	
+	/**
+	 * Retrieves the {@link torcomm.stats.CellTraceStore CellTraceStore} set up by {@link
+	 * #setTraceStore(CellTraceStore trace) setTraceStore(CellTraceStore trace)}.
+	 *
+	 * @return	the trace store, or <i>null</i> if none was set.
+	 */
+	public CellTraceStore getTraceStore()
+	{
+		return trace;
+	}
+	
+	/**
+	 * Sets up an {@link torcomm.stats.IntervalRecorder IntervalRecorder} that aggregates every cell
+	 * exchanged by this session into per-interval summaries. A single recorder may be shared by many
+	 * sessions. On the client, the round trip time is measured from sending a cell to receiving the
+	 * reply, while on the server it is measured from sending a reply to receiving the next cell.
+	 *
+	 * @param intervals	the recorder.
+	 */
+	public void setIntervalRecorder(IntervalRecorder intervals)
+	{
+		this.intervals = intervals;
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.protocol.LogSampler LogSampler} that decides which cells are written out
+	 * through {@link #setPipedOutputStream(PipedOutputStream outStream) setPipedOutputStream(
+	 * PipedOutputStream outStream)}, and which summary lines are written in place of the others. The
+	 * sampler is copied, so that it can be shared by many sessions. Every cell is written out unless a
+	 * sampler is set.
+	 *
+	 * @param sampler	the sampler whose settings shall be used.
+	 */
+	public void setLogSampler(LogSampler sampler)
+	{
+		this.sampler = sampler == null ? null : new LogSampler(sampler);
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.protocol.WarmUp WarmUp} whose cells the client exchanges without
+	 * recording them, neither in the trace, the intervals and the clock offset estimator, nor in the log,
+	 * which marks the end of the warm-up with a line of its own. The warm-up counts towards the
+	 * communication's duration. The warm-up is copied, so that it can be shared by many sessions.
+	 * Every cell is recorded unless a warm-up is set.
+	 *
+	 * @param warmUp	the warm-up whose settings shall be used.
+	 */
+	public void setWarmUp(WarmUp warmUp)
+	{
+		this.warmUp = warmUp == null ? null : new WarmUp(warmUp);
+	}
+	
+	/**
+	 * Sets up the client to resume the session over a new connection, made by the given reconnector,
+	 * when its connection fails, which is offered to the server in the handshake. It must be called
+	 * before the handshake, and after {@link #setOfferedCapabilities(TorCommCapabilities offered)
+	 * setOfferedCapabilities(TorCommCapabilities offered)}. The session fails as before unless the
+	 * server agrees on it.
+	 *
+	 * @param reconnector	the reconnector.
+	 * @param attempts		the largest number of connections attempted each time the session is
+	 * resumed.
+	 */
+	public void setReconnector(Reconnector reconnector, int attempts)
+	{
+		this.reconnector = reconnector;
+		this.attempts = Math.max(1, attempts);
+		offered = offered.withFeatures(offered.getFeatures() | TorCommCapabilities.RESUMPTION);
+	}
+	
+	/**
+	 * Sets up the server to let the client resume the session over a new connection through the given
+	 * registry, which is offered to the client in the handshake. It must be called before the {@link
+	 * #serverHandshake() serverHandshake()}, which also hands the connection of a client resuming its
+	 * session over to that session.
+	 *
+	 * @param resumption	the registry, which is shared by every session of the server, or <i>null</i>
+	 * if sessions cannot be resumed.
+	 */
+	public void setResumption(ResumptionRegistry resumption)
+	{
+		this.resumption = resumption;
+		if (resumption != null)
+			offered = offered.withFeatures(offered.getFeatures() | TorCommCapabilities.RESUMPTION);
+	}
+	
+	/**
+	 * Retrieves the times taken to resume the session, from the failure of the connection to the end of
+	 * the new handshake.
+	 *
+	 * @return	the times, in milliseconds.
+	 */
+	public LatencyHistogram getRecovery()
+	{
+		return recovery;
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.stats.CostMeter CostMeter} that accounts for the CPU time and the bytes
+	 * allocated by the session, by phase, which are written out when the session is over. The meter is
+	 * copied, so that it can be shared by many sessions. No cost is accounted for unless a meter is set.
+	 *
+	 * @param cost	the meter whose settings shall be used.
+	 */
+	public void setCostMeter(CostMeter cost)
+	{
+		this.cost = cost == null ? null : new CostMeter(cost);
+	}
+	
+	/**
+	 * Retrieves the {@link torcomm.stats.CostMeter CostMeter} of this session, set up by {@link
+	 * #setCostMeter(CostMeter cost) setCostMeter(CostMeter cost)}.
+	 *
+	 * @return	the session's own meter, or <i>null</i> if none was set.
+	 */
+	public CostMeter getCostMeter()
+	{
+		return cost;
+	}
+	
+	/**
+	 * Marks the beginning of a phase of the session in its cost meter, if any.
+	 *
+	 * @param phase	the phase, such as {@link torcomm.stats.CostMeter#IO IO}.
+	 */
+	private void begin(int phase)
+	{
+		if (cost != null)
+			cost.begin(phase);
+	}
+	
+	/**
+	 * Marks the end of a phase of the session in its cost meter, if any.
+	 *
+	 * @param phase	the phase.
+	 */
+	private void end(int phase)
+	{
+		if (cost != null)
+			cost.end(phase);
+	}
+	
+	/**
+	 * Writes out the costs of the session, if they were accounted for.
+	 */
+	private void writeCostSummary()
+	{
+		if (cost != null)
+			writeMessage("Cost: " + cost);
+	}
+	
+	/**
+	 * Sets up a {@link torcomm.protocol.WriteBatcher WriteBatcher} that coalesces the frames the session
+	 * sends under load, and whose accounting is written out when the session is over. The batcher is
+	 * copied, so that it can be shared by many sessions. Every frame is sent through a write of its own
+	 * unless a batcher is set.
+	 *
+	 * @param batcher	the batcher whose settings shall be used.
+	 */
+	public void setWriteBatcher(WriteBatcher batcher)
+	{
+		this.batcher = batcher == null ? null : new WriteBatcher(batcher);
+	}
+	
+	/**
+	 * Retrieves the {@link torcomm.protocol.WriteBatcher WriteBatcher} of this session, set up by {@link
+	 * #setWriteBatcher(WriteBatcher batcher) setWriteBatcher(WriteBatcher batcher)}.
+	 *
+	 * @return	the session's own batcher, or <i>null</i> if none was set.
+	 */
+	public WriteBatcher getWriteBatcher()
+	{
+		return batcher;
+	}
+	
+	/**
+	 * Writes out how the frames sent were coalesced, if they were.
+	 */
+	private void writeBatchingSummary()
+	{
+		if (batcher != null)
+			writeMessage("Write batching: " + batcher);
+	}
+	
+	/**
+	 * Writes out the number of times the session was resumed and how long it took, if it ever was.
+	 */
+	private void writeRecoverySummary()
+	{
+		if (recovery.getCount() > 0)
+			writeMessage("Session resumed " + recovery.getCount() + " times. Recovery time (ms): " +
+				recovery);
+	}
+	
+	/**
+	 * Writes out the transport's own costs, if it describes any.
+	 */
+	private void writeTransportSummary()
+	{
+		String summary = transport.getSummary();
+		if (summary != null)
+			writeMessage("Transport: " + summary);
+	}
+	
+	/**
+	 * Writes out the estimated clock offset and the one-way delays of both directions.
+	 *
+	 * @param upstream		the delays from the client to the server.
+	 * @param downstream	the delays from the server to the client.
+	 */
+	private void writeClockSummary(LatencyHistogram upstream, LatencyHistogram downstream)
+	{
+		writeMessage("Clock offset of session " + destID + ": " + String.format("%.1f",
+			clock.getOffset()) + " ms, drift: " + String.format("%.1f", clock.getDriftPPM()) + " ppm");
+		writeMessage("Round trip time (us): " + clock.getRoundTrip());
+		writeMessage("Upstream one-way delay (us): " + upstream);
+		writeMessage("Downstream one-way delay (us): " + downstream);
+	}
+	
 	/**
 	 * Sets up a {@link java.io.PrintWriter PrintWriter} which will write data to a given {@link java.io.PipedOutputStream
      *	 PipedOutputStream}. The provided PipedOutputStream will constantly output data
@@ -264,6 +1293,18 @@ public class TorCommSession implements Closeable
 		writer = new PrintWriter(outStream, true);
 	}
 	
+	/**
+	 * Sets up the {@link java.io.PrintWriter PrintWriter} to which communication data is written, so
+	 * that it can be written straight to a file, or to any other stream, without a piping thread. The
+	 * client closes the writer when its communication is over.
+	 *
+	 * @param writer	the writer, or <i>null</i> if no communication data shall be written.
+	 */
+	public void setLogWriter(PrintWriter writer)
+	{
+		this.writer = writer;
+	}
+	
 	/**
 	 * Sends a message through a {@link java.io.PipedOutputStream PipedOutputStream} that is set up by
 	 * {@link #setPipedOutputStream(PipedOutputStream outStream) setPipedOutputStream(PipedOutputStream
@@ -313,7 +1354,7 @@ public class TorCommSession implements Closeable
 		
 		TorCommCell cell = new TorCommCell();
 		cell.senderID = this.sessionID;
-		cell.receiverID = this.destID;
+		cell.receiverID = peered ? this.peerID : this.destID;
 		cell.year = cYear;
 		cell.month = cMonth;
 		cell.day = cDay;
@@ -322,25 +1363,25 @@ public class TorCommSession implements Closeable
 		cell.second = cSecond;
 		cell.millisecond = cMillisecond;
 		cell.endConnection = cEndConnection;
-		cell.payload = (new Random()).nextInt(Integer.MAX_VALUE);
+		cell.payload = random.nextInt(Integer.MAX_VALUE);
 		
 		return cell;
 	}
 	
 	/**
-	 * Inputs a byte array into the connection's output stream.
+	 * Sends a byte array as a frame through the transport.
 	 *
 	 * @param data 			the byte array to be sent.
 	 * @throws IOException	if an I/O or connection error occurs.
 	 */
 	private void send(byte[] data) throws IOException
 	{
-		out.write(ByteBuffer.allocate(4).putInt(data.length).array());
-		out.write(data);
+		transport.send(data, 0, data.length);
 	}
 	
 	/**
-	 * Retrieves the connection's last output byte array data.
+	 * Retrieves the connection's last output byte array data, after sending the frames held by the
+	 * write batcher, if any, unless more are to be answered first.
 	 *
 	 * @return 				the received byte array.
 	 * @throws IOException	when an I/O or connection error occurs.
@@ -348,26 +1389,215 @@ public class TorCommSession implements Closeable
 	 */
 	private byte[] retrieve() throws IOException, EOFException
 	{
-		int dataLength = in.readInt();
-		byte[] data = new byte[dataLength];
-		in.readFully(data);
-		return data;
+		if (batcher != null)
+			batcher.receiving(transport);
+		return transport.receive();
+	}
+	
+	/**
+	 * Sends a frame through the write batcher, if any, which may hold it, or through the transport
+	 * otherwise.
+	 *
+	 * @param frame			the frame.
+	 * @param length		the number of bytes of the frame sent.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void output(byte[] frame, int length) throws IOException
+	{
+		if (batcher != null)
+			batcher.send(transport, frame, 0, length);
+		else
+			transport.send(frame, 0, length);
+	}
+	
+	/**
+	 * Receives the client's next frame, waiting for the client to resume the session if the connection
+	 * fails.
+	 *
+	 * @return 				the received byte array.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed.
+	 */
+	private byte[] receive() throws IOException
+	{
+		while (true)
+			try
+			{
+				return retrieve();
+			} catch (IOException e) {
+				suspend(e);
+			}
+	}
+	
+	/**
+	 * Sends a reply to the client, which the write batcher, if any, may hold, waiting for the client to
+	 * resume the session if the connection fails. The reply is then lost, and the client sends again the
+	 * frame it answers.
+	 *
+	 * @param frame			the frame.
+	 * @param length		the number of bytes of the frame sent.
+	 * @return				<i>true</i> if the reply was sent, and <i>false</i> if the session was resumed
+	 * instead.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed.
+	 */
+	private boolean reply(byte[] frame, int length) throws IOException
+	{
+		try
+		{
+			output(frame, length);
+			return true;
+		} catch (IOException e) {
+			suspend(e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Sends the replies held by the write batcher, if any, waiting for the client to resume the session
+	 * if the connection fails. The replies are then lost, and the client sends again the frames they
+	 * answer.
+	 *
+	 * @return				<i>true</i> if the replies were sent, and <i>false</i> if the session was
+	 * resumed instead.
+	 * @throws IOException	if an I/O or connection error occurs and the session cannot be resumed.
+	 */
+	private boolean flush() throws IOException
+	{
+		if (batcher == null)
+			return true;
+		try
+		{
+			batcher.flush(transport);
+			return true;
+		} catch (IOException e) {
+			suspend(e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Waits for the client to resume the session after the connection failed, up to the grace period of
+	 * the {@link torcomm.protocol.ResumptionRegistry ResumptionRegistry}, and answers the client's
+	 * handshake over the new connection. The sequence number of the first cell the client sends again
+	 * is kept in <i>resentFrom</i>.
+	 *
+	 * @param cause			the failure of the connection.
+	 * @throws IOException	the failure itself if the session cannot be resumed, or if the client did
+	 * not resume it in time.
+	 */
+	private void suspend(IOException cause) throws IOException
+	{
+		if (token == 0 || resumption == null || closed)
+			throw cause;
+		// The replies held were lost with the connection
+		if (batcher != null)
+			batcher.discard();
+		writeMessage("Connection lost (" + cause + "). Waiting for the client to resume the session...");
+		long start = System.nanoTime();
+		while (true)
+		{
+			try
+			{
+				transport.close();
+			} catch (IOException e) {}
+			TorCommTransport next = resumption.await(token);
+			if (next == null)
+				throw new IOException("Session not resumed within " + resumption.getGrace() + " ms.",
+					cause);
+			transport = next;
+			resentFrom = resumption.getSequence(token);
+			try
+			{
+				send(capabilities.toHandshake(this.sessionID, token, 0));
+				break;
+			} catch (IOException e) {
+				cause = e;
+			}
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		recovery.record(millis);
+		writeMessage("Session resumed after " + millis + " ms, from cell " + resentFrom + ".");
 	}
 	
+	/**
+	 * Connects to the server again after the connection failed and resumes the session, trying up to
+	 * the number of attempts set up by {@link #setReconnector(Reconnector reconnector, int attempts)
+	 * setReconnector(Reconnector reconnector, int attempts)}, and waiting longer after each failure.
+	 *
+	 * @param cause						the failure of the connection.
+	 * @param next						the sequence number of the first cell sent again.
+	 * @throws IOException				the failure itself if the session cannot be resumed, or if
+	 * every attempt failed.
+	 * @throws TorCommRejectedException	if the server no longer holds the session.
+	 */
+	private void resume(IOException cause, int next) throws IOException
+	{
+		if (token == 0 || reconnector == null || closed)
+			throw cause;
+		// The cells held are sent again once the session is resumed
+		if (batcher != null)
+			batcher.discard();
+		writeMessage("Connection lost (" + cause + "). Resuming the session from cell " + next + "...");
+		long start = System.nanoTime();
+		for (int attempt = 1; ; attempt++)
+		{
+			try
+			{
+				transport.close();
+			} catch (IOException e) {}
+			// Tor may take a few seconds to build a new circuit
+			long backoff = Math.min(250L << (attempt - 1), 8000);
+			try
+			{
+				transport = reconnector.reconnect();
+				if (closed)
+				{
+					transport.close();
+					throw cause;
+				}
+				send(capabilities.toHandshake(this.sessionID, token, next));
+				byte[] reply = retrieve();
+				int reason = TorCommCapabilities.getRejection(reply);
+				if (reason != 0)
+					throw new TorCommRejectedException(reason, TorCommCapabilities.getRetryAfter(reply));
+				break;
+			} catch (TorCommRejectedException e) {
+				if (e.getReason() == AdmissionControl.UNKNOWN_SESSION)
+					throw e;
+				cause = e;
+				backoff = Math.max(backoff, e.getRetryAfter());
+			} catch (IOException e) {
+				if (closed)
+					throw e;
+				cause = e;
+			}
+			if (attempt >= attempts)
+				throw new IOException("Session not resumed after " + attempts + " attempts.", cause);
+			try
+			{
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw cause;
+			}
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		recovery.record(millis);
+		writeMessage("Session resumed after " + millis + " ms, from cell " + next + ".");
+	}
 	
 	/**
-	 * Closes the connection and all I/O streams.
+	 * Closes the transport and thus the connection, unless it was handed over to a resumed session.
+	 * A server's session can no longer be resumed.
 	 *
 	 * @throws IOException	if an I/O or connection error occurs when closing
 	 * down the sockets.
 	 */
 	public void close() throws IOException
 	{
-		if (connection != null)
-			connection.close();
-		if (out != null)
-			out.close();
-		if (in != null)
-			in.close();
+		closed = true;
+		if (token != 0 && resumption != null)
+			resumption.forget(token);
+		if (transport != null && !handedOver)
+			transport.close();
 	}
 }
\ No newline at end of file
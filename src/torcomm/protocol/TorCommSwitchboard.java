@@ -0,0 +1,322 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A rendezvous point that forwards every cell it receives to the connected session whose ID is the
+ * cell's receiver ID, instead of replying to the sender, so that many sessions can exchange cells with
+ * each other through a single server. Sessions register under the ID they send in the handshake, and
+ * are reached through a routing table shared by every connection.
+ *
+ * <p> Each connection is served by two threads: the one calling {@link #serve(TorCommTransport
+ * transport) serve(TorCommTransport transport)}, which reads cells and routes them, and a writer of its
+ * own, which drains the connection's outbound queue and sends every cell waiting in it through a single
+ * write. Frames are forwarded as they were received, without being decoded past the receiver ID.
+ *
+ * <p> Cells addressed to sessions that are not connected, including the switchboard itself, are sent
+ * back to their senders, so that a client whose peer left, or that has no peer, is never left waiting
+ * for a reply. A request to end the connection is acknowledged by the switchboard itself, once the
+ * session is no longer reachable, and the cells that were already on their way to the session are
+ * still delivered before the acknowledgement.
+ *
+ * <p> The outbound queue of each connection holds up to {@value #QUEUE_CAPACITY} cells, so that a
+ * session that stops reading, or that many sessions send to at once, does not make the switchboard's
+ * memory grow without bound. Cells addressed to a session whose queue is full are sent back to their
+ * senders, as if the session were not connected, and counted apart. A session whose own queue is full
+ * is no longer read from until its writer makes room, which pushes back on sessions that send faster
+ * than they read their replies.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommSwitchboard implements Closeable
+{
+	/** The largest number of cells sent through a single write. */
+	public static final int MAX_BATCH = 64;
+	
+	/** The largest number of cells waiting to be sent to a session. */
+	public static final int QUEUE_CAPACITY = 1024;
+	
+	private final short sessionID;
+	private final TorCommCapabilities offered;
+	private final ConcurrentMap<Short, Route> routes = new ConcurrentHashMap<Short, Route>();
+	private final AtomicLong forwarded = new AtomicLong();
+	private final AtomicLong bounced = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private volatile boolean closed;
+	
+	/**
+	 * Creates a switchboard with a random session ID, which offers compact cells and pipelining in the
+	 * handshake.
+	 */
+	public TorCommSwitchboard()
+	{
+		this.sessionID = (short)new Random().nextInt(Short.MAX_VALUE);
+		this.offered = TorCommCapabilities.SERVER_DEFAULT;
+	}
+	
+	/**
+	 * A connected session, through which cells addressed to it are queued and written.
+	 */
+	private final class Route implements Runnable
+	{
+		private final short id;
+		private final TorCommTransport transport;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+		private final Thread writer;
+		private volatile boolean closing;
+		private volatile boolean failed;
+		
+		/**
+		 * Creates the route to a session.
+		 *
+		 * @param id		the session's ID.
+		 * @param transport	the session's transport.
+		 */
+		private Route(short id, TorCommTransport transport)
+		{
+			this.id = id;
+			this.transport = transport;
+			this.writer = new Thread(this, "TorCommSwitchboard route " + id);
+			writer.setDaemon(true);
+		}
+		
+		/**
+		 * Queues a cell sent by another session to be sent to this one, unless its queue is full.
+		 *
+		 * @param frame	the cell's frame.
+		 * @return		<i>true</i> if it was queued, and <i>false</i> if the session is leaving or its
+		 * queue is full.
+		 */
+		private synchronized boolean offer(byte[] frame)
+		{
+			return !closing && queue.offer(frame);
+		}
+		
+		/**
+		 * Queues a cell sent back to this session, waiting for room in its queue. It is only called by
+		 * the thread reading the session's cells, so that waiting pushes back on the session alone.
+		 *
+		 * @param frame	the cell's frame.
+		 * @return		<i>true</i> if it was queued, and <i>false</i> if the session is leaving or its
+		 * connection failed.
+		 * @throws InterruptedIOException	if the calling thread is interrupted.
+		 */
+		private boolean bounce(byte[] frame) throws InterruptedIOException
+		{
+			if (closing)
+				return false;
+			return put(frame);
+		}
+		
+		/**
+		 * Queues the acknowledgement of the session's request to end the connection, which is the last
+		 * cell sent to it.
+		 *
+		 * @param frame	the acknowledgement's frame.
+		 * @throws InterruptedIOException	if the calling thread is interrupted.
+		 */
+		private void finish(byte[] frame) throws InterruptedIOException
+		{
+			synchronized (this)
+			{
+				closing = true;
+			}
+			put(frame);
+		}
+		
+		/**
+		 * Waits for room in the queue and queues a cell, outside the monitor, so that cells sent by other
+		 * sessions are sent back to them in the meantime instead of waiting as well.
+		 *
+		 * @param frame	the cell's frame.
+		 * @return		<i>true</i> if it was queued, and <i>false</i> if the connection failed.
+		 * @throws InterruptedIOException	if the calling thread is interrupted.
+		 */
+		private boolean put(byte[] frame) throws InterruptedIOException
+		{
+			try
+			{
+				while (!queue.offer(frame, 100, TimeUnit.MILLISECONDS))
+					if (failed)
+						return false;
+				return true;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for room in the queue.");
+			}
+		}
+		
+		/**
+		 * Sends the queued cells in batches until the end of the connection is acknowledged or the
+		 * connection fails.
+		 */
+		public void run()
+		{
+			List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+			try
+			{
+				boolean last = false;
+				while (!last)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch, MAX_BATCH - 1);
+					transport.send(batch);
+					writes.incrementAndGet();
+					last = batch.get(batch.size() - 1)[TorCommDataTranslator.END_CONNECTION_OFFSET] > 0;
+					batch.clear();
+				}
+			} catch (InterruptedException | IOException e) {
+				failed = true;
+				synchronized (this)
+				{
+					closing = true;
+				}
+				try
+				{
+					transport.close();
+				} catch (IOException f) {}
+			}
+		}
+	}
+	
+	/**
+	 * Performs the handshake with a session and routes the cells it sends in the calling thread, until
+	 * it closes the connection. The transport is closed on return.
+	 *
+	 * @param transport		the session's transport.
+	 * @throws IOException	if an I/O or connection error occurs, a frame is too short for a cell, or
+	 * another session with the same ID is already connected.
+	 */
+	public void serve(TorCommTransport transport) throws IOException
+	{
+		Route route = null;
+		try
+		{
+			if (closed)
+				throw new IOException("Switchboard closed.");
+			TorCommSession handshake = new TorCommSession(transport);
+			handshake.setSessionID(sessionID);
+			handshake.setOfferedCapabilities(offered);
+			handshake.serverHandshake();
+			short id = handshake.getDestID();
+			route = new Route(id, transport);
+			if (routes.putIfAbsent(id, route) != null)
+			{
+				route = null;
+				throw new IOException("Session " + id + " is already connected.");
+			}
+			route.writer.start();
+			while (true)
+			{
+				byte[] frame = transport.receive();
+				if (frame.length < TorCommDataTranslator.CELL_FIELDS_SIZE)
+					throw new IOException("Frame too short for a cell.");
+				if (frame[TorCommDataTranslator.END_CONNECTION_OFFSET] > 0)
+				{
+					// Cells addressed to the session from now on are sent back to their senders
+					routes.remove(id, route);
+					ByteBuffer.wrap(frame).putShort(sessionID).putShort(id);
+					route.finish(frame);
+					continue;
+				}
+				Route destination = routes.get(ByteBuffer.wrap(frame).getShort(2));
+				if (destination != null && destination.offer(frame))
+					forwarded.incrementAndGet();
+				else
+				{
+					if (destination != null && !destination.closing)
+						overflowed.incrementAndGet();
+					if (route.bounce(frame))
+						bounced.incrementAndGet();
+				}
+			}
+		} catch (EOFException e) {
+			// The session closed the connection
+		} finally {
+			if (route != null)
+			{
+				routes.remove(route.id, route);
+				route.writer.interrupt();
+			}
+			transport.close();
+		}
+	}
+	
+	/**
+	 * Retrieves the session ID sent to sessions in the handshake.
+	 *
+	 * @return	the switchboard's session ID.
+	 */
+	public short getSessionID()
+	{
+		return sessionID;
+	}
+	
+	/**
+	 * Retrieves the number of sessions that can currently be reached.
+	 *
+	 * @return	the number of routes.
+	 */
+	public int getRouteCount()
+	{
+		return routes.size();
+	}
+	
+	/**
+	 * Retrieves the number of cells forwarded to the session they were addressed to.
+	 *
+	 * @return	the number of cells forwarded.
+	 */
+	public long getForwardedCount()
+	{
+		return forwarded.get();
+	}
+	
+	/**
+	 * Retrieves the number of cells sent back to their senders, as their receivers were not connected.
+	 *
+	 * @return	the number of cells sent back.
+	 */
+	public long getBouncedCount()
+	{
+		return bounced.get();
+	}
+	
+	/**
+	 * Retrieves the number of cells sent back to their senders as the queues of their receivers were
+	 * full, which are also counted as sent back.
+	 *
+	 * @return	the number of cells.
+	 */
+	public long getOverflowCount()
+	{
+		return overflowed.get();
+	}
+	
+	/**
+	 * Retrieves the number of writes through which cells were sent, which is smaller than the number of
+	 * cells sent when cells are batched.
+	 *
+	 * @return	the number of writes.
+	 */
+	public long getWriteCount()
+	{
+		return writes.get();
+	}
+	
+	/**
+	 * Closes the connection of every session, which ends the threads serving them.
+	 *
+	 * @throws IOException	if an I/O error occurs when closing down a connection.
+	 */
+	public void close() throws IOException
+	{
+		closed = true;
+		for (Route route : routes.values())
+			route.transport.close();
+	}
+}
\ No newline at end of file
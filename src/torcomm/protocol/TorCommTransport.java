@@ -0,0 +1,405 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The means by which a {@link torcomm.protocol.TorCommSession TorCommSession} exchanges frames with the
+ * other host, where a frame is made of its length, as a 4 byte integer, followed by its data. Every
+ * transport offers the same blocking interface to the session, whatever the way it uses the network,
+ * so that the latency and CPU usage of each way can be compared on the same workload.
+ *
+ * <p> A transport may be used by two threads at a time, one of them sending frames and the other
+ * receiving them, and {@link #close() close()} may be called by any thread to stop the ones that are
+ * using it.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public interface TorCommTransport extends Closeable
+{
+	/**
+	 * The largest length of a frame's data, in bytes, that a transport receives. Longer or negative
+	 * lengths come from a faulty or hostile host and fail the transport before anything is allocated.
+	 */
+	int MAX_FRAME_SIZE = 1 << 24;
+	
+	/**
+	 * Sends a frame made of the given data.
+	 *
+	 * @param data			the array holding the data.
+	 * @param offset		the offset of the data in the array.
+	 * @param length		the length of the data.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	void send(byte[] data, int offset, int length) throws IOException;
+	
+	/**
+	 * Sends a frame made of each of the given arrays, in order, through as few writes as the transport
+	 * is able to, so that a batch of frames costs about as much as a single one. By default, the frames
+	 * are sent one after another.
+	 *
+	 * @param frames		the arrays holding the data of each frame.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	default void send(List<byte[]> frames) throws IOException
+	{
+		for (byte[] data : frames)
+			send(data, 0, data.length);
+	}
+	
+	/**
+	 * Receives the data of the next frame.
+	 *
+	 * @return				the data.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	byte[] receive() throws IOException;
+	
+	/**
+	 * Receives the data of the next frame into the given heap buffer, from its position on, so that no
+	 * array has to be allocated for it. If the data does not fit, a larger heap buffer holding the
+	 * contents of the given one is allocated in its place.
+	 *
+	 * @param buffer		the buffer.
+	 * @return				the buffer holding the data, positioned right after it.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 * @throws EOFException	if the other host closed the connection.
+	 */
+	ByteBuffer receive(ByteBuffer buffer) throws IOException;
+	
+	/**
+	 * Estimates the number of bytes that can be received without waiting, as already received from the
+	 * other host, so that a sender may hold its frames while more are to be answered, as {@link
+	 * torcomm.protocol.WriteBatcher WriteBatcher} does. It must be called by the thread receiving the
+	 * frames. A transport that only knows whether any byte is there may return 1. By default, 0 is
+	 * returned, which means that the transport cannot tell.
+	 *
+	 * @return				the number of bytes, or 0 if there are none or the transport cannot tell.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	default int available() throws IOException
+	{
+		return 0;
+	}
+	
+	/**
+	 * Tells whether the transport is open, that is, whether it was neither closed nor found closed by
+	 * the other host.
+	 *
+	 * @return	<i>true</i> if it is open, and <i>false</i> otherwise.
+	 */
+	boolean isOpen();
+	
+	/**
+	 * Retrieves the address of the other host.
+	 *
+	 * @return	the address, or <i>null</i> if it is unknown.
+	 */
+	InetAddress getRemoteAddress();
+	
+	/**
+	 * Describes the costs of the transport itself that the cells' round trip times do not show apart,
+	 * such as those of encryption, to be written to the session's log.
+	 *
+	 * @return	the description, or <i>null</i> if there is nothing to describe, which is the default.
+	 */
+	default String getSummary()
+	{
+		return null;
+	}
+	
+	/**
+	 * Checks the length of a frame received from the other host.
+	 *
+	 * @param length		the length of the frame's data.
+	 * @return				the length.
+	 * @throws IOException	if the length is negative or larger than {@link #MAX_FRAME_SIZE
+	 * MAX_FRAME_SIZE}.
+	 */
+	static int checkLength(int length) throws IOException
+	{
+		if (length < 0 || length > MAX_FRAME_SIZE)
+			throw new IOException("Invalid frame length " + length);
+		return length;
+	}
+	
+	/**
+	 * Makes room for a frame of the given length in a buffer, as required by {@link
+	 * #receive(ByteBuffer buffer) receive(ByteBuffer buffer)}.
+	 *
+	 * @param buffer	the buffer.
+	 * @param length	the length of the frame's data.
+	 * @return			the buffer, or a larger one holding its contents.
+	 */
+	static ByteBuffer ensureRemaining(ByteBuffer buffer, int length)
+	{
+		if (buffer.remaining() >= length)
+			return buffer;
+		ByteBuffer larger = ByteBuffer.allocate(buffer.position() + length);
+		buffer.flip();
+		return larger.put(buffer);
+	}
+	
+	/**
+	 * A server socket that accepts connections as transports.
+	 */
+	interface Listener extends Closeable
+	{
+		/**
+		 * Waits for the next connection.
+		 *
+		 * @return				the connection's transport.
+		 * @throws IOException	if an I/O error occurs, or the listener was closed.
+		 */
+		TorCommTransport accept() throws IOException;
+		
+		/**
+		 * Retrieves the port at which connections are accepted.
+		 *
+		 * @return	the port.
+		 */
+		int getPort();
+	}
+	
+	/**
+	 * The kinds of transports, each of which is able to connect to a server and to listen for clients.
+	 */
+	enum Type
+	{
+		/** Classic blocking sockets, as in {@link torcomm.protocol.BlockingTransport BlockingTransport}. */
+		BLOCKING
+		{
+			public TorCommTransport connect(InetSocketAddress address, Proxy proxy) throws IOException
+			{
+				return new BlockingTransport(connectSocket(address, proxy));
+			}
+			
+			public Listener listen(int port) throws IOException
+			{
+				final ServerSocket server = new ServerSocket(port);
+				return new Listener()
+				{
+					public TorCommTransport accept() throws IOException
+					{
+						return new BlockingTransport(server.accept());
+					}
+					
+					public int getPort()
+					{
+						return server.getLocalPort();
+					}
+					
+					public void close() throws IOException
+					{
+						server.close();
+					}
+				};
+			}
+		},
+		
+		/**
+		 * Classic blocking sockets encrypted with TLS, as in {@link torcomm.protocol.TlsTransport
+		 * TlsTransport}, which can also connect through a proxy.
+		 */
+		TLS
+		{
+			public TorCommTransport connect(InetSocketAddress address, Proxy proxy) throws IOException
+			{
+				return new TlsTransport(BLOCKING.connectSocket(address, proxy), true);
+			}
+			
+			public Listener listen(int port) throws IOException
+			{
+				final ServerSocket server = new ServerSocket(port);
+				return new Listener()
+				{
+					public TorCommTransport accept() throws IOException
+					{
+						return new TlsTransport(server.accept(), false);
+					}
+					
+					public int getPort()
+					{
+						return server.getLocalPort();
+					}
+					
+					public void close() throws IOException
+					{
+						server.close();
+					}
+				};
+			}
+		},
+		
+		/** Non-blocking socket channels, as in {@link torcomm.protocol.ChannelTransport ChannelTransport}. */
+		NIO
+		{
+			public TorCommTransport connect(InetSocketAddress address, Proxy proxy) throws IOException
+			{
+				if (proxy != null)
+					throw new IOException("The NIO transport cannot connect through a proxy.");
+				return new ChannelTransport(SocketChannel.open(address));
+			}
+			
+			public Listener listen(int port) throws IOException
+			{
+				final ServerSocketChannel server = ServerSocketChannel.open();
+				server.bind(new InetSocketAddress(port));
+				return new Listener()
+				{
+					public TorCommTransport accept() throws IOException
+					{
+						return new ChannelTransport(server.accept());
+					}
+					
+					public int getPort()
+					{
+						return server.socket().getLocalPort();
+					}
+					
+					public void close() throws IOException
+					{
+						server.close();
+					}
+				};
+			}
+		},
+		
+		/**
+		 * Asynchronous socket channels with completion handlers, as in {@link
+		 * torcomm.protocol.AsyncChannelTransport AsyncChannelTransport}.
+		 */
+		ASYNC
+		{
+			public TorCommTransport connect(InetSocketAddress address, Proxy proxy) throws IOException
+			{
+				if (proxy != null)
+					throw new IOException("The ASYNC transport cannot connect through a proxy.");
+				AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+				try
+				{
+					channel.connect(address).get();
+				} catch (InterruptedException | ExecutionException e) {
+					channel.close();
+					throw new IOException("Error when attempting to connect to " + address, e);
+				}
+				return new AsyncChannelTransport(channel);
+			}
+			
+			public Listener listen(int port) throws IOException
+			{
+				final AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open();
+				server.bind(new InetSocketAddress(port));
+				return new Listener()
+				{
+					public TorCommTransport accept() throws IOException
+					{
+						try
+						{
+							return new AsyncChannelTransport(server.accept().get());
+						} catch (InterruptedException | ExecutionException e) {
+							throw new IOException("Error when accepting a connection.", e);
+						}
+					}
+					
+					public int getPort()
+					{
+						try
+						{
+							return ((InetSocketAddress)server.getLocalAddress()).getPort();
+						} catch (IOException e) {
+							return -1;
+						}
+					}
+					
+					public void close() throws IOException
+					{
+						server.close();
+					}
+				};
+			}
+		},
+		
+		/**
+		 * Memory-mapped ring buffers between processes of the same host, as in {@link
+		 * torcomm.protocol.SharedMemoryTransport SharedMemoryTransport}, which leave out the network.
+		 */
+		SHM
+		{
+			public TorCommTransport connect(InetSocketAddress address, Proxy proxy) throws IOException
+			{
+				if (proxy != null)
+					throw new IOException("The SHM transport cannot connect through a proxy.");
+				return SharedMemoryTransport.connect(address.getPort());
+			}
+			
+			public Listener listen(int port) throws IOException
+			{
+				return SharedMemoryTransport.listen(port);
+			}
+		};
+		
+		/**
+		 * Connects a classic blocking socket to a server.
+		 *
+		 * @param address		the server's address.
+		 * @param proxy			the proxy through which to connect, or <i>null</i> to connect directly.
+		 * @return				the socket.
+		 * @throws IOException	if the connection could not be established.
+		 */
+		Socket connectSocket(InetSocketAddress address, Proxy proxy) throws IOException
+		{
+			Socket socket = proxy == null ? new Socket() : new Socket(proxy);
+			try
+			{
+				socket.connect(address);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+		
+		/**
+		 * Connects to a server.
+		 *
+		 * @param address		the server's address.
+		 * @param proxy			the proxy through which to connect, or <i>null</i> to connect directly.
+		 * Only blocking and TLS transports support proxies.
+		 * @return				the connection's transport.
+		 * @throws IOException	if the connection could not be established.
+		 */
+		public abstract TorCommTransport connect(InetSocketAddress address, Proxy proxy)
+			throws IOException;
+		
+		/**
+		 * Starts listening for connections at the given port.
+		 *
+		 * @param port			the port, or 0 for any free port.
+		 * @return				the listener.
+		 * @throws IOException	if the port could not be bound.
+		 */
+		public abstract Listener listen(int port) throws IOException;
+		
+		/**
+		 * Retrieves the type with the given name, regardless of case.
+		 *
+		 * @param name						the name, such as <i>blocking</i>, <i>tls</i>, <i>nio</i>,
+		 * <i>async</i> or <i>shm</i>.
+		 * @return							the type.
+		 * @throws IllegalArgumentException	if there is no type with the given name.
+		 */
+		public static Type parse(String name)
+		{
+			for (Type type : values())
+				if (type.name().equalsIgnoreCase(name))
+					return type;
+			throw new IllegalArgumentException("Unknown transport " + name + ".");
+		}
+	}
+}
\ No newline at end of file
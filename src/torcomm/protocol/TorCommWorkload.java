@@ -0,0 +1,379 @@
+package torcomm.protocol;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A scripted workload that a client {@link torcomm.protocol.TorCommSession TorCommSession} replays
+ * instead of exchanging one cell after another for a fixed duration. A workload is made of phases, each
+ * one repeating a burst of cells followed by a think time, and every random choice is taken from a
+ * generator seeded by the workload so that two replays of the same workload exchange exactly the same
+ * cells at the same moments.
+ *
+ * <p> Workloads are described by text files with one statement per line, where <i>#</i> starts a
+ * comment:
+ * <pre>
+ * seed 42
+ * sessions 2
+ * phase browse repeat=20 burst=uniform:1:8 think=pareto:200:1.5 payload=const:22
+ * phase download repeat=1 burst=const:500 think=const:0 payload=const:512
+ * </pre>
+ * The burst distribution gives the number of cells of each burst, the think distribution gives the
+ * milliseconds waited after each burst and the payload distribution gives the size in bytes of each
+ * frame sent. Frames are never smaller than a {@link torcomm.protocol.TorCommCell TorCommCell} and are
+ * padded with zeros to reach larger sizes, which the receiving side ignores. The supported distributions
+ * are <i>const:value</i>, <i>uniform:min:max</i>, <i>exp:mean</i> and <i>pareto:scale:shape</i>.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class TorCommWorkload
+{
+	private long seed;
+	private int sessions;
+	private List<Phase> phases;
+	
+	/**
+	 * Creates an empty workload of a single session with the given seed.
+	 *
+	 * @param seed	the seed of the random generators.
+	 */
+	public TorCommWorkload(long seed)
+	{
+		this.seed = seed;
+		this.sessions = 1;
+		this.phases = new ArrayList<Phase>();
+	}
+	
+	/**
+	 * Reads a workload from a file in the format described in this class' documentation.
+	 *
+	 * @param file			the workload file.
+	 * @return				the workload.
+	 * @throws IOException	if the file could not be read or holds an invalid statement.
+	 */
+	public static TorCommWorkload load(File file) throws IOException
+	{
+		TorCommWorkload workload = new TorCommWorkload(0);
+		try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+		{
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				number++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+					line = line.substring(0, comment);
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				try
+				{
+					workload.parseStatement(line.split("\\s+"));
+				} catch (RuntimeException e) {
+					throw new IOException("Invalid statement at line " + number + " of " + file + ": " +
+						e.getMessage(), e);
+				}
+			}
+		}
+		if (workload.phases.isEmpty())
+			throw new IOException("Workload " + file + " has no phases.");
+		return workload;
+	}
+	
+	/**
+	 * Adds a phase at the end of this workload.
+	 *
+	 * @param phase	the phase.
+	 */
+	public void addPhase(Phase phase)
+	{
+		phases.add(phase);
+	}
+	
+	/**
+	 * Sets the number of sessions the client shall run with this workload.
+	 *
+	 * @param sessions	the number of sessions.
+	 */
+	public void setSessions(int sessions)
+	{
+		if (sessions <= 0)
+			throw new IndexOutOfBoundsException("Session count must be positive.");
+		this.sessions = sessions;
+	}
+	
+	/**
+	 * Retrieves the number of sessions the client shall run with this workload.
+	 *
+	 * @return	the number of sessions.
+	 */
+	public int getSessions()
+	{
+		return sessions;
+	}
+	
+	/**
+	 * Retrieves the seed of this workload.
+	 *
+	 * @return	the seed.
+	 */
+	public long getSeed()
+	{
+		return seed;
+	}
+	
+	/**
+	 * Retrieves the phases of this workload in the order they are replayed.
+	 *
+	 * @return	the phases.
+	 */
+	public List<Phase> getPhases()
+	{
+		return Collections.unmodifiableList(phases);
+	}
+	
+	/**
+	 * Creates the random generator of one of the sessions of this workload. Each session has its own
+	 * generator so that sessions do not depend on each other.
+	 *
+	 * @param session	the session's index, starting at 0.
+	 * @return			the seeded generator.
+	 */
+	public Random newRandom(int session)
+	{
+		return new Random(seed + session * 0x9E3779B97F4A7C15L);
+	}
+	
+	/**
+	 * Applies a single statement of a workload file.
+	 *
+	 * @param tokens	the statement's tokens.
+	 */
+	private void parseStatement(String[] tokens)
+	{
+		switch (tokens[0])
+		{
+			case "seed":
+				seed = Long.parseLong(tokens[1]);
+				break;
+			case "sessions":
+				setSessions(Integer.parseInt(tokens[1]));
+				break;
+			case "phase":
+				Phase phase = new Phase(tokens[1]);
+				for (int i = 2; i < tokens.length; i++)
+				{
+					int equals = tokens[i].indexOf('=');
+					if (equals < 0)
+						throw new IllegalArgumentException("Expected key=value, found " + tokens[i]);
+					String key = tokens[i].substring(0, equals);
+					String value = tokens[i].substring(equals + 1);
+					switch (key)
+					{
+						case "repeat": phase.repeat = Integer.parseInt(value); break;
+						case "burst": phase.burst = Distribution.parse(value); break;
+						case "think": phase.think = Distribution.parse(value); break;
+						case "payload": phase.payload = Distribution.parse(value); break;
+						default: throw new IllegalArgumentException("Unknown phase property " + key);
+					}
+				}
+				addPhase(phase);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown statement " + tokens[0]);
+		}
+	}
+	
+	/**
+	 * A phase of a workload. By default, a phase sends a single burst of one cell without think time.
+	 */
+	public static class Phase
+	{
+		private String name;
+		private int repeat;
+		private Distribution burst;
+		private Distribution think;
+		private Distribution payload;
+		
+		/**
+		 * Creates a phase with the default properties.
+		 *
+		 * @param name	the phase's name.
+		 */
+		public Phase(String name)
+		{
+			this.name = name;
+			this.repeat = 1;
+			this.burst = Distribution.constant(1);
+			this.think = Distribution.constant(0);
+			this.payload = Distribution.constant(0);
+		}
+		
+		/**
+		 * Creates a phase with the given properties, as a phase statement of a workload file would.
+		 *
+		 * @param name		the phase's name.
+		 * @param repeat	the number of bursts.
+		 * @param burst		the distribution of the number of cells of each burst.
+		 * @param think		the distribution of the think time after each burst, in milliseconds.
+		 * @param payload	the distribution of the size of each frame, in bytes.
+		 */
+		public Phase(String name, int repeat, Distribution burst, Distribution think,
+			Distribution payload)
+		{
+			this.name = name;
+			this.repeat = repeat;
+			this.burst = burst;
+			this.think = think;
+			this.payload = payload;
+		}
+		
+		/**
+		 * Retrieves the phase's name.
+		 *
+		 * @return	the name.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+		
+		/**
+		 * Retrieves the number of bursts of this phase.
+		 *
+		 * @return	the number of bursts.
+		 */
+		public int getRepeat()
+		{
+			return repeat;
+		}
+		
+		/**
+		 * Draws the number of cells of the next burst.
+		 *
+		 * @param random	the session's generator.
+		 * @return			the number of cells, at least one.
+		 */
+		public int nextBurst(Random random)
+		{
+			return (int)Math.max(1, Math.round(burst.sample(random)));
+		}
+		
+		/**
+		 * Draws the think time that follows the next burst.
+		 *
+		 * @param random	the session's generator.
+		 * @return			the think time, in nanoseconds.
+		 */
+		public long nextThinkNanos(Random random)
+		{
+			return (long)Math.max(0, think.sample(random) * 1000000);
+		}
+		
+		/**
+		 * Draws the size of the next frame.
+		 *
+		 * @param random	the session's generator.
+		 * @return			the frame size, in bytes.
+		 */
+		public int nextPayloadSize(Random random)
+		{
+			return (int)Math.max(0, Math.round(payload.sample(random)));
+		}
+	}
+	
+	/**
+	 * A probability distribution from which the properties of a phase are drawn.
+	 */
+	public static class Distribution
+	{
+		private String kind;
+		private double a;
+		private double b;
+		
+		/**
+		 * Sets up the fields of this object.
+		 *
+		 * @param kind	the distribution's name.
+		 * @param a		the first parameter.
+		 * @param b		the second parameter.
+		 */
+		private Distribution(String kind, double a, double b)
+		{
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+		}
+		
+		/**
+		 * Creates a distribution that always gives the same value.
+		 *
+		 * @param value	the value.
+		 * @return		the distribution.
+		 */
+		public static Distribution constant(double value)
+		{
+			return new Distribution("const", value, 0);
+		}
+		
+		/**
+		 * Reads a distribution in the format described in the {@link torcomm.protocol.TorCommWorkload
+		 * TorCommWorkload} documentation.
+		 *
+		 * @param spec	the distribution's description.
+		 * @return		the distribution.
+		 */
+		public static Distribution parse(String spec)
+		{
+			String[] parts = spec.split(":");
+			switch (parts[0])
+			{
+				case "const":
+					return new Distribution(parts[0], Double.parseDouble(parts[1]), 0);
+				case "exp":
+					return new Distribution(parts[0], Double.parseDouble(parts[1]), 0);
+				case "uniform":
+				case "pareto":
+					return new Distribution(parts[0], Double.parseDouble(parts[1]),
+						Double.parseDouble(parts[2]));
+				default:
+					throw new IllegalArgumentException("Unknown distribution " + parts[0]);
+			}
+		}
+		
+		/**
+		 * Draws a value from this distribution.
+		 *
+		 * @param random	the generator.
+		 * @return			the value.
+		 */
+		public double sample(Random random)
+		{
+			switch (kind)
+			{
+				case "uniform":
+					return a + random.nextDouble() * (b - a);
+				case "exp":
+					return -a * Math.log(1 - random.nextDouble());
+				case "pareto":
+					return a / Math.pow(1 - random.nextDouble(), 1 / b);
+				default:
+					return a;
+			}
+		}
+		
+		/**
+		 * Describes this distribution in the same format it is parsed.
+		 *
+		 * @return	the description.
+		 */
+		@Override
+		public String toString()
+		{
+			if (kind.equals("uniform") || kind.equals("pareto"))
+				return kind + ":" + a + ":" + b;
+			return kind + ":" + a;
+		}
+	}
+}
\ No newline at end of file
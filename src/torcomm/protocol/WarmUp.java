@@ -0,0 +1,161 @@
+package torcomm.protocol;
+
+/**
+ * Decides which of the first cells of a {@link torcomm.protocol.TorCommSession TorCommSession} are
+ * exchanged without being recorded, so that the time the JVM takes to load and compile the code that
+ * creates and translates cells, and the time a Tor circuit takes to leave its slow start, do not skew
+ * the statistics. The warm-up lasts at least the given time and number of cells and, when steady-state
+ * detection is enabled, until the round trip times of the last cells stabilize, which is when their
+ * coefficient of variation, that is, their standard deviation divided by their mean, falls to the
+ * given threshold. As round trip times may never stabilize, the warm-up also ends once its longest
+ * time is over.
+ *
+ * <p> A warm-up holds the state of a single session. A session copies the warm-up it is given, so the
+ * same warm-up can be given to many sessions.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class WarmUp
+{
+	private long millis;
+	private long cells;
+	private int window;
+	private double threshold;
+	private long maxMillis;
+	
+	// Session state fields
+	private long start;
+	private long warmed;
+	private boolean over;
+	private String boundary;
+	
+	// Steady-state detection fields, over the last cells of the window
+	private long[] roundTrips;
+	private double sum;
+	private double sumOfSquares;
+	
+	/**
+	 * Creates a warm-up of a fixed time and number of cells, without steady-state detection.
+	 *
+	 * @param millis	the shortest time of the warm-up, in milliseconds.
+	 * @param cells		the smallest number of cells of the warm-up.
+	 */
+	public WarmUp(long millis, long cells)
+	{
+		this(millis, cells, 0, 0, 0);
+	}
+	
+	/**
+	 * Creates a warm-up.
+	 *
+	 * @param millis	the shortest time of the warm-up, in milliseconds.
+	 * @param cells		the smallest number of cells of the warm-up.
+	 * @param window	the number of cells whose round trip times must be steady. 1 or less disables
+	 * steady-state detection.
+	 * @param threshold	the largest coefficient of variation of steady round trip times.
+	 * @param maxMillis	the longest time of the warm-up, in milliseconds, after which it ends even if
+	 * no steady state was detected. 0 or less sets no limit.
+	 */
+	public WarmUp(long millis, long cells, int window, double threshold, long maxMillis)
+	{
+		this.millis = Math.max(0, millis);
+		this.cells = Math.max(0, cells);
+		this.window = window > 1 ? window : 0;
+		this.threshold = threshold;
+		this.maxMillis = maxMillis;
+		if (this.window > 0)
+			this.roundTrips = new long[this.window];
+	}
+	
+	/**
+	 * Creates a warm-up with the same settings as the given one, but a state of its own.
+	 *
+	 * @param settings	the warm-up whose settings are copied.
+	 */
+	public WarmUp(WarmUp settings)
+	{
+		this(settings.millis, settings.cells, settings.window, settings.threshold, settings.maxMillis);
+	}
+	
+	/**
+	 * Decides whether a cell whose reply was just received belongs to the warm-up, in which case it is
+	 * not recorded. The warm-up begins with the first cell.
+	 *
+	 * @param nowMillis			the current time, in milliseconds.
+	 * @param roundTripMicros	the cell's round trip time, in microseconds.
+	 * @return					<i>true</i> if the cell belongs to the warm-up, and <i>false</i> once it
+	 * is over.
+	 */
+	public boolean warming(long nowMillis, long roundTripMicros)
+	{
+		if (over)
+			return false;
+		if (warmed++ == 0)
+			start = nowMillis;
+		long elapsed = nowMillis - start;
+		double mean = 0;
+		double deviation = 0;
+		if (window > 0)
+		{
+			int slot = (int)((warmed - 1) % window);
+			if (warmed > window)
+			{
+				sum -= roundTrips[slot];
+				sumOfSquares -= (double)roundTrips[slot] * roundTrips[slot];
+			}
+			roundTrips[slot] = roundTripMicros;
+			sum += roundTripMicros;
+			sumOfSquares += (double)roundTripMicros * roundTripMicros;
+			int count = (int)Math.min(warmed, window);
+			mean = sum / count;
+			deviation = Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+		}
+		if (elapsed < millis || warmed < cells)
+			return true;
+		double variation = mean == 0 ? 0 : deviation / mean;
+		String ending = "Warm-up over after " + warmed + " cells and " + elapsed + " ms";
+		if (window == 0)
+			boundary = ending + ".";
+		else if (warmed >= window && variation <= threshold)
+			boundary = ending + ", round trip time steady at " + Math.round(mean) + " us (coefficient " +
+				"of variation " + String.format("%.3f", variation) + ").";
+		else if (maxMillis > 0 && elapsed >= maxMillis)
+			boundary = ending + ", round trip time not steady (coefficient of variation " + String.format(
+				"%.3f", variation) + ").";
+		else
+			return true;
+		over = true;
+		return true;
+	}
+	
+	/**
+	 * Tells whether the warm-up is over, so that the next cells are recorded.
+	 *
+	 * @return	<i>true</i> if it is over, and <i>false</i> otherwise.
+	 */
+	public boolean isOver()
+	{
+		return over;
+	}
+	
+	/**
+	 * Retrieves the number of cells of the warm-up so far.
+	 *
+	 * @return	the number of cells.
+	 */
+	public long getCells()
+	{
+		return warmed;
+	}
+	
+	/**
+	 * Describes the boundary between the warm-up and the recorded cells, as in <i>Warm-up over after
+	 * 1200 cells and 5003 ms, round trip time steady at 410 us (coefficient of variation 0.081).</i>
+	 *
+	 * @return	the description, or <i>null</i> if the warm-up is not over.
+	 */
+	public String getBoundary()
+	{
+		return boundary;
+	}
+}
\ No newline at end of file
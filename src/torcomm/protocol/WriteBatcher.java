@@ -0,0 +1,296 @@
+package torcomm.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces the frames a session sends under load into batches, which are sent through {@link
+ * torcomm.protocol.TorCommTransport#send(List frames) send(List frames)}, so that a session answering
+ * a pipelined client does not take a write, and a packet, per frame. A frame is sent at once when no
+ * frame is waiting and nothing is left to be received from the other host, which is when the session
+ * would otherwise wait, so that lone frames, such as those of a client waiting for every reply, are not
+ * delayed. Otherwise the frame is held, and the frames held are sent together when:
+ * <ul>
+ * 	<li> nothing is left to be received, which is checked again before every frame is received;
+ * 	<li> they add up to the byte budget;
+ * 	<li> the oldest of them was held for the latency budget.
+ * </ul>
+ * Whether anything is left to be received is told by {@link
+ * torcomm.protocol.TorCommTransport#available() available()}, and frames are never held over
+ * transports that cannot tell.
+ *
+ * <p> As telling whether anything is left to be received takes a system call over most transports,
+ * it is only done for one out of a number of frames sent at once, which doubles each time nothing was
+ * left, up to 16, and falls back to 1 as soon as something was, so that a session waiting for every
+ * reply does not pay for it. The first frames of a burst may therefore be sent at once.
+ *
+ * <p> The latency budget is only checked when a frame is sent or received, so a frame may be held
+ * longer if the other host stops sending in the middle of a frame. The arrays holding the frames are
+ * reused, so that no array is allocated once the batches reach their usual size.
+ *
+ * <p> A batcher holds the state of a single session, while the batchers of many sessions may be added
+ * up into one through {@link #add(WriteBatcher other) add(WriteBatcher other)}, which is thread safe.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class WriteBatcher
+{
+	/** The largest number of bytes held, by default. */
+	public static final int DEFAULT_MAX_BYTES = 16384;
+	
+	/** The longest time, in microseconds, a frame is held, by default. */
+	public static final long DEFAULT_MAX_MICROS = 500;
+	
+	private static final int IDLE = 0;
+	private static final int FULL = 1;
+	private static final int LATE = 2;
+	private static final int SPARE_ARRAYS = 64;
+	private static final int MAX_PROBE_INTERVAL = 16;
+	
+	private int maxBytes;
+	private long maxMicros;
+	
+	// Session state fields
+	private final List<byte[]> pending = new ArrayList<byte[]>();
+	private final List<byte[]> spare = new ArrayList<byte[]>();
+	private int pendingBytes;
+	private long heldNanos;
+	private int probeInterval = 1;
+	private int unprobed;
+	
+	// Accounting fields
+	private long frames;
+	private long direct;
+	private long batches;
+	private long largest;
+	private long[] flushes = new long[LATE + 1];
+	
+	/**
+	 * Creates a batcher.
+	 *
+	 * @param maxBytes	the largest number of bytes held, counting the length of every frame, after
+	 * which they are sent. 0 or less holds no frame.
+	 * @param maxMicros	the longest time, in microseconds, a frame is held.
+	 */
+	public WriteBatcher(int maxBytes, long maxMicros)
+	{
+		this.maxBytes = maxBytes;
+		this.maxMicros = Math.max(0, maxMicros);
+	}
+	
+	/**
+	 * Creates a batcher with the same settings as the given one, but a state of its own.
+	 *
+	 * @param settings	the batcher whose settings are copied.
+	 */
+	public WriteBatcher(WriteBatcher settings)
+	{
+		this(settings.maxBytes, settings.maxMicros);
+	}
+	
+	/**
+	 * Sends a frame at once if the transport is idle, or holds it to be sent with the next ones
+	 * otherwise. The frame's data is copied when it is held, so the array may be reused afterwards.
+	 *
+	 * @param transport		the transport.
+	 * @param data			the array holding the data.
+	 * @param offset		the offset of the data in the array.
+	 * @param length		the length of the data.
+	 * @throws IOException	if an I/O or connection error occurs, in which case the frames held are
+	 * discarded.
+	 */
+	public void send(TorCommTransport transport, byte[] data, int offset, int length)
+		throws IOException
+	{
+		frames++;
+		boolean idle = maxBytes <= 0 || pending.isEmpty() && ++unprobed < probeInterval || isIdle(
+			transport);
+		if (pending.isEmpty() && idle)
+		{
+			direct++;
+			transport.send(data, offset, length);
+			return;
+		}
+		byte[] copy = null;
+		for (int i = spare.size() - 1; i >= 0 && copy == null; i--)
+			if (spare.get(i).length == length)
+				copy = spare.remove(i);
+		if (copy == null)
+			copy = new byte[length];
+		System.arraycopy(data, offset, copy, 0, length);
+		if (pending.isEmpty())
+			heldNanos = System.nanoTime();
+		pending.add(copy);
+		pendingBytes += 4 + length;
+		if (idle)
+			flush(transport, IDLE);
+		else if (pendingBytes >= maxBytes)
+			flush(transport, FULL);
+		else if (isLate())
+			flush(transport, LATE);
+	}
+	
+	/**
+	 * Sends the frames held if the session is about to receive a frame and would wait for it, or if the
+	 * oldest of them was held for the latency budget. It must be called before every frame is received.
+	 *
+	 * @param transport		the transport.
+	 * @throws IOException	if an I/O or connection error occurs, in which case the frames held are
+	 * discarded.
+	 */
+	public void receiving(TorCommTransport transport) throws IOException
+	{
+		if (pending.isEmpty())
+			return;
+		if (isIdle(transport))
+			flush(transport, IDLE);
+		else if (isLate())
+			flush(transport, LATE);
+	}
+	
+	/**
+	 * Sends the frames held, if any, such as before the session ends.
+	 *
+	 * @param transport		the transport.
+	 * @throws IOException	if an I/O or connection error occurs, in which case the frames held are
+	 * discarded.
+	 */
+	public void flush(TorCommTransport transport) throws IOException
+	{
+		if (!pending.isEmpty())
+			flush(transport, IDLE);
+	}
+	
+	/**
+	 * Sends the frames held through a single batch, and keeps their arrays to hold the next frames.
+	 *
+	 * @param transport		the transport.
+	 * @param reason		the reason for which they are sent.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private void flush(TorCommTransport transport, int reason) throws IOException
+	{
+		batches++;
+		flushes[reason]++;
+		largest = Math.max(largest, pending.size());
+		try
+		{
+			if (pending.size() == 1)
+				transport.send(pending.get(0), 0, pending.get(0).length);
+			else
+				transport.send(pending);
+		} finally {
+			discard();
+		}
+	}
+	
+	/**
+	 * Tells whether nothing is left to be received, and sets the number of frames sent at once before
+	 * it is told again.
+	 *
+	 * @param transport		the transport.
+	 * @return				<i>true</i> if nothing is left, and <i>false</i> otherwise.
+	 * @throws IOException	if an I/O or connection error occurs.
+	 */
+	private boolean isIdle(TorCommTransport transport) throws IOException
+	{
+		unprobed = 0;
+		boolean idle = transport.available() == 0;
+		probeInterval = idle ? Math.min(2 * probeInterval, MAX_PROBE_INTERVAL) : 1;
+		return idle;
+	}
+	
+	/**
+	 * Tells whether the oldest frame held was held for the latency budget.
+	 *
+	 * @return	<i>true</i> if it was, and <i>false</i> otherwise.
+	 */
+	private boolean isLate()
+	{
+		return System.nanoTime() - heldNanos >= maxMicros * 1000;
+	}
+	
+	/**
+	 * Discards the frames held without sending them, such as when the connection failed.
+	 */
+	public void discard()
+	{
+		for (byte[] data : pending)
+			if (spare.size() < SPARE_ARRAYS)
+				spare.add(data);
+		pending.clear();
+		pendingBytes = 0;
+	}
+	
+	/**
+	 * Tells whether no frame is held.
+	 *
+	 * @return	<i>true</i> if none is, and <i>false</i> otherwise.
+	 */
+	public boolean isEmpty()
+	{
+		return pending.isEmpty();
+	}
+	
+	/**
+	 * Adds the accounting of another batcher, such as that of a session that is over, to this one.
+	 *
+	 * @param other	the batcher whose accounting is added.
+	 */
+	public synchronized void add(WriteBatcher other)
+	{
+		frames += other.frames;
+		direct += other.direct;
+		batches += other.batches;
+		largest = Math.max(largest, other.largest);
+		for (int i = 0; i < flushes.length; i++)
+			flushes[i] += other.flushes[i];
+	}
+	
+	/**
+	 * Retrieves the number of frames sent.
+	 *
+	 * @return	the number of frames.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return frames;
+	}
+	
+	/**
+	 * Retrieves the number of writes through which the frames were sent, whether alone or in batches.
+	 *
+	 * @return	the number of writes.
+	 */
+	public synchronized long getWriteCount()
+	{
+		return direct + batches;
+	}
+	
+	/**
+	 * Retrieves the number of frames sent at once, without being held.
+	 *
+	 * @return	the number of frames.
+	 */
+	public synchronized long getDirectCount()
+	{
+		return direct;
+	}
+	
+	/**
+	 * Describes the accounting, as in <i>54168 frames in 9210 writes (5.9 frames per write), 2104 sent at
+	 * once; 7106 batches of up to 31 frames, sent when idle 6950, full 0, late 156 times.</i>
+	 *
+	 * @return	the description.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		long writes = direct + batches;
+		return frames + " frames in " + writes + " writes (" + String.format("%.1f", writes == 0 ? 0 :
+			(double)frames / writes) + " frames per write), " + direct + " sent at once; " + batches +
+			" batches of up to " + largest + " frames, sent when idle " + flushes[IDLE] + ", full " +
+			flushes[FULL] + ", late " + flushes[LATE] + " times.";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,309 @@
+package torcomm.stats;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The measurements of a benchmark, by scenario and metric, together with the environment they were
+ * taken in, which can be stored in a text file and compared with those of a later run, so that a change
+ * that makes a scenario slower is caught before it is merged. The file holds one <i>key=value</i> line
+ * per entry, sorted so that two versions of it can be compared line by line:
+ * <pre>
+ * # TorComm benchmark baseline
+ * format=1
+ * label=v2.3-14-g1a2b3c4
+ * env.java=17.0.9
+ * env.processors=4
+ * pingpong.cells_per_second=20512.3
+ * pingpong.p99_us=207.0
+ * </pre>
+ * The <i>format</i> entry holds the version of the file format, and files of other versions are not
+ * read. The <i>label</i> entry names the version of the code that was measured, such as a revision.
+ *
+ * <p> Every metric regresses when it grows, except {@link #THROUGHPUT THROUGHPUT}, which regresses when
+ * it falls. A metric regresses beyond its threshold when it differs from the baseline by more than the
+ * threshold, as a fraction of the baseline's value. Metrics without a threshold, and those the baseline
+ * does not hold or holds as 0, are not compared.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class Baseline
+{
+	/** The version of the file format, which is written to every file and checked when one is read. */
+	public static final int FORMAT_VERSION = 1;
+	
+	/** The cells exchanged per second. */
+	public static final String THROUGHPUT = "cells_per_second";
+	
+	/** The median round trip time, in microseconds. */
+	public static final String P50 = "p50_us";
+	
+	/** The 90th percentile of the round trip times, in microseconds. */
+	public static final String P90 = "p90_us";
+	
+	/** The 99th percentile of the round trip times, in microseconds. */
+	public static final String P99 = "p99_us";
+	
+	/** The CPU time taken per cell, in nanoseconds. */
+	public static final String CPU = "cpu_ns_per_cell";
+	
+	/** The bytes allocated per cell. */
+	public static final String ALLOCATION = "bytes_per_cell";
+	
+	/** The megabytes allocated per second. */
+	public static final String ALLOCATION_RATE = "mb_per_second";
+	
+	/** The largest number of live threads. */
+	public static final String THREADS = "peak_threads";
+	
+	/** The metrics of every scenario, in the order they are described. */
+	public static final String[] METRICS = {THROUGHPUT, P50, P90, P99, CPU, ALLOCATION,
+		ALLOCATION_RATE, THREADS};
+	
+	private static final String HEADER = "# TorComm benchmark baseline";
+	private static final String ENVIRONMENT = "env.";
+	
+	private final Map<String, String> environment = new TreeMap<String, String>();
+	private final Map<String, Double> values = new TreeMap<String, Double>();
+	private final Set<String> scenarios = new LinkedHashSet<String>();
+	private String label;
+	
+	/**
+	 * Creates an empty baseline of the current environment, that is, the JVM, the operating system and
+	 * the number of processors.
+	 */
+	public Baseline()
+	{
+		environment.put("java", System.getProperty("java.version"));
+		environment.put("vm", System.getProperty("java.vm.name"));
+		environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+		environment.put("processors", String.valueOf(Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * Sets the label that names the version of the code that was measured.
+	 *
+	 * @param label	the label, such as a revision, or <i>null</i> if there is none.
+	 */
+	public void setLabel(String label)
+	{
+		this.label = label;
+	}
+	
+	/**
+	 * Retrieves the label that names the version of the code that was measured.
+	 *
+	 * @return	the label, or <i>null</i> if there is none.
+	 */
+	public String getLabel()
+	{
+		return label;
+	}
+	
+	/**
+	 * Sets an entry of the environment, such as a setting the measurements depend on.
+	 *
+	 * @param key	the entry's key, which must not hold <i>=</i>.
+	 * @param value	the entry's value.
+	 */
+	public void setEnvironment(String key, String value)
+	{
+		environment.put(key, value);
+	}
+	
+	/**
+	 * Retrieves an entry of the environment.
+	 *
+	 * @param key	the entry's key.
+	 * @return		the entry's value, or <i>null</i> if there is none.
+	 */
+	public String getEnvironment(String key)
+	{
+		return environment.get(key);
+	}
+	
+	/**
+	 * Records a measurement.
+	 *
+	 * @param scenario	the scenario, whose name must not hold <i>.</i> nor <i>=</i>.
+	 * @param metric	the metric, such as {@link #THROUGHPUT THROUGHPUT}.
+	 * @param value		the measurement.
+	 */
+	public void record(String scenario, String metric, double value)
+	{
+		scenarios.add(scenario);
+		values.put(scenario + "." + metric, value);
+	}
+	
+	/**
+	 * Retrieves a measurement.
+	 *
+	 * @param scenario	the scenario.
+	 * @param metric	the metric.
+	 * @return			the measurement, or NaN if there is none.
+	 */
+	public double get(String scenario, String metric)
+	{
+		Double value = values.get(scenario + "." + metric);
+		return value == null ? Double.NaN : value;
+	}
+	
+	/**
+	 * Retrieves the scenarios measured, in the order they were first recorded or read.
+	 *
+	 * @return	the scenarios.
+	 */
+	public Set<String> getScenarios()
+	{
+		return Collections.unmodifiableSet(scenarios);
+	}
+	
+	/**
+	 * Compares these measurements with those of a baseline, scenario by scenario.
+	 *
+	 * @param baseline		the baseline.
+	 * @param thresholds	the largest change of each metric that is not a regression, as a fraction of
+	 * the baseline's value, such as 0.1 for 10%.
+	 * @return				the descriptions of the metrics that regressed beyond their thresholds, as in
+	 * <i>pipelined p99_us: 812.0 against 410.0 (+98.0%, threshold +50.0%)</i>, which is empty if
+	 * none did.
+	 */
+	public List<String> compare(Baseline baseline, Map<String, Double> thresholds)
+	{
+		List<String> regressions = new ArrayList<String>();
+		for (String scenario : scenarios)
+			for (Map.Entry<String, Double> threshold : thresholds.entrySet())
+			{
+				String metric = threshold.getKey();
+				double before = baseline.get(scenario, metric);
+				double after = get(scenario, metric);
+				if (Double.isNaN(before) || Double.isNaN(after) || before == 0)
+					continue;
+				double change = (after - before) / before;
+				double worse = THROUGHPUT.equals(metric) ? -change : change;
+				if (worse > threshold.getValue())
+					regressions.add(scenario + " " + metric + ": " + format(after) + " against " +
+						format(before) + " (" + String.format(Locale.ROOT, "%+.1f", change * 100) +
+						"%, threshold " + (THROUGHPUT.equals(metric) ? "-" : "+") + String.format(
+						Locale.ROOT, "%.1f", threshold.getValue() * 100) + "%)");
+			}
+		return regressions;
+	}
+	
+	/**
+	 * Describes the entries of the environment that differ from those of a baseline, whose
+	 * measurements may then not be comparable.
+	 *
+	 * @param baseline	the baseline.
+	 * @return			the descriptions, as in <i>processors: 4 against 8</i>, which is empty if none
+	 * differ.
+	 */
+	public List<String> compareEnvironment(Baseline baseline)
+	{
+		List<String> differences = new ArrayList<String>();
+		Set<String> keys = new TreeSet<String>(environment.keySet());
+		keys.addAll(baseline.environment.keySet());
+		for (String key : keys)
+			if (!Objects.equals(environment.get(key), baseline.environment.get(key)))
+				differences.add(key + ": " + environment.get(key) + " against " + baseline.environment.
+					get(key));
+		return differences;
+	}
+	
+	/**
+	 * Describes the measurements of a scenario in a single line of text, as in <i>cells_per_second=20512.3
+	 * p50_us=16.0 ...</i>.
+	 *
+	 * @param scenario	the scenario.
+	 * @return			the description.
+	 */
+	public String describe(String scenario)
+	{
+		StringBuilder description = new StringBuilder();
+		for (String metric : METRICS)
+		{
+			double value = get(scenario, metric);
+			if (!Double.isNaN(value))
+				description.append(description.length() == 0 ? "" : " ").append(metric).append('=').
+					append(format(value));
+		}
+		return description.toString();
+	}
+	
+	/**
+	 * Writes the baseline to a file, replacing it if it exists.
+	 *
+	 * @param file			the file.
+	 * @throws IOException	if the file could not be written.
+	 */
+	public void store(File file) throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+			StandardCharsets.UTF_8)))
+		{
+			out.println(HEADER);
+			out.println("format=" + FORMAT_VERSION);
+			if (label != null)
+				out.println("label=" + label);
+			for (Map.Entry<String, String> entry : environment.entrySet())
+				out.println(ENVIRONMENT + entry.getKey() + "=" + entry.getValue());
+			for (Map.Entry<String, Double> entry : values.entrySet())
+				out.println(entry.getKey() + "=" + format(entry.getValue()));
+			if (out.checkError())
+				throw new IOException("Error when writing " + file);
+		}
+	}
+	
+	/**
+	 * Reads a baseline written by {@link #store(File file) store(File file)}.
+	 *
+	 * @param file			the file.
+	 * @return				the baseline.
+	 * @throws IOException	if the file could not be read, is of another format version or holds an
+	 * invalid measurement.
+	 */
+	public static Baseline load(File file) throws IOException
+	{
+		Properties entries = new Properties();
+		try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+		{
+			entries.load(in);
+		}
+		String format = entries.getProperty("format");
+		if (!String.valueOf(FORMAT_VERSION).equals(format))
+			throw new IOException("Baseline " + file + " is of format " + format + ", expected " +
+				FORMAT_VERSION + ".");
+		Baseline baseline = new Baseline();
+		// The environment is that of the file, not the current one
+		baseline.environment.clear();
+		baseline.label = entries.getProperty("label");
+		for (String key : new TreeSet<String>(entries.stringPropertyNames()))
+		{
+			String value = entries.getProperty(key);
+			int dot = key.indexOf('.');
+			if (key.startsWith(ENVIRONMENT))
+				baseline.environment.put(key.substring(ENVIRONMENT.length()), value);
+			else if (dot > 0)
+				try
+				{
+					baseline.record(key.substring(0, dot), key.substring(dot + 1), Double.parseDouble(
+						value));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid measurement " + key + " in " + file + ": " + value, e);
+				}
+		}
+		return baseline;
+	}
+	
+	/**
+	 * Formats a measurement with a single decimal, whatever the default locale.
+	 *
+	 * @param value	the measurement.
+	 * @return		the formatted measurement.
+	 */
+	private static String format(double value)
+	{
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,250 @@
+package torcomm.stats;
+
+import java.util.*;
+
+/**
+ * An in-memory trace of every cell exchanged during a session that stores each property of the cells in
+ * its own primitive array, that is, as a struct of arrays. The arrays are allocated in chunks of {@value
+ * #CHUNK_SIZE} samples so the store grows without copying, and a million samples take about 25 MB in a
+ * few dozen objects instead of millions of {@link torcomm.protocol.TorCommCell TorCommCells}, which keeps
+ * the garbage collector's work small.
+ *
+ * <p> Samples are appended by a single thread. Scans and aggregations shall only be called once the
+ * session is over or from the thread that appends the samples.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class CellTraceStore
+{
+	/** The number of samples held by each chunk. */
+	public static final int CHUNK_SIZE = 1 << 16;
+	/** The flag of a sample whose cell requested the end of the connection. */
+	public static final byte FLAG_END_CONNECTION = 1;
+	
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	private List<int[]> sequences;
+	private List<long[]> sendTimes;
+	private List<long[]> receiveTimes;
+	private List<int[]> payloads;
+	private List<byte[]> flags;
+	private int size;
+	
+	/**
+	 * A callback that receives every sample of a {@link #scan(Visitor visitor) scan}.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * Receives a single sample.
+		 *
+		 * @param sequence		the cell's sequence number.
+		 * @param sendNanos		the time at which the cell was sent, in nanoseconds.
+		 * @param receiveNanos	the time at which the reply was received, in nanoseconds.
+		 * @param payload		the cell's payload.
+		 * @param flags			the sample's flags.
+		 */
+		void visit(int sequence, long sendNanos, long receiveNanos, int payload, byte flags);
+	}
+	
+	/**
+	 * Creates an empty store. No chunk is allocated until the first sample is added.
+	 */
+	public CellTraceStore()
+	{
+		sequences = new ArrayList<int[]>();
+		sendTimes = new ArrayList<long[]>();
+		receiveTimes = new ArrayList<long[]>();
+		payloads = new ArrayList<int[]>();
+		flags = new ArrayList<byte[]>();
+	}
+	
+	/**
+	 * Appends a sample to the store.
+	 *
+	 * @param sequence		the cell's sequence number.
+	 * @param sendNanos		the time at which the cell was sent, in nanoseconds.
+	 * @param receiveNanos	the time at which the reply was received, in nanoseconds.
+	 * @param payload		the cell's payload.
+	 * @param sampleFlags	the sample's flags.
+	 */
+	public void add(int sequence, long sendNanos, long receiveNanos, int payload, byte sampleFlags)
+	{
+		int offset = size & CHUNK_MASK;
+		int chunk = size >>> CHUNK_SHIFT;
+		if (chunk == sequences.size())
+		{
+			sequences.add(new int[CHUNK_SIZE]);
+			sendTimes.add(new long[CHUNK_SIZE]);
+			receiveTimes.add(new long[CHUNK_SIZE]);
+			payloads.add(new int[CHUNK_SIZE]);
+			flags.add(new byte[CHUNK_SIZE]);
+		}
+		sequences.get(chunk)[offset] = sequence;
+		sendTimes.get(chunk)[offset] = sendNanos;
+		receiveTimes.get(chunk)[offset] = receiveNanos;
+		payloads.get(chunk)[offset] = payload;
+		flags.get(chunk)[offset] = sampleFlags;
+		size++;
+	}
+	
+	/**
+	 * Retrieves the number of samples in the store.
+	 *
+	 * @return	the number of samples.
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Retrieves the round trip time of a sample.
+	 *
+	 * @param index	the sample's index, in [0, {@link #size() size()}).
+	 * @return		the round trip time, in nanoseconds.
+	 */
+	public long getRoundTrip(int index)
+	{
+		checkIndex(index);
+		return receiveTimes.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK] -
+			sendTimes.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+	}
+	
+	/**
+	 * Retrieves the sequence number of a sample.
+	 *
+	 * @param index	the sample's index, in [0, {@link #size() size()}).
+	 * @return		the sequence number.
+	 */
+	public int getSequence(int index)
+	{
+		checkIndex(index);
+		return sequences.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+	}
+	
+	/**
+	 * Passes every sample, in the order they were added, to the given visitor.
+	 *
+	 * @param visitor	the visitor.
+	 */
+	public void scan(Visitor visitor)
+	{
+		for (int chunk = 0; chunk * CHUNK_SIZE < size; chunk++)
+		{
+			int[] seq = sequences.get(chunk);
+			long[] send = sendTimes.get(chunk);
+			long[] receive = receiveTimes.get(chunk);
+			int[] payload = payloads.get(chunk);
+			byte[] flag = flags.get(chunk);
+			int length = Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+			for (int i = 0; i < length; i++)
+				visitor.visit(seq[i], send[i], receive[i], payload[i], flag[i]);
+		}
+	}
+	
+	/**
+	 * Computes the distribution of the round trip times of every sample. This loop reads only the two
+	 * time arrays of each chunk.
+	 *
+	 * @param unit	the divisor that converts nanoseconds into the histogram's unit, such as 1000 for
+	 * microseconds.
+	 * @return		the round trip time distribution.
+	 */
+	public LatencyHistogram roundTripHistogram(long unit)
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int chunk = 0; chunk * CHUNK_SIZE < size; chunk++)
+		{
+			long[] send = sendTimes.get(chunk);
+			long[] receive = receiveTimes.get(chunk);
+			int length = Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+			for (int i = 0; i < length; i++)
+				histogram.record((receive[i] - send[i]) / unit);
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Computes the number of sequence numbers missing between the first and the highest samples, so
+	 * that a jump from 4 to 9 counts as 4. A sample recorded after a higher one, such as a reordered
+	 * cell, fills one of the missing numbers, assuming no sequence number is recorded twice.
+	 *
+	 * @return	the number of sequence numbers missing.
+	 */
+	public long countSequenceGaps()
+	{
+		long missing = 0;
+		long highest = 0;
+		for (int chunk = 0; chunk * CHUNK_SIZE < size; chunk++)
+		{
+			int[] seq = sequences.get(chunk);
+			int length = Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+			for (int i = 0; i < length; i++)
+			{
+				if (chunk == 0 && i == 0)
+					highest = seq[i];
+				else if (seq[i] > highest)
+				{
+					missing += seq[i] - highest - 1;
+					highest = seq[i];
+				}
+				else
+					missing--;
+			}
+		}
+		return Math.max(0, missing);
+	}
+	
+	/**
+	 * Retrieves the time between the first send and the last reception.
+	 *
+	 * @return	the elapsed time, in nanoseconds, or 0 if the store is empty.
+	 */
+	public long getElapsed()
+	{
+		if (size == 0)
+			return 0;
+		int last = size - 1;
+		return receiveTimes.get(last >>> CHUNK_SHIFT)[last & CHUNK_MASK] - sendTimes.get(0)[0];
+	}
+	
+	/**
+	 * Retrieves an estimate of the memory used by the chunks.
+	 *
+	 * @return	the memory used, in bytes.
+	 */
+	public long getMemoryUsage()
+	{
+		return (long)sequences.size() * CHUNK_SIZE * (4 + 8 + 8 + 4 + 1);
+	}
+	
+	/**
+	 * Discards every sample, keeping the first chunk allocated.
+	 */
+	public void clear()
+	{
+		size = 0;
+		while (sequences.size() > 1)
+		{
+			int last = sequences.size() - 1;
+			sequences.remove(last);
+			sendTimes.remove(last);
+			receiveTimes.remove(last);
+			payloads.remove(last);
+			flags.remove(last);
+		}
+	}
+	
+	/**
+	 * Checks whether an index refers to a stored sample.
+	 *
+	 * @param index	the index.
+	 */
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Sample " + index + " not in [0, " + size + ").");
+	}
+}
\ No newline at end of file
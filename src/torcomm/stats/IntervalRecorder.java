@@ -0,0 +1,169 @@
+package torcomm.stats;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.*;
+
+/**
+ * Aggregates the cells exchanged by any number of sessions into fixed intervals and writes one line per
+ * interval to a file, so that transient stalls can be seen in a chart without keeping the per-cell logs.
+ * Each line holds the number of cells and bytes exchanged, their rates, the 50th and 99th percentiles
+ * and the maximum of the round trip times, and the number of sessions open at the end of the interval.
+ *
+ * <p> Lines are written by a background thread at every interval. Only the aggregates of the current
+ * interval are kept in memory, so the memory in use does not depend on the length of the run. The
+ * aggregates are swapped for empty ones before the line is written, so sessions recording cells do not
+ * wait for the file. Lines are written as CSV unless the file name ends with <i>.lp</i>, in which case
+ * the InfluxDB line protocol is used.
+ *
+ * <p> This class is thread safe.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class IntervalRecorder implements Closeable
+{
+	private PrintWriter out;
+	private boolean lineProtocol;
+	private long interval;
+	private ScheduledExecutorService flusher;
+	private LatencyHistogram spare;
+	
+	// Current interval fields
+	private LatencyHistogram roundTrip;
+	private long cells;
+	private long bytes;
+	private int activeSessions;
+	private long intervalStart;
+	
+	/**
+	 * Creates a recorder that writes its lines to the given file and starts the background thread.
+	 *
+	 * @param file			the file to which lines are written.
+	 * @param interval		the interval's length, in milliseconds.
+	 * @throws IOException	if the file could not be created.
+	 */
+	public IntervalRecorder(File file, long interval) throws IOException
+	{
+		this.out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		this.lineProtocol = file.getName().endsWith(".lp");
+		this.interval = interval;
+		this.roundTrip = new LatencyHistogram();
+		this.spare = new LatencyHistogram();
+		this.intervalStart = System.currentTimeMillis();
+		if (!lineProtocol)
+		{
+			out.println("time,interval_ms,cells,cells_per_s,bytes,bytes_per_s,rtt_p50_us,rtt_p99_us," +
+				"rtt_max_us,active_sessions");
+			out.flush();
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "IntervalRecorder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				flush();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Records an exchanged cell.
+	 *
+	 * @param frameBytes		the bytes sent and received for this cell.
+	 * @param roundTripMicros	the cell's round trip time, in microseconds, or a negative value if it is
+	 * unknown.
+	 */
+	public synchronized void recordCell(long frameBytes, long roundTripMicros)
+	{
+		cells++;
+		bytes += frameBytes;
+		if (roundTripMicros >= 0)
+			roundTrip.record(roundTripMicros);
+	}
+	
+	/**
+	 * Counts a session that has been opened.
+	 */
+	public synchronized void sessionOpened()
+	{
+		activeSessions++;
+	}
+	
+	/**
+	 * Counts a session that has been closed.
+	 */
+	public synchronized void sessionClosed()
+	{
+		activeSessions--;
+	}
+	
+	/**
+	 * Writes the line of the current interval and starts a new interval.
+	 */
+	public void flush()
+	{
+		// Lines are written one at a time, while the sessions only wait for the swap
+		synchronized (out)
+		{
+			LatencyHistogram full;
+			long now, length, intervalCells, intervalBytes;
+			int active;
+			synchronized (this)
+			{
+				now = System.currentTimeMillis();
+				length = Math.max(1, now - intervalStart);
+				full = roundTrip;
+				roundTrip = spare;
+				intervalCells = cells;
+				intervalBytes = bytes;
+				active = activeSessions;
+				cells = 0;
+				bytes = 0;
+				intervalStart = now;
+			}
+			double cellRate = intervalCells * 1000.0 / length;
+			double byteRate = intervalBytes * 1000.0 / length;
+			if (lineProtocol)
+				out.println("torcomm cells=" + intervalCells + "i,cells_per_s=" + cellRate + ",bytes=" +
+					intervalBytes + "i,bytes_per_s=" + byteRate + ",rtt_p50_us=" + full.
+					getValueAtPercentile(50) + "i,rtt_p99_us=" + full.getValueAtPercentile(99) +
+					"i,rtt_max_us=" + full.getMax() + "i,active_sessions=" + active + "i " + now *
+					1000000);
+			else
+				out.println(now + "," + length + "," + intervalCells + "," + String.format(Locale.ROOT,
+					"%.1f", cellRate) + "," + intervalBytes + "," + String.format(Locale.ROOT, "%.1f",
+					byteRate) + "," + full.getValueAtPercentile(50) + "," + full.getValueAtPercentile(
+					99) + "," + full.getMax() + "," + active);
+			out.flush();
+			full.reset();
+			spare = full;
+		}
+	}
+	
+	/**
+	 * Stops the background thread, writes the last, partial interval and closes the file.
+	 */
+	public void close()
+	{
+		flusher.shutdown();
+		try
+		{
+			flusher.awaitTermination(interval, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (out)
+		{
+			flush();
+			out.close();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,253 @@
+package torcomm.stats;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of non-negative long values, such as latencies in
+ * milliseconds or nanoseconds. Values below 64 are counted exactly, while
+ * greater values are counted in logarithmic buckets split into 32 linear
+ * sub-buckets, which keeps the relative error of every reported value under
+ * about 3%. The memory used by an instance never grows, no matter how many
+ * values are recorded, and two histograms can be merged.
+ *
+ * <p> This class is not thread safe. Each thread should record into its own
+ * instance and merge them afterwards through {@link #add(LatencyHistogram
+ * other) add(LatencyHistogram other)}.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKETS = 32;
+	private static final int BUCKETS = (64 - 5) * SUB_BUCKETS + 2 *
+		SUB_BUCKETS;
+	
+	private final long[] counts;
+	private long count;
+	private long sum;
+	private long min;
+	private long max;
+	
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		counts = new long[BUCKETS];
+		reset();
+	}
+	
+	/**
+	 * Records a value. Negative values are counted as 0.
+	 *
+	 * @param value	the value to be recorded.
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+		counts[indexOf(value)]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+	
+	/**
+	 * Adds all the values recorded by another histogram to this one.
+	 *
+	 * @param other	the histogram whose values shall be added.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		if (other.count == 0)
+			return;
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+	
+	/**
+	 * Discards every recorded value.
+	 */
+	public void reset()
+	{
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+	
+	/**
+	 * Retrieves the number of recorded values.
+	 *
+	 * @return	the number of recorded values.
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * Retrieves the smallest recorded value.
+	 *
+	 * @return	the smallest value, or 0 if nothing was recorded.
+	 */
+	public long getMin()
+	{
+		return count == 0 ? 0 : min;
+	}
+	
+	/**
+	 * Retrieves the greatest recorded value.
+	 *
+	 * @return	the greatest value, or 0 if nothing was recorded.
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+	
+	/**
+	 * Retrieves the arithmetic mean of the recorded values.
+	 *
+	 * @return	the mean, or 0 if nothing was recorded.
+	 */
+	public double getMean()
+	{
+		return count == 0 ? 0 : (double)sum / count;
+	}
+	
+	/**
+	 * Retrieves the value below which the given percentage of the recorded
+	 * values fall. The returned value is the upper bound of the bucket that
+	 * holds the percentile, capped by the greatest recorded value.
+	 *
+	 * @param percentile	the percentile, in [0, 100].
+	 * @return				the value at the given percentile, or 0 if nothing
+	 * was recorded.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		if (count == 0)
+			return 0;
+		long rank = (long)Math.ceil(percentile / 100.0 * count);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.max(Math.min(highestValueAt(i), max), getMin());
+		}
+		return max;
+	}
+	
+	/**
+	 * Writes this histogram to a stream in a compact form, in which only the
+	 * buckets that hold values are written.
+	 *
+	 * @param out			the stream.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		int used = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			if (counts[i] != 0)
+				used++;
+		out.writeLong(count);
+		out.writeLong(sum);
+		out.writeLong(min);
+		out.writeLong(max);
+		out.writeInt(used);
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			if (counts[i] != 0)
+			{
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a histogram written by {@link #writeTo(DataOutput out)
+	 * writeTo(DataOutput out)}.
+	 *
+	 * @param in			the stream.
+	 * @return				the histogram.
+	 * @throws IOException	if an I/O error occurs or the histogram is invalid.
+	 */
+	public static LatencyHistogram readFrom(DataInput in) throws IOException
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.count = in.readLong();
+		histogram.sum = in.readLong();
+		histogram.min = in.readLong();
+		histogram.max = in.readLong();
+		int used = in.readInt();
+		for (int i = 0; i < used; i++)
+		{
+			int index = in.readUnsignedShort();
+			if (index >= BUCKETS)
+				throw new IOException("Invalid histogram bucket " + index);
+			histogram.counts[index] = in.readLong();
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Summarizes this histogram into a single line of text.
+	 *
+	 * @return	the summary.
+	 */
+	@Override
+	public String toString()
+	{
+		return "count=" + count + " min=" + getMin() + " p50=" +
+			getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90) +
+			" p99=" + getValueAtPercentile(99) + " max=" + max + " mean=" +
+			String.format("%.2f", getMean());
+	}
+	
+	/**
+	 * Computes the bucket at which a non-negative value is counted.
+	 *
+	 * @param value	the value.
+	 * @return		the bucket index.
+	 */
+	private static int indexOf(long value)
+	{
+		if (value < 2 * SUB_BUCKETS)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - 5;
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+	
+	/**
+	 * Computes the greatest value that is counted at the given bucket.
+	 *
+	 * @param index	the bucket index.
+	 * @return		the bucket's upper bound.
+	 */
+	private static long highestValueAt(int index)
+	{
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package torcomm.stats;
+
+import java.io.*;
+
+/**
+ * The results of a run of one or many clients, made of counters and latency distributions that can be
+ * sent over a stream and merged, so that the results of clients running on different hosts can be
+ * combined into a single report.
+ *
+ * @author Daniel G. Maia Filho
+ */
+public class RunResult
+{
+	private String name;
+	private long sessions;
+	private long cells;
+	private long failures;
+	private long elapsed;
+	private LatencyHistogram roundTrip;
+	private LatencyHistogram upstream;
+	private LatencyHistogram downstream;
+	private LatencyHistogram recovery;
+	private long cpu;
+	private long allocated;
+	
+	/**
+	 * Creates an empty result.
+	 *
+	 * @param name	the name of whatever produced the result, such as an agent.
+	 */
+	public RunResult(String name)
+	{
+		this.name = name;
+		this.roundTrip = new LatencyHistogram();
+		this.upstream = new LatencyHistogram();
+		this.downstream = new LatencyHistogram();
+		this.recovery = new LatencyHistogram();
+	}
+	
+	/**
+	 * Adds the results of a finished session.
+	 *
+	 * @param cells			the number of cells exchanged.
+	 * @param elapsed		the session's duration, in milliseconds.
+	 * @param roundTrip		the round trip times, in microseconds.
+	 * @param upstream		the one-way delays from the client to the server, in microseconds.
+	 * @param downstream	the one-way delays from the server to the client, in microseconds.
+	 */
+	public void addSession(long cells, long elapsed, LatencyHistogram roundTrip,
+		LatencyHistogram upstream, LatencyHistogram downstream)
+	{
+		this.sessions++;
+		this.cells += cells;
+		this.elapsed = Math.max(this.elapsed, elapsed);
+		this.roundTrip.add(roundTrip);
+		this.upstream.add(upstream);
+		this.downstream.add(downstream);
+	}
+	
+	/**
+	 * Adds the times a session took to be resumed after its connection failed, which are kept apart
+	 * from the round trip times.
+	 *
+	 * @param recovery	the times, in milliseconds.
+	 */
+	public void addRecoveries(LatencyHistogram recovery)
+	{
+		this.recovery.add(recovery);
+	}
+	
+	/**
+	 * Adds the CPU time and the bytes allocated by a session, as accounted for by a {@link
+	 * torcomm.stats.CostMeter CostMeter}.
+	 *
+	 * @param cost	the session's meter.
+	 */
+	public void addCost(CostMeter cost)
+	{
+		this.cpu += cost.getCpuTime();
+		this.allocated += cost.getAllocatedBytes();
+	}
+	
+	/**
+	 * Counts a session that failed.
+	 */
+	public void addFailure()
+	{
+		failures++;
+	}
+	
+	/**
+	 * Adds another result to this one. The elapsed time of the merged result is the longest of both.
+	 *
+	 * @param other	the result to be added.
+	 */
+	public void add(RunResult other)
+	{
+		sessions += other.sessions;
+		cells += other.cells;
+		failures += other.failures;
+		elapsed = Math.max(elapsed, other.elapsed);
+		roundTrip.add(other.roundTrip);
+		upstream.add(other.upstream);
+		downstream.add(other.downstream);
+		recovery.add(other.recovery);
+		cpu += other.cpu;
+		allocated += other.allocated;
+	}
+	
+	/**
+	 * Retrieves the name of this result.
+	 *
+	 * @return	the name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Retrieves the number of cells exchanged.
+	 *
+	 * @return	the number of cells.
+	 */
+	public long getCells()
+	{
+		return cells;
+	}
+	
+	/**
+	 * Retrieves the number of sessions that failed.
+	 *
+	 * @return	the number of failures.
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+	
+	/**
+	 * Retrieves the round trip time distribution.
+	 *
+	 * @return	the round trip times, in microseconds.
+	 */
+	public LatencyHistogram getRoundTrip()
+	{
+		return roundTrip;
+	}
+	
+	/**
+	 * Retrieves the CPU time taken by the sessions whose costs were accounted for.
+	 *
+	 * @return	the CPU time, in nanoseconds.
+	 */
+	public long getCpuTime()
+	{
+		return cpu;
+	}
+	
+	/**
+	 * Retrieves the bytes allocated by the sessions whose costs were accounted for.
+	 *
+	 * @return	the number of bytes.
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocated;
+	}
+	
+	/**
+	 * Retrieves the distribution of the times sessions took to be resumed.
+	 *
+	 * @return	the times, in milliseconds.
+	 */
+	public LatencyHistogram getRecovery()
+	{
+		return recovery;
+	}
+	
+	/**
+	 * Writes this result to a stream.
+	 *
+	 * @param out			the stream.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeUTF(name);
+		out.writeLong(sessions);
+		out.writeLong(cells);
+		out.writeLong(failures);
+		out.writeLong(elapsed);
+		roundTrip.writeTo(out);
+		upstream.writeTo(out);
+		downstream.writeTo(out);
+		recovery.writeTo(out);
+		out.writeLong(cpu);
+		out.writeLong(allocated);
+	}
+	
+	/**
+	 * Reads a result written by {@link #writeTo(DataOutput out) writeTo(DataOutput out)}.
+	 *
+	 * @param in			the stream.
+	 * @return				the result.
+	 * @throws IOException	if an I/O error occurs.
+	 */
+	public static RunResult readFrom(DataInput in) throws IOException
+	{
+		RunResult result = new RunResult(in.readUTF());
+		result.sessions = in.readLong();
+		result.cells = in.readLong();
+		result.failures = in.readLong();
+		result.elapsed = in.readLong();
+		result.roundTrip = LatencyHistogram.readFrom(in);
+		result.upstream = LatencyHistogram.readFrom(in);
+		result.downstream = LatencyHistogram.readFrom(in);
+		result.recovery = LatencyHistogram.readFrom(in);
+		result.cpu = in.readLong();
+		result.allocated = in.readLong();
+		return result;
+	}
+	
+	/**
+	 * Describes this result in a few lines of text.
+	 *
+	 * @return	the description.
+	 */
+	@Override
+	public String toString()
+	{
+		double seconds = elapsed / 1000.0;
+		return name + ": sessions=" + sessions + " failures=" + failures + " cells=" + cells +
+			" cells/s=" + String.format("%.1f", seconds > 0 ? cells / seconds : 0.0) + "\n" +
+			"  round trip time (us): " + roundTrip + "\n" +
+			"  upstream one-way delay (us): " + upstream + "\n" +
+			"  downstream one-way delay (us): " + downstream + (recovery.getCount() > 0 ?
+			"\n  recovery time (ms): " + recovery : "") + (cpu > 0 && cells > 0 ? "\n  cost per cell: " +
+			String.format("%.1f", cpu / 1e3 / cells) + " us CPU, " + allocated / cells + " B allocated" :
+			"");
+	}
+}
\ No newline at end of file